@@ -0,0 +1,375 @@
+package client.net;
+
+import common.AccessReport;
+import common.BinaryProtocol;
+import common.BlockSignatures;
+import common.Client;
+import common.Credentials;
+import common.Delta;
+import common.FileDTO;
+import common.FileListing;
+import common.QuotaExceededException;
+import common.Server;
+import common.ServerBusyException;
+import common.UpdateResult;
+import common.Usage;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.rmi.RemoteException;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+import server.integration.CatalogDBException;
+
+/**
+ * A <code>Server</code> reached over <code>BinaryProtocol</code> instead of RMI. All calls share one
+ * connection. Calls from different threads are pipelined: each call sends its request as soon as
+ * it is made and waits only for its own response, which a reader thread hands over when it
+ * arrives. Messages pushed by the server are passed to the client that logged in.
+ */
+public class BinaryServerStub implements Server {
+    private final Socket socket;
+    private final OutputStream out;
+    private final Map<Long, CompletableFuture<byte[]>> pending = new ConcurrentHashMap<>();
+    private final AtomicLong requestIds = new AtomicLong(BinaryProtocol.PUSH);
+    private volatile Client client;
+    private volatile IOException failure;
+
+    /**
+     * Connects to the server.
+     *
+     * @param host The host the server runs on.
+     * @param port The port of the server's binary protocol endpoint.
+     * @throws RemoteException If the server could not be reached.
+     */
+    public BinaryServerStub(String host, int port) throws RemoteException {
+        try {
+            socket = new Socket(host, port);
+            socket.setTcpNoDelay(true);
+            out = new BufferedOutputStream(socket.getOutputStream());
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            Thread reader = new Thread(() -> readResponses(in), "binary-protocol-reader");
+            reader.setDaemon(true);
+            reader.start();
+        } catch (IOException ex) {
+            throw new RemoteException("Could not connect to " + host + ":" + port, ex);
+        }
+    }
+
+    private void readResponses(DataInputStream in) {
+        try {
+            while (true) {
+                int length = in.readInt();
+                if (length < BinaryProtocol.HEADER_SIZE || length > BinaryProtocol.MAX_FRAME_SIZE) {
+                    throw new IOException("Bad frame length " + length);
+                }
+                byte[] frame = new byte[length];
+                in.readFully(frame);
+                long requestId = BinaryProtocol.requestId(frame);
+                if (requestId == BinaryProtocol.PUSH) {
+                    push(frame);
+                } else {
+                    CompletableFuture<byte[]> call = pending.remove(requestId);
+                    if (call != null) {
+                        call.complete(frame);
+                    }
+                }
+            }
+        } catch (IOException lost) {
+            failure = lost;
+            for (CompletableFuture<byte[]> call : pending.values()) {
+                call.completeExceptionally(lost);
+            }
+            pending.clear();
+            close();
+        }
+    }
+
+    private void push(byte[] frame) throws IOException {
+        Client receiver = client;
+        if (receiver != null && BinaryProtocol.code(frame) == BinaryProtocol.EVENT) {
+            String msg = BinaryProtocol.payload(frame).readUTF();
+            try {
+                receiver.recvMsg(msg);
+            } catch (RemoteException notDelivered) {
+            }
+        }
+    }
+
+    /**
+     * Closes the connection. Calls made afterwards fail.
+     */
+    public void close() {
+        try {
+            socket.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    /**
+     * Sends a request and waits for its response.
+     *
+     * @return The payload of the response.
+     * @throws RemoteException    If the connection failed, or the server failed to perform the call.
+     * @throws CatalogDBException If the catalog failed to perform the call.
+     */
+    private DataInputStream call(byte operation, BinaryProtocol.PayloadWriter request)
+            throws RemoteException, CatalogDBException {
+        byte[] response;
+        try {
+            response = callWithQuota(operation, request);
+        } catch (QuotaExceededException notForThisOperation) {
+            throw new RemoteException(notForThisOperation.getMessage(), notForThisOperation);
+        }
+        return BinaryProtocol.payload(response);
+    }
+
+    private byte[] callWithQuota(byte operation, BinaryProtocol.PayloadWriter request)
+            throws RemoteException, CatalogDBException, QuotaExceededException {
+        if (failure != null) {
+            throw new RemoteException("The connection is lost.", failure);
+        }
+        long requestId = requestIds.incrementAndGet();
+        CompletableFuture<byte[]> call = new CompletableFuture<>();
+        pending.put(requestId, call);
+        if (failure != null && pending.remove(requestId) != null) {
+            throw new RemoteException("The connection is lost.", failure);
+        }
+        byte[] response;
+        try {
+            byte[] frame = BinaryProtocol.frame(requestId, operation, request);
+            synchronized (out) {
+                out.write(frame);
+                out.flush();
+            }
+            response = call.get();
+        } catch (IOException ex) {
+            pending.remove(requestId);
+            throw new RemoteException("Could not send the request.", ex);
+        } catch (ExecutionException ex) {
+            throw new RemoteException("The connection is lost.", ex.getCause());
+        } catch (InterruptedException ex) {
+            pending.remove(requestId);
+            Thread.currentThread().interrupt();
+            throw new RemoteException("Interrupted while waiting for the response.", ex);
+        }
+        byte status = BinaryProtocol.code(response);
+        if (status == BinaryProtocol.OK) {
+            return response;
+        }
+        String message;
+        try {
+            message = BinaryProtocol.readNullable(BinaryProtocol.payload(response));
+        } catch (IOException ex) {
+            throw new RemoteException("Malformed response.", ex);
+        }
+        switch (status) {
+            case BinaryProtocol.BUSY:
+                throw new ServerBusyException(message);
+            case BinaryProtocol.CATALOG_ERROR:
+                throw new CatalogDBException(message);
+            case BinaryProtocol.QUOTA_EXCEEDED:
+                throw new QuotaExceededException(message);
+            case BinaryProtocol.FAILED:
+                throw new IllegalStateException(message);
+            default:
+                throw new RemoteException(message);
+        }
+    }
+
+    private static RemoteException malformed(IOException cause) {
+        return new RemoteException("Malformed response.", cause);
+    }
+
+    @Override
+    public long login(Client remoteNode, Credentials credentials) throws RemoteException {
+        this.client = remoteNode;
+        try {
+            return call(BinaryProtocol.LOGIN, out -> {
+                out.writeUTF(credentials.getUsername());
+                out.writeUTF(credentials.getPassword());
+            }).readLong();
+        } catch (CatalogDBException ex) {
+            throw new RemoteException(ex.getMessage(), ex);
+        } catch (IOException ex) {
+            throw malformed(ex);
+        }
+    }
+
+    @Override
+    public void logout(long id) throws RemoteException {
+        try {
+            call(BinaryProtocol.LOGOUT, out -> out.writeLong(id));
+        } catch (CatalogDBException ex) {
+            throw new RemoteException(ex.getMessage(), ex);
+        }
+    }
+
+    @Override
+    public FileListing list() throws RemoteException, CatalogDBException {
+        try {
+            return BinaryProtocol.readFiles(call(BinaryProtocol.LIST, null));
+        } catch (IOException ex) {
+            throw malformed(ex);
+        }
+    }
+
+    @Override
+    public FileDTO open(String filename, long id) throws RemoteException, CatalogDBException {
+        try {
+            return BinaryProtocol.readFile(call(BinaryProtocol.OPEN, out -> {
+                out.writeUTF(filename);
+                out.writeLong(id);
+            }));
+        } catch (IOException ex) {
+            throw malformed(ex);
+        }
+    }
+
+    @Override
+    public void upload(long id, String filename, int size, String permission)
+            throws RemoteException, CatalogDBException, QuotaExceededException {
+        callWithQuota(BinaryProtocol.UPLOAD, out -> {
+            out.writeLong(id);
+            out.writeUTF(filename);
+            out.writeInt(size);
+            out.writeUTF(permission);
+        });
+    }
+
+    @Override
+    public void delete(String filename, long id) throws RemoteException, CatalogDBException {
+        call(BinaryProtocol.DELETE, out -> {
+            out.writeUTF(filename);
+            out.writeLong(id);
+        });
+    }
+
+    @Override
+    public UpdateResult update(String filename, int newSize, int expectedVersion, long id)
+            throws RemoteException, CatalogDBException {
+        try {
+            return UpdateResult.valueOf(call(BinaryProtocol.UPDATE, out -> {
+                out.writeUTF(filename);
+                out.writeInt(newSize);
+                out.writeInt(expectedVersion);
+                out.writeLong(id);
+            }).readUTF());
+        } catch (IOException | IllegalArgumentException ex) {
+            throw new RemoteException("Malformed response.", ex);
+        }
+    }
+
+    @Override
+    public BlockSignatures signatures(String filename, long id) throws RemoteException, CatalogDBException {
+        try {
+            return BinaryProtocol.readSignatures(call(BinaryProtocol.SIGNATURES, out -> {
+                out.writeUTF(filename);
+                out.writeLong(id);
+            }));
+        } catch (IOException ex) {
+            throw malformed(ex);
+        }
+    }
+
+    @Override
+    public UpdateResult applyDelta(String filename, Delta delta, int expectedVersion, long id)
+            throws RemoteException, CatalogDBException {
+        try {
+            return UpdateResult.valueOf(call(BinaryProtocol.APPLY_DELTA, out -> {
+                out.writeUTF(filename);
+                out.writeInt(expectedVersion);
+                out.writeLong(id);
+                BinaryProtocol.writeDelta(out, delta);
+            }).readUTF());
+        } catch (IOException | IllegalArgumentException ex) {
+            throw new RemoteException("Malformed response.", ex);
+        }
+    }
+
+    @Override
+    public AccessReport accessReport(long id, int count) throws RemoteException {
+        try {
+            DataInputStream in = call(BinaryProtocol.ACCESS_REPORT, out -> {
+                out.writeLong(id);
+                out.writeInt(count);
+            });
+            if (!in.readBoolean()) {
+                return null;
+            }
+            return new AccessReport(in.readLong(), BinaryProtocol.readCounts(in), BinaryProtocol.readCounts(in));
+        } catch (CatalogDBException ex) {
+            throw new RemoteException(ex.getMessage(), ex);
+        } catch (IOException ex) {
+            throw malformed(ex);
+        }
+    }
+
+    @Override
+    public Usage usage(long id) throws RemoteException {
+        try {
+            DataInputStream in = call(BinaryProtocol.USAGE, out -> out.writeLong(id));
+            return new Usage(in.readInt(), in.readLong());
+        } catch (CatalogDBException ex) {
+            throw new RemoteException(ex.getMessage(), ex);
+        } catch (IOException ex) {
+            throw malformed(ex);
+        }
+    }
+
+    @Override
+    public boolean register(Credentials credentials) throws RemoteException, CatalogDBException {
+        try {
+            return call(BinaryProtocol.REGISTER, out -> {
+                out.writeUTF(credentials.getUsername());
+                out.writeUTF(credentials.getPassword());
+            }).readBoolean();
+        } catch (IOException ex) {
+            throw malformed(ex);
+        }
+    }
+
+    @Override
+    public void subscribe(long id, String pattern, boolean prefix) throws RemoteException {
+        subscription(BinaryProtocol.SUBSCRIBE, id, pattern, prefix);
+    }
+
+    @Override
+    public void unsubscribe(long id, String pattern, boolean prefix) throws RemoteException {
+        subscription(BinaryProtocol.UNSUBSCRIBE, id, pattern, prefix);
+    }
+
+    private void subscription(byte operation, long id, String pattern, boolean prefix) throws RemoteException {
+        try {
+            call(operation, out -> {
+                out.writeLong(id);
+                out.writeUTF(pattern);
+                out.writeBoolean(prefix);
+            });
+        } catch (CatalogDBException ex) {
+            throw new RemoteException(ex.getMessage(), ex);
+        }
+    }
+
+    @Override
+    public boolean acceptsWrites() throws RemoteException {
+        try {
+            return call(BinaryProtocol.ACCEPTS_WRITES, null).readBoolean();
+        } catch (CatalogDBException ex) {
+            throw new RemoteException(ex.getMessage(), ex);
+        } catch (IOException ex) {
+            throw malformed(ex);
+        }
+    }
+
+    @Override
+    public int binaryPort() {
+        return socket.getPort();
+    }
+}
@@ -0,0 +1,263 @@
+package client.net;
+
+import common.Client;
+import common.Credentials;
+import common.Server;
+import common.ServerBusyException;
+import java.net.MalformedURLException;
+import java.nio.charset.StandardCharsets;
+import java.rmi.Naming;
+import java.rmi.NotBoundException;
+import java.rmi.RemoteException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * Routes calls to the nodes of a server cluster. The nodes are found in the RMI registry, and each
+ * filename is mapped to a node with consistent hashing, so that a file is always handled by the
+ * same node as long as that node is alive. When a node can not be reached it is removed from the
+ * ring and the call is retried on the node that takes over its files. A node that rejects a call
+ * because it is overloaded is not considered unreachable, the rejection is passed on. Writes are
+ * only routed to nodes accepting writes, reads may also go to read-only replicas.
+ *
+ * Nodes are always found through RMI, but if the system property <code>TRANSPORT_PROPERTY</code> is
+ * <code>binary</code>, calls go over <code>BinaryProtocol</code> to nodes that offer it.
+ */
+public class ServerRouter {
+    /**
+     * System property selecting the transport, <code>rmi</code> (default) or <code>binary</code>.
+     */
+    public static final String TRANSPORT_PROPERTY = "catalog.transport";
+    private static final String BINARY_TRANSPORT = "binary";
+    private static final int VIRTUAL_NODES_PER_SERVER = 64;
+    private final SortedMap<Integer, String> ring = new TreeMap<>();
+    private final Map<String, Server> nodes = new HashMap<>();
+    private final Map<String, Long> sessions = new HashMap<>();
+    private final Set<String> readOnly = new HashSet<>();
+    private String host;
+    private Client remoteNode;
+    private Credentials credentials;
+
+    /**
+     * A call to one server node, using the session id this client has at that node.
+     */
+    public interface Call<T> {
+        T call(Server server, long id) throws Exception;
+    }
+
+    /**
+     * Looks up all nodes bound in the registry at the specified host.
+     *
+     * @param host The host where the registry runs.
+     * @throws RemoteException If there is no registry, or no server in it.
+     */
+    public synchronized void connect(String host) throws RemoteException, MalformedURLException {
+        this.host = host;
+        refreshMembership();
+        if (nodes.isEmpty()) {
+            throw new RemoteException("No server is running at " + host + ".");
+        }
+    }
+
+    private void refreshMembership() throws RemoteException, MalformedURLException {
+        for (String nodeName : nodes.keySet().toArray(new String[0])) {
+            removeNode(nodeName);
+        }
+        ring.clear();
+        readOnly.clear();
+        for (String name : Naming.list("//" + host + "/")) {
+            int prefixStart = name.indexOf(Server.CLUSTER_PREFIX_IN_REGISTRY);
+            boolean singleServer = name.endsWith("/" + Server.SERVER_NAME_IN_REGISTRY);
+            if (prefixStart < 0 && !singleServer) {
+                continue;
+            }
+            String nodeName = singleServer ? Server.SERVER_NAME_IN_REGISTRY
+                              : name.substring(prefixStart + Server.CLUSTER_PREFIX_IN_REGISTRY.length());
+            try {
+                addNode(nodeName, transport((Server) Naming.lookup(name)));
+            } catch (NotBoundException | RemoteException nodeLeft) {
+            }
+        }
+    }
+
+    /**
+     * @return The node reached over the configured transport.
+     */
+    private Server transport(Server node) throws RemoteException {
+        if (!BINARY_TRANSPORT.equalsIgnoreCase(System.getProperty(TRANSPORT_PROPERTY))) {
+            return node;
+        }
+        int port = node.binaryPort();
+        return port == 0 ? node : new BinaryServerStub(host, port);
+    }
+
+    private void addNode(String nodeName, Server server) throws RemoteException {
+        if (!server.acceptsWrites()) {
+            readOnly.add(nodeName);
+        }
+        nodes.put(nodeName, server);
+        for (int i = 0; i < VIRTUAL_NODES_PER_SERVER; i++) {
+            ring.put(hash(nodeName + "#" + i), nodeName);
+        }
+    }
+
+    private void removeNode(String nodeName) {
+        Server removed = nodes.remove(nodeName);
+        if (removed instanceof BinaryServerStub) {
+            ((BinaryServerStub) removed).close();
+        }
+        sessions.remove(nodeName);
+        readOnly.remove(nodeName);
+        ring.values().removeIf(nodeName::equals);
+    }
+
+    private static int hash(String key) {
+        try {
+            byte[] digest = MessageDigest.getInstance("MD5").digest(key.getBytes(StandardCharsets.UTF_8));
+            return ((digest[0] & 0xFF) << 24) | ((digest[1] & 0xFF) << 16)
+                   | ((digest[2] & 0xFF) << 8) | (digest[3] & 0xFF);
+        } catch (NoSuchAlgorithmException md5IsAlwaysAvailable) {
+            return key.hashCode();
+        }
+    }
+
+    private String nodeFor(String filename, boolean write) {
+        int position = hash(filename);
+        for (String nodeName : ring.tailMap(position).values()) {
+            if (!write || !readOnly.contains(nodeName)) {
+                return nodeName;
+            }
+        }
+        for (String nodeName : ring.headMap(position).values()) {
+            if (!write || !readOnly.contains(nodeName)) {
+                return nodeName;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Logs in at all nodes of the cluster. Nodes joining later are logged in to the first time a
+     * call is routed to them.
+     *
+     * @return <code>true</code> if the login succeeded.
+     */
+    public synchronized boolean login(Client remoteNode, Credentials credentials) throws RemoteException {
+        this.remoteNode = remoteNode;
+        this.credentials = credentials;
+        sessions.clear();
+        for (String nodeName : nodes.keySet().toArray(new String[0])) {
+            try {
+                if (session(nodeName) == 0) {
+                    return false;
+                }
+            } catch (RemoteException nodeUnavailable) {
+                removeNode(nodeName);
+            }
+        }
+        return !sessions.isEmpty();
+    }
+
+    /**
+     * Logs out from all nodes.
+     */
+    public synchronized void logout() {
+        for (Map.Entry<String, Long> session : sessions.entrySet()) {
+            try {
+                nodes.get(session.getKey()).logout(session.getValue());
+            } catch (RemoteException nodeUnavailable) {
+            }
+        }
+        sessions.clear();
+        credentials = null;
+    }
+
+    private long session(String nodeName) throws RemoteException {
+        Long id = sessions.get(nodeName);
+        if (id == null) {
+            id = credentials == null ? 0 : nodes.get(nodeName).login(remoteNode, credentials);
+            if (id != 0) {
+                sessions.put(nodeName, id);
+            }
+        }
+        return id;
+    }
+
+    /**
+     * Performs the specified write at the node responsible for the specified file.
+     *
+     * @param filename The file the call concerns.
+     * @param call     The call to perform.
+     * @return The result of the call.
+     * @throws Exception If the call failed, or if no node could be reached.
+     */
+    public <T> T route(String filename, Call<T> call) throws Exception {
+        return perform(filename, true, call);
+    }
+
+    /**
+     * Performs the specified read at the node responsible for the specified file, which may be a
+     * replica.
+     */
+    public <T> T read(String filename, Call<T> call) throws Exception {
+        return perform(filename, false, call);
+    }
+
+    /**
+     * Performs a read that does not concern one specific file, at any live node.
+     */
+    public <T> T any(Call<T> call) throws Exception {
+        return read("", call);
+    }
+
+    /**
+     * Performs a write that does not concern one specific file, at any node accepting writes.
+     */
+    public <T> T anyWriter(Call<T> call) throws Exception {
+        return route("", call);
+    }
+
+    /**
+     * Performs the specified call at every live node. Nodes that can not be reached are removed.
+     */
+    public synchronized void all(Call<?> call) throws Exception {
+        for (String nodeName : nodes.keySet().toArray(new String[0])) {
+            try {
+                call.call(nodes.get(nodeName), session(nodeName));
+            } catch (ServerBusyException busy) {
+                throw busy;
+            } catch (RemoteException nodeUnavailable) {
+                removeNode(nodeName);
+            }
+        }
+    }
+
+    private synchronized <T> T perform(String filename, boolean write, Call<T> call) throws Exception {
+        while (true) {
+            String nodeName = nodeFor(filename, write);
+            if (nodeName == null) {
+                refreshMembership();
+                nodeName = nodeFor(filename, write);
+                if (nodeName == null) {
+                    throw new RemoteException("No server is reachable.");
+                }
+            }
+            try {
+                return call.call(nodes.get(nodeName), session(nodeName));
+            } catch (ServerBusyException busy) {
+                throw busy;
+            } catch (RemoteException nodeUnavailable) {
+                removeNode(nodeName);
+                if (nodeFor(filename, write) == null) {
+                    throw nodeUnavailable;
+                }
+            }
+        }
+    }
+}
@@ -26,6 +26,34 @@ public enum Command {
     DELETE,
     
     UPDATE,
+
+    /**
+     * Replace the content of a file with the content of a local file, sending only the blocks
+     * that changed. The first parameter is the filename, the second the path of the local file.
+     */
+    SYNC,
+
+    /**
+     * Show the number of files the user owns, and their total size.
+     */
+    USAGE,
+
+    /**
+     * Show the files accessed most often and the most active users at one node. The optional
+     * parameter is the number of each to show.
+     */
+    HOT,
+
+    /**
+     * Receive events of a file. The parameter is a filename, or a filename prefix followed by
+     * <code>*</code> to receive events of all files starting with the prefix.
+     */
+    SUBSCRIBE,
+
+    /**
+     * Stop receiving events subscribed to with <code>SUBSCRIBE</code>, same parameter.
+     */
+    UNSUBSCRIBE,
     
     NO_COMMAND
 }
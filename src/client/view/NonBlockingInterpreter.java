@@ -1,16 +1,25 @@
 package client.view;
 
+import client.net.ServerRouter;
 import java.net.MalformedURLException;
-import java.rmi.Naming;
-import java.rmi.NotBoundException;
 import java.rmi.RemoteException;
 import java.rmi.server.UnicastRemoteObject;
+import java.nio.file.Files;
+import java.nio.file.Paths;
 import java.util.Scanner;
+import common.AccessReport;
+import common.BlockSignatures;
 import common.Client;
-import common.Server;
 import common.Credentials;
+import common.Delta;
 import common.FileDTO;
+import common.QuotaExceededException;
+import common.ServerBusyException;
+import common.UpdateResult;
+import common.Usage;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 /**
  * Reads and interprets user commands. The command interpreter will run in a separate thread, which
@@ -20,12 +29,14 @@ import java.util.List;
  */
 public class NonBlockingInterpreter implements Runnable {
     private static final String PROMPT = "> ";
+    private static final String PREFIX_WILDCARD = "*";
+    private static final int DEFAULT_HOT_COUNT = 10;
     private final Scanner console = new Scanner(System.in);
     private final ThreadSafeStdOut outMgr = new ThreadSafeStdOut();
     private final Client myRemoteObj;
-    private Server server;
-    private long myIdAtServer;
+    private final ServerRouter server = new ServerRouter();
     private boolean receivingCmds = false;
+    private final Map<String, Integer> openedVersions = new HashMap<>();
 
     public NonBlockingInterpreter() throws RemoteException {
         myRemoteObj = new ConsoleOutput();
@@ -54,15 +65,15 @@ public class NonBlockingInterpreter implements Runnable {
                 switch (cmdLine.getCmd()) {
                     case LOGOUT:
                         receivingCmds = false;
-                        server.logout(myIdAtServer);
+                        server.logout();
                         boolean forceUnexport = false;
                         UnicastRemoteObject.unexportObject(myRemoteObj, forceUnexport);
                         outMgr.println("Logged out!");
                         break;
                     case REGISTER:
                         lookupServer(cmdLine.getParameter(0));
-                        boolean registered = server.register(new Credentials(cmdLine.getParameter(1),
-                                                               cmdLine.getParameter(2)));
+                        boolean registered = server.anyWriter((node, id) -> node.register(
+                                new Credentials(cmdLine.getParameter(1), cmdLine.getParameter(2))));
                         if(registered)
                             outMgr.println("Your account has been registered! You can now log in.");
                         else
@@ -70,18 +81,18 @@ public class NonBlockingInterpreter implements Runnable {
                         break;
                     case LOGIN:
                         lookupServer(cmdLine.getParameter(0));
-                        myIdAtServer
+                        boolean loggedIn
                                 = server.login(myRemoteObj,
                                                new Credentials(cmdLine.getParameter(1),
                                                                cmdLine.getParameter(2)));
-                        if(myIdAtServer != 0)
+                        if(loggedIn)
                             outMgr.println("Logged in.");
                         else{
                             outMgr.println("Login fail! Try again.");
                         }
                         break;
                     case LIST:
-                        List<? extends FileDTO> files = server.list();
+                        List<? extends FileDTO> files = server.any((node, id) -> node.list());
                         if(files.size() > 0){
                             for(FileDTO single : files){
                                 outMgr.println(single.getFileName());
@@ -91,20 +102,23 @@ public class NonBlockingInterpreter implements Runnable {
                         }
                         break;
                     case OPEN:
-                        FileDTO file = server.open(cmdLine.getParameter(0), myIdAtServer);
+                        FileDTO file = server.read(cmdLine.getParameter(0),
+                                (node, id) -> node.open(cmdLine.getParameter(0), id));
                         if(file != null){
+                            openedVersions.put(file.getFileName(), file.getFileVersion());
                             outMgr.println(file.getFileName() + " size: " + file.getFileSize() + " Author: " + file.getFileOwner() + 
-                                    " Privilege: " + file.getFilePermission());
+                                    " Privilege: " + file.getFilePermission() + " Version: " + file.getFileVersion());
                         }else{
                             outMgr.println("Can not open file.");
                         }
                         break;
                     case UPLOAD:
                         if(cmdLine.getParameter(2) != null){
-                            if(cmdLine.getParameter(2).equals("RO")){
-                                server.upload(myIdAtServer, cmdLine.getParameter(0), Integer.parseInt(cmdLine.getParameter(1)), cmdLine.getParameter(2));
-                            }else if(cmdLine.getParameter(2).equals("RW")){
-                                server.upload(myIdAtServer, cmdLine.getParameter(0), Integer.parseInt(cmdLine.getParameter(1)), cmdLine.getParameter(2));
+                            if(cmdLine.getParameter(2).equals("RO") || cmdLine.getParameter(2).equals("RW")){
+                                server.route(cmdLine.getParameter(0), (node, id) -> {
+                                    node.upload(id, cmdLine.getParameter(0), Integer.parseInt(cmdLine.getParameter(1)), cmdLine.getParameter(2));
+                                    return null;
+                                });
                             }else{
                                 outMgr.println("File privilege not delcared correctly, please use 'RO' for read only or 'RW' for read write permission.");
                             }
@@ -113,24 +127,107 @@ public class NonBlockingInterpreter implements Runnable {
                         }
                         break;
                     case DELETE:
-                        server.delete(cmdLine.getParameter(0), myIdAtServer);
+                        server.route(cmdLine.getParameter(0), (node, id) -> {
+                            node.delete(cmdLine.getParameter(0), id);
+                            return null;
+                        });
                         break;
                     case UPDATE:
-                        server.update(cmdLine.getParameter(0), Integer.parseInt(cmdLine.getParameter(1)), myIdAtServer);
+                        Integer version = openedVersions.get(cmdLine.getParameter(0));
+                        if(version == null){
+                            outMgr.println("Open the file before updating it.");
+                            break;
+                        }
+                        UpdateResult result = server.route(cmdLine.getParameter(0), (node, id) -> 
+                                node.update(cmdLine.getParameter(0), Integer.parseInt(cmdLine.getParameter(1)), version, id));
+                        if(reportUpdate(cmdLine.getParameter(0), version, result))
+                            outMgr.println("File updated.");
+                        break;
+                    case SYNC:
+                        String synced = cmdLine.getParameter(0);
+                        byte[] local = Files.readAllBytes(Paths.get(cmdLine.getParameter(1)));
+                        BlockSignatures signatures = server.route(synced, (node, id) -> node.signatures(synced, id));
+                        if(signatures == null){
+                            outMgr.println("No such file.");
+                            break;
+                        }
+                        Delta delta = Delta.compute(signatures, local);
+                        UpdateResult syncResult = server.route(synced, (node, id) ->
+                                node.applyDelta(synced, delta, signatures.getVersion(), id));
+                        if(reportUpdate(synced, signatures.getVersion(), syncResult))
+                            outMgr.println("File synced, sent " + delta.getLiteralBytes() + " of " + local.length + " bytes.");
+                        break;
+                    case USAGE:
+                        Usage usage = server.any((node, id) -> node.usage(id));
+                        outMgr.println("You have " + usage.getFileCount() + " files, "
+                                       + usage.getTotalBytes() + " bytes in total.");
+                        break;
+                    case HOT:
+                        int count = cmdLine.getParameter(0) == null ? DEFAULT_HOT_COUNT : Integer.parseInt(cmdLine.getParameter(0));
+                        AccessReport report = server.any((node, id) -> node.accessReport(id, count));
+                        if(report == null){
+                            outMgr.println("Log in to see the access report.");
+                            break;
+                        }
+                        outMgr.println("Hot files, last " + report.getPeriodSeconds() + " seconds:");
+                        report.getHotFiles().forEach((name, accesses) -> outMgr.println("  " + name + " " + accesses));
+                        outMgr.println("Active users:");
+                        report.getActiveUsers().forEach((name, accesses) -> outMgr.println("  " + name + " " + accesses));
+                        break;
+                    case SUBSCRIBE:
+                    case UNSUBSCRIBE:
+                        String pattern = cmdLine.getParameter(0);
+                        boolean prefix = pattern.endsWith(PREFIX_WILDCARD);
+                        String subscribed = prefix ? pattern.substring(0, pattern.length() - 1) : pattern;
+                        boolean subscribe = cmdLine.getCmd() == Command.SUBSCRIBE;
+                        server.all((node, id) -> {
+                            if(subscribe)
+                                node.subscribe(id, subscribed, prefix);
+                            else
+                                node.unsubscribe(id, subscribed, prefix);
+                            return null;
+                        });
                         break;
                     default:
                         System.out.println("Non-valid command!");
                 }
+            } catch (ServerBusyException busy) {
+                outMgr.println("Server is busy, try again later.");
+            } catch (QuotaExceededException quota) {
+                outMgr.println("Quota exceeded: " + quota.getMessage());
             } catch (Exception e) {
                 outMgr.println("Operation failed");
             }
         }
     }
 
-    private void lookupServer(String host) throws NotBoundException, MalformedURLException,
-                                                  RemoteException {
-        server = (Server) Naming.lookup(
-                "//" + host + "/" + Server.SERVER_NAME_IN_REGISTRY);
+    /**
+     * Remembers the new version of an updated file, or tells why it was not updated.
+     *
+     * @return <code>true</code> if the file was updated.
+     */
+    private boolean reportUpdate(String filename, int version, UpdateResult result) {
+        switch(result) {
+            case UPDATED:
+                openedVersions.put(filename, version + 1);
+                return true;
+            case CONFLICT:
+                outMgr.println("The file has been updated by someone else, open it again before updating.");
+                break;
+            case DENIED:
+                outMgr.println("You are not allowed to update the file.");
+                break;
+            case QUOTA_EXCEEDED:
+                outMgr.println("The new size would exceed the owner's quota.");
+                break;
+            default:
+                outMgr.println("No such file.");
+        }
+        return false;
+    }
+
+    private void lookupServer(String host) throws MalformedURLException, RemoteException {
+        server.connect(host);
     }
 
     private String readNextLine() {
@@ -143,6 +240,10 @@ public class NonBlockingInterpreter implements Runnable {
         public ConsoleOutput() throws RemoteException {
         }
 
+        @Override
+        public void ping() {
+        }
+
         @Override
         public void recvMsg(String msg) {
             String[] notify = msg.split("##");
@@ -156,6 +257,9 @@ public class NonBlockingInterpreter implements Runnable {
                 case "UPDATE":
                     outMgr.println(notify[1] + " has updated one of your files.");
                     break;
+                case "EVENT":
+                    outMgr.println(notify[2] + " did " + notify[1] + " on " + notify[3] + ".");
+                    break;
                 default:
                     outMgr.println("Unkown type of message.");
             }
@@ -0,0 +1,40 @@
+package common;
+
+import java.io.Serializable;
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * The files accessed most often at a node, and the users accessing files most often, with their
+ * approximate number of accesses. Only opens, updates and deletes are counted, in a recent period
+ * of <code>getPeriodSeconds</code>.
+ */
+public final class AccessReport implements Serializable {
+    private static final long serialVersionUID = 1L;
+    private final long periodSeconds;
+    private final Map<String, Long> hotFiles;
+    private final Map<String, Long> activeUsers;
+
+    /**
+     * @param periodSeconds The period counted.
+     * @param hotFiles      Filenames with their counts, the most accessed first.
+     * @param activeUsers   Usernames with their counts, the most active first.
+     */
+    public AccessReport(long periodSeconds, Map<String, Long> hotFiles, Map<String, Long> activeUsers) {
+        this.periodSeconds = periodSeconds;
+        this.hotFiles = hotFiles;
+        this.activeUsers = activeUsers;
+    }
+
+    public long getPeriodSeconds() {
+        return periodSeconds;
+    }
+
+    public Map<String, Long> getHotFiles() {
+        return Collections.unmodifiableMap(hotFiles);
+    }
+
+    public Map<String, Long> getActiveUsers() {
+        return Collections.unmodifiableMap(activeUsers);
+    }
+}
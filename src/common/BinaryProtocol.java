@@ -0,0 +1,311 @@
+package common;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The binary protocol offered next to RMI. A connection carries frames in both directions, each
+ * frame being its length as an int, followed by a request id (long), a code (byte) and a payload.
+ * Requests carry an operation code, and responses the id of the request they answer and a status
+ * code. A client may send any number of requests without waiting for responses, and responses
+ * may come in any order. Notifications are pushed by the server as frames with request id
+ * <code>PUSH</code> and code <code>EVENT</code>, holding the message.
+ *
+ * Payloads are written with <code>DataOutputStream</code>: strings with <code>writeUTF</code>,
+ * preceded by a boolean where they may be <code>null</code>.
+ */
+public final class BinaryProtocol {
+    /**
+     * The largest frame accepted, in bytes.
+     */
+    public static final int MAX_FRAME_SIZE = 16 << 20;
+    /**
+     * The request id of frames pushed by the server.
+     */
+    public static final long PUSH = 0;
+    /**
+     * The length of the frame header after the length field: request id and code.
+     */
+    public static final int HEADER_SIZE = Long.BYTES + 1;
+
+    public static final byte LOGIN = 1;
+    public static final byte LOGOUT = 2;
+    public static final byte LIST = 3;
+    public static final byte OPEN = 4;
+    public static final byte UPLOAD = 5;
+    public static final byte DELETE = 6;
+    public static final byte UPDATE = 7;
+    public static final byte USAGE = 8;
+    public static final byte REGISTER = 9;
+    public static final byte SUBSCRIBE = 10;
+    public static final byte UNSUBSCRIBE = 11;
+    public static final byte ACCEPTS_WRITES = 12;
+    public static final byte SIGNATURES = 13;
+    public static final byte APPLY_DELTA = 14;
+    public static final byte ACCESS_REPORT = 15;
+
+    public static final byte OK = 0;
+    public static final byte CATALOG_ERROR = 1;
+    public static final byte QUOTA_EXCEEDED = 2;
+    public static final byte BUSY = 3;
+    public static final byte REMOTE_ERROR = 4;
+    public static final byte EVENT = 5;
+    /**
+     * The server failed unexpectedly while performing the request, the connection is still usable.
+     */
+    public static final byte FAILED = 6;
+
+    private BinaryProtocol() {
+    }
+
+    /**
+     * Writes the payload of a frame.
+     */
+    public interface PayloadWriter {
+        void write(DataOutputStream out) throws IOException;
+    }
+
+    /**
+     * @return A complete frame, including the length.
+     */
+    public static byte[] frame(long requestId, byte code, PayloadWriter payload) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(0);
+        out.writeLong(requestId);
+        out.writeByte(code);
+        if (payload != null) {
+            payload.write(out);
+        }
+        byte[] frame = bytes.toByteArray();
+        int length = frame.length - Integer.BYTES;
+        frame[0] = (byte) (length >>> 24);
+        frame[1] = (byte) (length >>> 16);
+        frame[2] = (byte) (length >>> 8);
+        frame[3] = (byte) length;
+        return frame;
+    }
+
+    /**
+     * @return The request id of the specified frame, which excludes the length.
+     */
+    public static long requestId(byte[] frame) {
+        long id = 0;
+        for (int i = 0; i < Long.BYTES; i++) {
+            id = (id << 8) | (frame[i] & 0xFF);
+        }
+        return id;
+    }
+
+    /**
+     * @return The operation or status code of the specified frame, which excludes the length.
+     */
+    public static byte code(byte[] frame) {
+        return frame[Long.BYTES];
+    }
+
+    /**
+     * @return A stream reading the payload of the specified frame, which excludes the length.
+     */
+    public static DataInputStream payload(byte[] frame) {
+        return new DataInputStream(new ByteArrayInputStream(frame, HEADER_SIZE, frame.length - HEADER_SIZE));
+    }
+
+    public static void writeNullable(DataOutputStream out, String value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) {
+            out.writeUTF(value);
+        }
+    }
+
+    public static String readNullable(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+    public static void writeFile(DataOutputStream out, FileDTO file) throws IOException {
+        out.writeBoolean(file != null);
+        if (file == null) {
+            return;
+        }
+        out.writeUTF(file.getFileName());
+        out.writeInt(file.getFileSize());
+        writeNullable(out, file.getFileOwner());
+        writeNullable(out, file.getFilePermission());
+        out.writeInt(file.getFileVersion());
+    }
+
+    public static FileDTO readFile(DataInputStream in) throws IOException {
+        if (!in.readBoolean()) {
+            return null;
+        }
+        return new Row(in.readUTF(), in.readInt(), readNullable(in), readNullable(in), in.readInt());
+    }
+
+    public static void writeFiles(DataOutputStream out, List<? extends FileDTO> files) throws IOException {
+        out.writeInt(files.size());
+        for (FileDTO file : files) {
+            writeFile(out, file);
+        }
+    }
+
+    public static FileListing readFiles(DataInputStream in) throws IOException {
+        int count = readCount(in, 1);
+        List<FileDTO> files = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            files.add(readFile(in));
+        }
+        return new FileListing(files);
+    }
+
+    public static void writeSignatures(DataOutputStream out, BlockSignatures signatures) throws IOException {
+        out.writeBoolean(signatures != null);
+        if (signatures == null) {
+            return;
+        }
+        out.writeInt(signatures.getVersion());
+        out.writeInt(signatures.getBlockSize());
+        out.writeLong(signatures.getLength());
+        out.writeInt(signatures.getBlockCount());
+        for (int block = 0; block < signatures.getBlockCount(); block++) {
+            out.writeInt(signatures.getWeak(block));
+            out.write(signatures.getStrong(block));
+        }
+    }
+
+    public static BlockSignatures readSignatures(DataInputStream in) throws IOException {
+        if (!in.readBoolean()) {
+            return null;
+        }
+        int version = in.readInt();
+        int blockSize = in.readInt();
+        long length = in.readLong();
+        int count = readCount(in, Integer.BYTES + BlockSignatures.STRONG_SIZE);
+        int[] weak = new int[count];
+        byte[] strong = new byte[count * BlockSignatures.STRONG_SIZE];
+        for (int block = 0; block < count; block++) {
+            weak[block] = in.readInt();
+            in.readFully(strong, block * BlockSignatures.STRONG_SIZE, BlockSignatures.STRONG_SIZE);
+        }
+        return new BlockSignatures(version, blockSize, length, weak, strong);
+    }
+
+    public static void writeCounts(DataOutputStream out, Map<String, Long> counts) throws IOException {
+        out.writeInt(counts.size());
+        for (Map.Entry<String, Long> count : counts.entrySet()) {
+            out.writeUTF(count.getKey());
+            out.writeLong(count.getValue());
+        }
+    }
+
+    public static Map<String, Long> readCounts(DataInputStream in) throws IOException {
+        int size = readCount(in, Short.BYTES + Long.BYTES);
+        Map<String, Long> counts = new LinkedHashMap<>();
+        for (int i = 0; i < size; i++) {
+            counts.put(in.readUTF(), in.readLong());
+        }
+        return counts;
+    }
+
+    /**
+     * Writes a delta as its block size, length and number of pieces, followed by the pieces. A
+     * piece is its target offset and source block, followed by its bytes if it is literal.
+     */
+    public static void writeDelta(DataOutputStream out, Delta delta) throws IOException {
+        out.writeInt(delta.getBlockSize());
+        out.writeLong(delta.getLength());
+        out.writeInt(delta.getPieceCount());
+        for (int piece = 0; piece < delta.getPieceCount(); piece++) {
+            out.writeLong(delta.getTarget(piece));
+            out.writeInt(delta.getSourceBlock(piece));
+            byte[] literal = delta.getLiteral(piece);
+            if (literal != null) {
+                out.writeInt(literal.length);
+                out.write(literal);
+            }
+        }
+    }
+
+    public static Delta readDelta(DataInputStream in) throws IOException {
+        Delta delta = new Delta(in.readInt(), in.readLong());
+        int count = readCount(in, Long.BYTES + Integer.BYTES);
+        for (int piece = 0; piece < count; piece++) {
+            long target = in.readLong();
+            int source = in.readInt();
+            if (source == Delta.LITERAL) {
+                byte[] literal = new byte[readCount(in, 1)];
+                in.readFully(literal);
+                delta.literal(target, literal);
+            } else {
+                delta.copy(target, source);
+            }
+        }
+        return delta;
+    }
+
+    /**
+     * Reads the number of elements that follow in a payload, or the length of an array.
+     *
+     * @param elementSize The fewest bytes each element takes in the payload.
+     * @throws IOException If the rest of the payload can not hold that many elements.
+     */
+    private static int readCount(DataInputStream in, int elementSize) throws IOException {
+        int count = in.readInt();
+        if (count < 0 || count > MAX_FRAME_SIZE / elementSize || (long) count * elementSize > in.available()) {
+            throw new IOException("Malformed frame: " + count + " elements of at least " + elementSize
+                                  + " bytes do not fit in the " + in.available() + " bytes left.");
+        }
+        return count;
+    }
+
+    /**
+     * A file read from a frame.
+     */
+    private static class Row implements FileDTO {
+        private static final long serialVersionUID = 1L;
+        private final String name;
+        private final int size;
+        private final String owner;
+        private final String permission;
+        private final int version;
+
+        Row(String name, int size, String owner, String permission, int version) {
+            this.name = name;
+            this.size = size;
+            this.owner = owner;
+            this.permission = permission;
+            this.version = version;
+        }
+
+        @Override
+        public String getFileName() {
+            return name;
+        }
+
+        @Override
+        public int getFileSize() {
+            return size;
+        }
+
+        @Override
+        public String getFileOwner() {
+            return owner;
+        }
+
+        @Override
+        public String getFilePermission() {
+            return permission;
+        }
+
+        @Override
+        public int getFileVersion() {
+            return version;
+        }
+    }
+}
@@ -0,0 +1,91 @@
+package common;
+
+import java.io.Serializable;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+/**
+ * The checksums of the blocks of a file's content, as stored by the server. Each block has a weak
+ * checksum, which is a <code>RollingChecksum</code>, and a strong one, which is an MD5 digest. All
+ * blocks but the last are <code>getBlockSize</code> long.
+ */
+public class BlockSignatures implements Serializable {
+    private static final long serialVersionUID = 1L;
+    /**
+     * The length of the strong checksum of a block.
+     */
+    public static final int STRONG_SIZE = 16;
+    private final int version;
+    private final int blockSize;
+    private final long length;
+    private final int[] weak;
+    private final byte[] strong;
+
+    /**
+     * @param version   The version of the file the content belongs to.
+     * @param blockSize The size of all blocks but the last.
+     * @param length    The length of the content.
+     * @param weak      The weak checksum of each block.
+     * @param strong    The strong checksums of all blocks, one after another.
+     */
+    public BlockSignatures(int version, int blockSize, long length, int[] weak, byte[] strong) {
+        this.version = version;
+        this.blockSize = blockSize;
+        this.length = length;
+        this.weak = weak;
+        this.strong = strong;
+    }
+
+    /**
+     * @return The strong checksum of the specified bytes.
+     */
+    public static byte[] strong(byte[] data, int offset, int length) {
+        try {
+            MessageDigest md5 = MessageDigest.getInstance("MD5");
+            md5.update(data, offset, length);
+            return md5.digest();
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException("MD5 is not available.", ex);
+        }
+    }
+
+    public int getVersion() {
+        return version;
+    }
+
+    public int getBlockSize() {
+        return blockSize;
+    }
+
+    public long getLength() {
+        return length;
+    }
+
+    public int getBlockCount() {
+        return weak.length;
+    }
+
+    /**
+     * @return The number of blocks that are <code>getBlockSize</code> long.
+     */
+    public int getFullBlockCount() {
+        return (int) (length / blockSize);
+    }
+
+    public int getWeak(int block) {
+        return weak[block];
+    }
+
+    public byte[] getStrong(int block) {
+        return Arrays.copyOfRange(strong, block * STRONG_SIZE, (block + 1) * STRONG_SIZE);
+    }
+
+    /**
+     * @return <code>true</code> if the specified block has the specified strong checksum.
+     */
+    public boolean strongEquals(int block, byte[] digest) {
+        int from = block * STRONG_SIZE;
+        return Arrays.equals(strong, from, from + STRONG_SIZE, digest, 0, STRONG_SIZE);
+    }
+}
@@ -9,4 +9,9 @@ import java.rmi.RemoteException;
  */
 public interface Client extends Remote{
     void recvMsg(String msg) throws RemoteException;
+
+    /**
+     * Does nothing. Called by the server to find out whether the client is reachable.
+     */
+    void ping() throws RemoteException;
 }
@@ -0,0 +1,19 @@
+package common;
+
+import java.rmi.Remote;
+import java.rmi.RemoteException;
+
+/**
+ * Calls made between the server nodes of a cluster.
+ */
+public interface ClusterPeer extends Remote {
+    /**
+     * Delivers a notification to the specified user, if that user has a session at this node.
+     *
+     * @param username The user to notify.
+     * @param msg      The notification.
+     * @return <code>true</code> if the user had a session at this node.
+     * @throws RemoteException If the node could not be reached.
+     */
+    boolean deliver(String username, String msg) throws RemoteException;
+}
@@ -0,0 +1,172 @@
+package common;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The changes that turn a file's stored content into new content. The new content is described as
+ * a sequence of pieces, each written at an offset of the file: either a block of the stored
+ * content, or literal bytes. Parts of the new content that are not covered by a piece are blocks
+ * that did not change and did not move, and are left as they are.
+ */
+public class Delta implements Serializable {
+    private static final long serialVersionUID = 1L;
+    /**
+     * The source block of a piece holding literal bytes.
+     */
+    public static final int LITERAL = -1;
+    private final int blockSize;
+    private final long length;
+    private final List<Long> targets = new ArrayList<>();
+    private final List<Integer> sources = new ArrayList<>();
+    private final List<byte[]> literals = new ArrayList<>();
+
+    /**
+     * Creates a delta without pieces.
+     *
+     * @param blockSize The block size of the stored content.
+     * @param length    The length of the new content.
+     */
+    public Delta(int blockSize, long length) {
+        this.blockSize = blockSize;
+        this.length = length;
+    }
+
+    /**
+     * Finds the blocks of the stored content that also occur in the new content, at any offset,
+     * by moving a <code>RollingChecksum</code> over the new content and comparing strong checksums
+     * only where the weak ones match. Everything else is sent as literal bytes.
+     *
+     * @param base    The signatures of the stored content.
+     * @param content The new content.
+     * @return The delta turning the stored content into <code>content</code>.
+     */
+    public static Delta compute(BlockSignatures base, byte[] content) {
+        int blockSize = base.getBlockSize();
+        Delta delta = new Delta(blockSize, content.length);
+        Map<Integer, List<Integer>> blocksByWeak = new HashMap<>();
+        for (int block = 0; block < base.getFullBlockCount(); block++) {
+            blocksByWeak.computeIfAbsent(base.getWeak(block), weak -> new ArrayList<>()).add(block);
+        }
+        RollingChecksum checksum = new RollingChecksum();
+        int literalStart = 0;
+        int pos = 0;
+        if (content.length >= blockSize) {
+            checksum.reset(content, 0, blockSize);
+        }
+        while (pos + blockSize <= content.length) {
+            int block = match(base, blocksByWeak.get(checksum.value()), content, pos);
+            if (block == LITERAL) {
+                if (pos + blockSize < content.length) {
+                    checksum.roll(content[pos], content[pos + blockSize]);
+                }
+                pos++;
+                continue;
+            }
+            if (literalStart < pos) {
+                delta.literal(literalStart, Arrays.copyOfRange(content, literalStart, pos));
+            }
+            if ((long) block * blockSize != pos) {
+                delta.copy(pos, block);
+            }
+            pos += blockSize;
+            literalStart = pos;
+            if (pos + blockSize <= content.length) {
+                checksum.reset(content, pos, blockSize);
+            }
+        }
+        if (literalStart < content.length) {
+            delta.literal(literalStart, Arrays.copyOfRange(content, literalStart, content.length));
+        }
+        return delta;
+    }
+
+    /**
+     * @return The block with the same content as the block starting at <code>pos</code>,
+     *         preferring the one already at <code>pos</code>, or <code>LITERAL</code>.
+     */
+    private static int match(BlockSignatures base, List<Integer> candidates, byte[] content, int pos) {
+        if (candidates == null) {
+            return LITERAL;
+        }
+        byte[] digest = BlockSignatures.strong(content, pos, base.getBlockSize());
+        int found = LITERAL;
+        for (int block : candidates) {
+            if (base.strongEquals(block, digest)) {
+                if ((long) block * base.getBlockSize() == pos) {
+                    return block;
+                }
+                if (found == LITERAL) {
+                    found = block;
+                }
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Adds a piece copying a block of the stored content.
+     */
+    public void copy(long target, int sourceBlock) {
+        targets.add(target);
+        sources.add(sourceBlock);
+        literals.add(null);
+    }
+
+    /**
+     * Adds a piece of literal bytes.
+     */
+    public void literal(long target, byte[] bytes) {
+        targets.add(target);
+        sources.add(LITERAL);
+        literals.add(bytes);
+    }
+
+    public int getBlockSize() {
+        return blockSize;
+    }
+
+    public long getLength() {
+        return length;
+    }
+
+    public int getPieceCount() {
+        return targets.size();
+    }
+
+    public long getTarget(int piece) {
+        return targets.get(piece);
+    }
+
+    /**
+     * @return The block copied by the specified piece, or <code>LITERAL</code>.
+     */
+    public int getSourceBlock(int piece) {
+        return sources.get(piece);
+    }
+
+    /**
+     * @return The bytes of the specified piece, <code>null</code> if it copies a block.
+     */
+    public byte[] getLiteral(int piece) {
+        return literals.get(piece);
+    }
+
+    /**
+     * @return The number of literal bytes, which is what sending the delta costs, apart from a
+     *         few bytes per piece.
+     */
+    public long getLiteralBytes() {
+        long bytes = 0;
+        for (byte[] literal : literals) {
+            if (literal != null) {
+                bytes += literal.length;
+            }
+        }
+        return bytes;
+    }
+}
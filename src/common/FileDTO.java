@@ -9,4 +9,9 @@ public interface FileDTO extends Serializable {
     public String getFileOwner();
     
     public String getFilePermission();
+
+    /**
+     * @return The number of times the file has been updated. Used to detect concurrent updates.
+     */
+    public int getFileVersion();
 }
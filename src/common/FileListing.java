@@ -0,0 +1,194 @@
+package common;
+
+import java.io.Externalizable;
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+import java.util.AbstractList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A list of files, as returned by <code>Server.list</code>. The files are sent column by column in
+ * a compact encoding: owners are replaced by indexes into a table of distinct owners, permissions
+ * are one bit per file, and sizes, versions and owner indexes are variable length integers.
+ */
+public class FileListing extends AbstractList<FileDTO> implements Externalizable {
+    private static final long serialVersionUID = 1L;
+    private String[] names;
+    private String[] owners;
+    private int[] ownerIndexes;
+    private int[] sizes;
+    private int[] versions;
+    private byte[] readWrite;
+
+    /**
+     * Required by <code>Externalizable</code>, creates an empty listing.
+     */
+    public FileListing() {
+        this(Collections.emptyList());
+    }
+
+    /**
+     * Creates a listing of the specified files.
+     */
+    public FileListing(List<? extends FileDTO> files) {
+        int count = files.size();
+        names = new String[count];
+        ownerIndexes = new int[count];
+        sizes = new int[count];
+        versions = new int[count];
+        readWrite = new byte[(count + 7) / 8];
+        Map<String, Integer> ownerTable = new HashMap<>();
+        for (int i = 0; i < count; i++) {
+            FileDTO file = files.get(i);
+            names[i] = file.getFileName();
+            Integer ownerIndex = ownerTable.putIfAbsent(file.getFileOwner(), ownerTable.size());
+            ownerIndexes[i] = ownerIndex == null ? ownerTable.size() - 1 : ownerIndex;
+            sizes[i] = file.getFileSize();
+            versions[i] = file.getFileVersion();
+            if ("RW".equals(file.getFilePermission())) {
+                readWrite[i / 8] |= 1 << (i % 8);
+            }
+        }
+        owners = new String[ownerTable.size()];
+        for (Map.Entry<String, Integer> owner : ownerTable.entrySet()) {
+            owners[owner.getValue()] = owner.getKey();
+        }
+    }
+
+    @Override
+    public FileDTO get(int index) {
+        if (index < 0 || index >= names.length) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", size: " + names.length);
+        }
+        return new Row(names[index], sizes[index], owners[ownerIndexes[index]],
+                       (readWrite[index / 8] & (1 << (index % 8))) != 0 ? "RW" : "RO", versions[index]);
+    }
+
+    @Override
+    public int size() {
+        return names.length;
+    }
+
+    @Override
+    public void writeExternal(ObjectOutput out) throws IOException {
+        writeVarInt(out, names.length);
+        writeVarInt(out, owners.length);
+        for (String owner : owners) {
+            out.writeUTF(owner == null ? "" : owner);
+        }
+        for (String name : names) {
+            out.writeUTF(name);
+        }
+        for (int ownerIndex : ownerIndexes) {
+            writeVarInt(out, ownerIndex);
+        }
+        for (int size : sizes) {
+            writeVarInt(out, size);
+        }
+        for (int version : versions) {
+            writeVarInt(out, version);
+        }
+        out.write(readWrite);
+    }
+
+    @Override
+    public void readExternal(ObjectInput in) throws IOException {
+        int count = readVarInt(in);
+        owners = new String[readVarInt(in)];
+        for (int i = 0; i < owners.length; i++) {
+            owners[i] = in.readUTF();
+        }
+        names = new String[count];
+        for (int i = 0; i < count; i++) {
+            names[i] = in.readUTF();
+        }
+        ownerIndexes = readVarInts(in, count);
+        sizes = readVarInts(in, count);
+        versions = readVarInts(in, count);
+        readWrite = new byte[(count + 7) / 8];
+        in.readFully(readWrite);
+    }
+
+    /**
+     * Writes an int in as few bytes as possible, seven bits per byte. Negative values are zigzag
+     * encoded first, so that small negative values also become short.
+     */
+    private static void writeVarInt(ObjectOutput out, int value) throws IOException {
+        int zigzag = (value << 1) ^ (value >> 31);
+        while ((zigzag & ~0x7F) != 0) {
+            out.writeByte((zigzag & 0x7F) | 0x80);
+            zigzag >>>= 7;
+        }
+        out.writeByte(zigzag);
+    }
+
+    private static int readVarInt(ObjectInput in) throws IOException {
+        int zigzag = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            int b = in.readUnsignedByte();
+            zigzag |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return (zigzag >>> 1) ^ -(zigzag & 1);
+            }
+        }
+        throw new IOException("Malformed variable length integer.");
+    }
+
+    private static int[] readVarInts(ObjectInput in, int count) throws IOException {
+        int[] values = new int[count];
+        for (int i = 0; i < count; i++) {
+            values[i] = readVarInt(in);
+        }
+        return values;
+    }
+
+    /**
+     * One file of the listing, holding a copy of its values so that it can be kept, or serialized
+     * on its own, apart from the listing.
+     */
+    private static class Row implements FileDTO {
+        private static final long serialVersionUID = 1L;
+        private final String name;
+        private final int size;
+        private final String owner;
+        private final String permission;
+        private final int version;
+
+        Row(String name, int size, String owner, String permission, int version) {
+            this.name = name;
+            this.size = size;
+            this.owner = owner;
+            this.permission = permission;
+            this.version = version;
+        }
+
+        @Override
+        public String getFileName() {
+            return name;
+        }
+
+        @Override
+        public int getFileSize() {
+            return size;
+        }
+
+        @Override
+        public String getFileOwner() {
+            return owner;
+        }
+
+        @Override
+        public String getFilePermission() {
+            return permission;
+        }
+
+        @Override
+        public int getFileVersion() {
+            return version;
+        }
+    }
+}
@@ -0,0 +1,13 @@
+package common;
+
+/**
+ * Thrown when a file can not be stored, since it would take its owner over the number of files or
+ * the number of bytes the owner is allowed.
+ */
+public class QuotaExceededException extends Exception {
+    private static final long serialVersionUID = 1L;
+
+    public QuotaExceededException(String msg) {
+        super(msg);
+    }
+}
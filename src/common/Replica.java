@@ -0,0 +1,49 @@
+package common;
+
+import java.rmi.Remote;
+import java.rmi.RemoteException;
+import java.util.List;
+import server.model.File;
+import server.model.Mutation;
+
+/**
+ * Calls made by the primary node to its replicas.
+ */
+public interface Replica extends Remote {
+    /**
+     * Returned by <code>applyMutations</code> when the replica does not follow the specified log
+     * from where the mutations start, and must first be sent a snapshot.
+     */
+    long RESYNC = -1;
+
+    /**
+     * Applies the specified mutations, in order, to the replica's own store. Mutations that have
+     * already been applied are skipped. Applying stops at a mutation that fails.
+     *
+     * @param epoch     Identifies the primary's log. Sequence numbers start over when it changes.
+     * @param mutations The mutations to apply, may be empty to learn where the replica is.
+     * @return The sequence number of the last mutation that has been applied, or
+     *         <code>RESYNC</code> if the replica follows another log, or is missing mutations
+     *         preceding the specified ones.
+     * @throws RemoteException If the replica could not be reached, or is not a replica.
+     */
+    long applyMutations(long epoch, List<Mutation> mutations) throws RemoteException;
+
+    /**
+     * Installs one part of a snapshot of the primary, replacing the replica's files and adding
+     * its missing accounts. The parts are sent in order, and once the last part is installed,
+     * files that were in none of them are removed, and the replica follows the specified log
+     * from the specified sequence number.
+     *
+     * @param epoch    Identifies the primary's log.
+     * @param sequence The last mutation of the log that the snapshot includes.
+     * @param files    The files of this part.
+     * @param accounts The accounts of this part.
+     * @param first    <code>true</code> for the first part, which starts a new snapshot.
+     * @param last     <code>true</code> for the last part.
+     * @throws RemoteException If the replica could not be reached, is not a replica, or failed to
+     *                         install the part, in which case the snapshot must be sent again.
+     */
+    void installSnapshot(long epoch, long sequence, List<File> files, List<Credentials> accounts,
+                         boolean first, boolean last) throws RemoteException;
+}
@@ -0,0 +1,53 @@
+package common;
+
+/**
+ * The weak checksum of a window of bytes, which can be moved forward one byte at a time in
+ * constant time. Two 16-bit sums are kept: <code>a</code>, the sum of the bytes in the window, and
+ * <code>b</code>, the sum of the bytes weighted by their distance from the end of the window.
+ */
+public class RollingChecksum {
+    private int a;
+    private int b;
+    private int window;
+
+    /**
+     * @return The checksum of the specified bytes.
+     */
+    public static int of(byte[] data, int offset, int length) {
+        RollingChecksum checksum = new RollingChecksum();
+        checksum.reset(data, offset, length);
+        return checksum.value();
+    }
+
+    /**
+     * Makes the window the specified bytes.
+     */
+    public void reset(byte[] data, int offset, int length) {
+        a = 0;
+        b = 0;
+        window = length;
+        for (int i = 0; i < length; i++) {
+            int x = data[offset + i] & 0xFF;
+            a += x;
+            b += (length - i) * x;
+        }
+        a &= 0xFFFF;
+        b &= 0xFFFF;
+    }
+
+    /**
+     * Moves the window forward one byte.
+     *
+     * @param out The first byte of the window, which leaves it.
+     * @param in  The byte after the window, which enters it.
+     */
+    public void roll(byte out, byte in) {
+        int x = out & 0xFF;
+        a = (a - x + (in & 0xFF)) & 0xFFFF;
+        b = (b - window * x + a) & 0xFFFF;
+    }
+
+    public int value() {
+        return (b << 16) | a;
+    }
+}
@@ -2,9 +2,7 @@ package common;
 
 import java.rmi.Remote;
 import java.rmi.RemoteException;
-import java.util.List;
 import server.integration.CatalogDBException;
-import server.model.File;
 
 /**
  *
@@ -12,21 +10,106 @@ import server.model.File;
  */
 public interface Server extends Remote{
     public static final String SERVER_NAME_IN_REGISTRY = "Server";
+    /**
+     * Cluster nodes are bound under this prefix followed by the node name.
+     */
+    public static final String CLUSTER_PREFIX_IN_REGISTRY = SERVER_NAME_IN_REGISTRY + "/";
     
     long login(Client remoteNode, Credentials credentials) throws RemoteException;
     
     void logout(long id) throws RemoteException;
     
-    List<File> list() throws RemoteException, CatalogDBException;
+    FileListing list() throws RemoteException, CatalogDBException;
     
     FileDTO open(String filename, long id) throws RemoteException, CatalogDBException;
     
-    void upload(long id, String filename, int size, String permission) throws RemoteException;
+    /**
+     * Stores a new file, owned by the caller.
+     *
+     * @throws QuotaExceededException If the file would take the caller over their quota.
+     */
+    void upload(long id, String filename, int size, String permission) throws RemoteException, CatalogDBException, QuotaExceededException;
     
     void delete(String filename, long id) throws RemoteException, CatalogDBException;
     
-    void update(String filename, int newSize, long id) throws RemoteException, CatalogDBException;
+    /**
+     * Sets the size of the specified file, provided that it has not been updated since the caller
+     * read the specified version of it.
+     *
+     * @param filename        The file to update.
+     * @param newSize         The new size.
+     * @param expectedVersion The version of the file the update is based on.
+     * @param id              The caller's session id.
+     * @return Whether the file was updated, and if not, why.
+     */
+    UpdateResult update(String filename, int newSize, int expectedVersion, long id) throws RemoteException, CatalogDBException;
+
+    /**
+     * @param filename The file whose content to describe.
+     * @param id       The caller's session id.
+     * @return The checksums of the blocks of the file's stored content, which is empty if no
+     *         content has been stored, or <code>null</code> if there is no such file.
+     * @throws CatalogDBException If this node does not store file content.
+     */
+    BlockSignatures signatures(String filename, long id) throws RemoteException, CatalogDBException;
+
+    /**
+     * Changes the stored content of a file, and sets its size to the length of the new content,
+     * provided that it has not been updated since the caller read the specified version of it.
+     *
+     * @param filename        The file to update.
+     * @param delta           The changes, computed against the signatures of
+     *                        <code>expectedVersion</code>.
+     * @param expectedVersion The version of the file the delta is based on.
+     * @param id              The caller's session id.
+     * @return Whether the file was updated, and if not, why.
+     * @throws CatalogDBException If this node does not store file content, or the delta does not
+     *                            fit the stored content.
+     */
+    UpdateResult applyDelta(String filename, Delta delta, int expectedVersion, long id) throws RemoteException, CatalogDBException;
     
+    /**
+     * @param id The caller's session id.
+     * @return The number of files the caller owns and their total size. This is kept up to date by
+     *         the server, no files are read to answer the call.
+     */
+    Usage usage(long id) throws RemoteException;
+
+    /**
+     * @param id    The caller's session id.
+     * @param count The largest number of files and users to report, which the server may lower.
+     * @return The files opened, updated and deleted most often at this node recently, and the
+     *         users doing so most often, or <code>null</code> if the caller is not logged in.
+     */
+    AccessReport accessReport(long id, int count) throws RemoteException, CatalogDBException;
+
     boolean register(Credentials credentials) throws RemoteException, CatalogDBException;
 
+    /**
+     * Subscribes the caller to events (opens, uploads, updates and deletes) of a file, or of all
+     * files whose names start with a prefix. Events are delivered through <code>Client.recvMsg</code>
+     * as <code>EVENT##operation##user##filename</code>. Subscriptions end when the session ends.
+     *
+     * @param id      The caller's session id.
+     * @param pattern A filename, or a filename prefix.
+     * @param prefix  <code>true</code> if <code>pattern</code> is a prefix.
+     */
+    void subscribe(long id, String pattern, boolean prefix) throws RemoteException;
+
+    /**
+     * Removes a subscription made with <code>subscribe</code>.
+     */
+    void unsubscribe(long id, String pattern, boolean prefix) throws RemoteException;
+
+    /**
+     * @return <code>false</code> if this node is a read-only replica.
+     */
+    boolean acceptsWrites() throws RemoteException;
+
+    /**
+     * @return The port on which this node also offers its operations over
+     *         <code>BinaryProtocol</code>, or zero if it does not.
+     */
+    int binaryPort() throws RemoteException;
+
 }
@@ -0,0 +1,15 @@
+package common;
+
+import java.rmi.RemoteException;
+
+/**
+ * Thrown when the server is overloaded and rejects a call without performing it. The call can be
+ * retried later.
+ */
+public class ServerBusyException extends RemoteException {
+    private static final long serialVersionUID = 1L;
+
+    public ServerBusyException(String msg) {
+        super(msg);
+    }
+}
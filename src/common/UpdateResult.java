@@ -0,0 +1,28 @@
+package common;
+
+/**
+ * The outcome of an update of a file.
+ */
+public enum UpdateResult {
+    /**
+     * The file was updated.
+     */
+    UPDATED,
+    /**
+     * The file was not updated, since it had been updated by someone else after the version that
+     * the update was based on. The file must be read again before retrying.
+     */
+    CONFLICT,
+    /**
+     * The file was not updated, since the user is not permitted to write it.
+     */
+    DENIED,
+    /**
+     * There is no such file.
+     */
+    NOT_FOUND,
+    /**
+     * The file was not updated, since the new size would take its owner over their quota.
+     */
+    QUOTA_EXCEEDED
+}
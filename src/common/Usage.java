@@ -0,0 +1,41 @@
+package common;
+
+import java.io.Serializable;
+
+/**
+ * The number of files a user owns, and their total size.
+ */
+public final class Usage implements Serializable {
+    private static final long serialVersionUID = 1L;
+    /**
+     * The usage of a user without files.
+     */
+    public static final Usage NONE = new Usage(0, 0);
+    private final int fileCount;
+    private final long totalBytes;
+
+    public Usage(int fileCount, long totalBytes) {
+        this.fileCount = fileCount;
+        this.totalBytes = totalBytes;
+    }
+
+    public int getFileCount() {
+        return fileCount;
+    }
+
+    public long getTotalBytes() {
+        return totalBytes;
+    }
+
+    /**
+     * @return This usage with the specified differences added.
+     */
+    public Usage plus(int files, long bytes) {
+        return new Usage(fileCount + files, totalBytes + bytes);
+    }
+
+    @Override
+    public String toString() {
+        return fileCount + " files, " + totalBytes + " bytes";
+    }
+}
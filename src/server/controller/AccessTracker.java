@@ -0,0 +1,75 @@
+package server.controller;
+
+import common.AccessReport;
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * Counts the accesses to each file and by each user in a <code>TopKSketch</code>, to find the
+ * hottest files and the most active users. Recording an access only increments counters, it never
+ * blocks. Registered as an MBean.
+ */
+class AccessTracker implements AccessTrackerMBean {
+    private final TopKSketch files;
+    private final TopKSketch users;
+    private final int reported;
+
+    /**
+     * @param width         The number of counters per row of each sketch.
+     * @param reported      The number of files and users reported through JMX, and kept as
+     *                      candidates.
+     * @param windowSeconds The length of a counting window.
+     */
+    AccessTracker(int width, int reported, long windowSeconds) {
+        this.reported = reported;
+        this.files = new TopKSketch(width, reported, windowSeconds * 1000);
+        this.users = new TopKSketch(width, reported, windowSeconds * 1000);
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName("server:type=AccessTracker"));
+        } catch (JMException ex) {
+            Logger.getLogger(AccessTracker.class.getName()).log(Level.WARNING, null, ex);
+        }
+    }
+
+    /**
+     * Records an access to a file.
+     *
+     * @param filename The file.
+     * @param username The user, <code>null</code> if unknown.
+     */
+    void record(String filename, String username) {
+        files.add(filename);
+        if (username != null)
+            users.add(username);
+    }
+
+    /**
+     * @return At most <code>count</code> of the hottest files and most active users.
+     */
+    AccessReport report(int count) {
+        return new AccessReport(getPeriodSeconds(), files.top(count), users.top(count));
+    }
+
+    @Override
+    public String[] getHotFiles() {
+        return format(files.top(reported));
+    }
+
+    @Override
+    public String[] getActiveUsers() {
+        return format(users.top(reported));
+    }
+
+    @Override
+    public long getPeriodSeconds() {
+        return 2 * files.getWindowMillis() / 1000;
+    }
+
+    private static String[] format(Map<String, Long> counts) {
+        return counts.entrySet().stream().map(count -> count.getKey() + "=" + count.getValue()).toArray(String[]::new);
+    }
+}
@@ -0,0 +1,21 @@
+package server.controller;
+
+/**
+ * The most accessed files and most active users, as seen by JMX clients.
+ */
+public interface AccessTrackerMBean {
+    /**
+     * @return The most accessed files, as <code>filename=count</code>, the most accessed first.
+     */
+    String[] getHotFiles();
+
+    /**
+     * @return The most active users, as <code>username=count</code>, the most active first.
+     */
+    String[] getActiveUsers();
+
+    /**
+     * @return The length of the period counts are kept for, twice the window length.
+     */
+    long getPeriodSeconds();
+}
@@ -0,0 +1,105 @@
+package server.controller;
+
+import common.ServerBusyException;
+import java.rmi.RemoteException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import server.integration.CatalogDBException;
+
+/**
+ * Decides which calls the server accepts, and runs them. Reads, writes and notifications execute
+ * in separate bulkheads, so that a flood of one kind does not starve the others, and every session
+ * is limited to a number of calls per second. Calls that can not be accepted are rejected at once
+ * with a <code>ServerBusyException</code>.
+ *
+ * The limits are set with system properties starting with <code>PROPERTY_PREFIX</code>, see the
+ * constructor.
+ */
+class AdmissionControl {
+    static final String PROPERTY_PREFIX = "catalog.admission.";
+    private final Bulkhead reads = bulkhead("read", 16, 64);
+    private final Bulkhead writes = bulkhead("write", 8, 64);
+    private final Bulkhead notifications = bulkhead("notification", 4, 1024);
+    private final double callsPerSecond = Double.parseDouble(
+            System.getProperty(PROPERTY_PREFIX + "sessionCallsPerSecond", "50"));
+    private final double burst = Double.parseDouble(
+            System.getProperty(PROPERTY_PREFIX + "sessionBurst", "100"));
+    private final Map<Long, RateLimit> sessionLimits = new ConcurrentHashMap<>();
+
+    private static Bulkhead bulkhead(String name, int defaultThreads, int defaultQueueSize) {
+        return new Bulkhead(name, Integer.getInteger(PROPERTY_PREFIX + name + "Threads", defaultThreads),
+                            Integer.getInteger(PROPERTY_PREFIX + name + "Queue", defaultQueueSize));
+    }
+
+    /**
+     * Performs a read on behalf of the specified session, which is zero if the caller has no session.
+     */
+    <T> T read(long sessionId, Bulkhead.Operation<T> operation) throws RemoteException, CatalogDBException {
+        admit(sessionId);
+        return reads.call(operation);
+    }
+
+    /**
+     * Performs a write on behalf of the specified session, which is zero if the caller has no session.
+     */
+    <T> T write(long sessionId, Bulkhead.Operation<T> operation) throws RemoteException, CatalogDBException {
+        admit(sessionId);
+        return writes.call(operation);
+    }
+
+    /**
+     * Delivers a notification in the background. Notifications are dropped if too many are waiting.
+     */
+    void notify(Runnable delivery) {
+        if (!notifications.submit(delivery)) {
+            Logger.getLogger(AdmissionControl.class.getName()).log(Level.WARNING,
+                    "Notification dropped, too many are waiting.");
+        }
+    }
+
+    /**
+     * Forgets the rate limit of a session that has ended.
+     */
+    void endSession(long sessionId) {
+        sessionLimits.remove(sessionId);
+    }
+
+    private void admit(long sessionId) throws ServerBusyException {
+        if (sessionId == 0) {
+            return;
+        }
+        RateLimit limit = sessionLimits.computeIfAbsent(sessionId, id -> new RateLimit(callsPerSecond, burst));
+        if (!limit.tryAcquire()) {
+            throw new ServerBusyException("Too many calls from this session, try again later.");
+        }
+    }
+
+    /**
+     * A token bucket, refilled at a constant rate.
+     */
+    private static class RateLimit {
+        private final double tokensPerNano;
+        private final double capacity;
+        private double tokens;
+        private long lastRefill = System.nanoTime();
+
+        RateLimit(double perSecond, double capacity) {
+            this.tokensPerNano = perSecond / 1_000_000_000.0;
+            this.capacity = capacity;
+            this.tokens = capacity;
+        }
+
+        synchronized boolean tryAcquire() {
+            long now = System.nanoTime();
+            tokens = Math.min(capacity, tokens + (now - lastRefill) * tokensPerNano);
+            lastRefill = now;
+            if (tokens < 1) {
+                return false;
+            }
+            tokens--;
+            return true;
+        }
+    }
+}
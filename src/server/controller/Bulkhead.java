@@ -0,0 +1,100 @@
+package server.controller;
+
+import common.ServerBusyException;
+import java.rmi.RemoteException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import server.integration.CatalogDBException;
+import server.trace.Trace;
+
+/**
+ * A bounded pool of threads for one kind of work. At most <code>threads</code> tasks execute at
+ * the same time and at most <code>queueSize</code> wait. Tasks beyond that are rejected at once,
+ * instead of piling up and slowing down all other tasks. Tasks join the trace of the thread
+ * submitting them, their span includes the time they waited in the queue.
+ */
+class Bulkhead {
+    private final String name;
+    private final ThreadPoolExecutor executor;
+
+    /**
+     * Work performed in a bulkhead.
+     */
+    interface Operation<T> {
+        T perform() throws RemoteException, CatalogDBException;
+    }
+
+    Bulkhead(String name, int threads, int queueSize) {
+        this.name = name;
+        this.executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                                               new ArrayBlockingQueue<>(queueSize), task -> {
+            Thread thread = new Thread(task, "bulkhead-" + name);
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Performs the specified operation in this bulkhead and waits for its result.
+     *
+     * @throws ServerBusyException If the bulkhead is full.
+     */
+    @SuppressWarnings("try")
+    <T> T call(Operation<T> operation) throws RemoteException, CatalogDBException {
+        Future<T> result;
+        Trace.Context context = Trace.context();
+        try {
+            result = executor.submit(() -> {
+                try (Trace.Span span = context.enter("bulkhead." + name)) {
+                    return operation.perform();
+                }
+            });
+        } catch (RejectedExecutionException full) {
+            throw new ServerBusyException("Too many " + name + " requests, try again later.");
+        }
+        try {
+            return result.get();
+        } catch (ExecutionException ex) {
+            Throwable cause = ex.getCause();
+            if (cause instanceof RemoteException) {
+                throw (RemoteException) cause;
+            }
+            if (cause instanceof CatalogDBException) {
+                throw (CatalogDBException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new RemoteException("Failed to perform " + name + " request.", cause);
+        } catch (InterruptedException ex) {
+            result.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new RemoteException("Interrupted while performing " + name + " request.", ex);
+        }
+    }
+
+    /**
+     * Performs the specified task in this bulkhead without waiting for it.
+     *
+     * @return <code>false</code> if the bulkhead is full and the task was dropped.
+     */
+    @SuppressWarnings("try")
+    boolean submit(Runnable task) {
+        Trace.Context context = Trace.fork();
+        try {
+            executor.execute(() -> {
+                try (Trace.Span span = context.enter("bulkhead." + name)) {
+                    task.run();
+                }
+            });
+            return true;
+        } catch (RejectedExecutionException full) {
+            context.abandon();
+            return false;
+        }
+    }
+}
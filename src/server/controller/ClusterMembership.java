@@ -0,0 +1,81 @@
+package server.controller;
+
+import common.ClusterPeer;
+import common.Server;
+import java.net.MalformedURLException;
+import java.rmi.Naming;
+import java.rmi.NotBoundException;
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Publishes a server node in the RMI registry and finds the other nodes of the cluster. Every node
+ * is bound under <code>Server/&lt;node name&gt;</code>, the set of such bindings is the cluster
+ * membership.
+ */
+public class ClusterMembership {
+    private final String nodeName;
+
+    /**
+     * @param nodeName The name of this node, unique within the cluster.
+     */
+    public ClusterMembership(String nodeName) {
+        this.nodeName = nodeName;
+    }
+
+    /**
+     * @return The registry name of the specified node.
+     */
+    public static String registryName(String nodeName) {
+        return Server.CLUSTER_PREFIX_IN_REGISTRY + nodeName;
+    }
+
+    public String getNodeName() {
+        return nodeName;
+    }
+
+    /**
+     * Binds the specified node in the local registry, making it a member of the cluster.
+     */
+    public void join(Server node) throws RemoteException, MalformedURLException {
+        Naming.rebind(registryName(nodeName), node);
+    }
+
+    /**
+     * Removes this node from the cluster.
+     */
+    public void leave() {
+        try {
+            Naming.unbind(registryName(nodeName));
+        } catch (RemoteException | NotBoundException | MalformedURLException ex) {
+            Logger.getLogger(ClusterMembership.class.getName()).log(Level.FINE, null, ex);
+        }
+    }
+
+    /**
+     * @return All other nodes currently bound in the registry. Nodes that can not be looked up
+     *         are left out.
+     */
+    public List<ClusterPeer> peers() {
+        List<ClusterPeer> peers = new ArrayList<>();
+        try {
+            for (String name : Naming.list("//localhost/")) {
+                int prefixStart = name.indexOf(Server.CLUSTER_PREFIX_IN_REGISTRY);
+                if (prefixStart < 0 || name.substring(prefixStart).equals(registryName(nodeName))) {
+                    continue;
+                }
+                try {
+                    peers.add((ClusterPeer) Naming.lookup(name));
+                } catch (NotBoundException | RemoteException lookupFailed) {
+                    Logger.getLogger(ClusterMembership.class.getName()).log(Level.FINE, null, lookupFailed);
+                }
+            }
+        } catch (RemoteException | MalformedURLException ex) {
+            Logger.getLogger(ClusterMembership.class.getName()).log(Level.WARNING, null, ex);
+        }
+        return peers;
+    }
+}
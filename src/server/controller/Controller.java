@@ -1,118 +1,737 @@
 package server.controller;
 
+import common.AccessReport;
+import common.BlockSignatures;
 import common.Client;
+import common.ClusterPeer;
 import common.Credentials;
+import common.Delta;
 import common.FileDTO;
+import common.FileListing;
+import common.MessageException;
+import common.Replica;
 import common.Server;
+import common.ServerBusyException;
+import common.QuotaExceededException;
+import common.UpdateResult;
+import common.Usage;
 import java.rmi.RemoteException;
 import java.rmi.server.UnicastRemoteObject;
 import java.util.Random;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import server.integration.AuditJournal;
+import server.integration.AuditRecord;
+import server.integration.AuditRecord.Operation;
 import server.integration.CatalogDBException;
+import server.integration.ContentStore;
 import server.model.UserManager;
 import server.model.Catalog;
 import server.model.File;
+import server.model.Mutation;
+import server.model.ReplicationLog;
+import server.model.SubscriptionIndex;
+import server.model.User;
+import server.net.BinaryProtocolServer;
+import java.util.Collections;
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.locks.Lock;
+import java.util.function.Function;
+import server.trace.Trace;
 
 /**
  *
  * @author yuchen
  */
-public class Controller  extends UnicastRemoteObject implements Server {
-    private final String dbms = "derby";
+public class Controller  extends UnicastRemoteObject implements Server, ClusterPeer, Replica {
+    private final String dbms = engine();
     private final String datasource = "CatalogDB";
+    /**
+     * System property selecting the storage engine: <code>derby</code> (default) stores the catalog
+     * in Derby databases, <code>log</code> in an embedded append-only log, in which case each
+     * datasource is the directory of a log.
+     */
+    public static final String ENGINE_PROPERTY = "catalog.engine";
+    /**
+     * System property holding a comma separated list of shard datasources. The first shard also
+     * holds the user accounts. Defaults to <code>datasource</code>.
+     */
+    public static final String SHARDS_PROPERTY = "catalog.shards";
+    /**
+     * System property deciding whether this node is the <code>primary</code>, which accepts
+     * writes, or a <code>replica</code>, which only serves reads. Defaults to primary.
+     */
+    public static final String ROLE_PROPERTY = "catalog.role";
+    /**
+     * System property holding a comma separated list of the node names of the primary's replicas.
+     * The number of mutations kept for replicas that are behind is set with
+     * <code>REPLICAS_PROPERTY</code> followed by <code>.maxLogMutations</code>, replicas further
+     * behind are sent a snapshot.
+     */
+    public static final String REPLICAS_PROPERTY = "catalog.replicas";
+    private static final String REPLICA_ROLE = "replica";
+    /**
+     * The largest number of files and users an access report holds.
+     */
+    private static final int MAX_REPORTED_ACCESSES = 100;
+    /**
+     * System property that, when <code>true</code>, makes file mutations be written in shared
+     * transactions. The batch size and delay are set with <code>GROUP_COMMIT_PROPERTY</code>
+     * followed by <code>.maxBatch</code> and <code>.maxDelayMillis</code>.
+     */
+    public static final String GROUP_COMMIT_PROPERTY = "catalog.groupCommit";
+    /**
+     * System property holding the path of the catalog snapshot file. When set, the catalog is kept
+     * in memory and snapshotted every <code>SNAPSHOT_PROPERTY.intervalSeconds</code> (default 60)
+     * and at shutdown. Only for nodes that are the single writer of their datasources.
+     */
+    public static final String SNAPSHOT_PROPERTY = "catalog.snapshot";
+    /**
+     * System property holding the directory of the audit journal. No journal is kept if not set.
+     * The segment size in bytes is set with <code>AUDIT_PROPERTY.segmentSize</code>, the number
+     * of records that may wait to be written with <code>AUDIT_PROPERTY.queueCapacity</code>, and
+     * how often written records are forced to disk with <code>AUDIT_PROPERTY.forceIntervalMillis</code>.
+     */
+    public static final String AUDIT_PROPERTY = "catalog.audit";
+    /**
+     * Prefix of the system properties tuning the client callback circuit breakers:
+     * <code>failureThreshold</code>, <code>slowMillis</code>, <code>probeIntervalMillis</code> and
+     * <code>evictAfterMillis</code>.
+     */
+    public static final String CALLBACK_PROPERTY_PREFIX = "catalog.callback.";
+    /**
+     * Prefix of the system properties holding the quota of each user: <code>files</code>, the
+     * largest number of files, and <code>bytes</code>, their largest total size. Unlimited if not set.
+     */
+    public static final String QUOTA_PROPERTY_PREFIX = "catalog.quota.";
+    /**
+     * System property holding the port on which the operations are also offered over
+     * <code>BinaryProtocol</code>, zero meaning any free port. Not offered if not set. The number
+     * of threads performing binary protocol requests is set with
+     * <code>BINARY_PORT_PROPERTY.workers</code>.
+     */
+    public static final String BINARY_PORT_PROPERTY = "catalog.binary.port";
+    /**
+     * System property holding the directory where file content is stored. Content can not be
+     * stored if not set. The size of the blocks that are checksummed for delta updates is set with
+     * <code>CONTENT_PROPERTY.blockSize</code>. Content is only kept by the node it is written to.
+     */
+    public static final String CONTENT_PROPERTY = "catalog.content";
+    /**
+     * Prefix of the system properties tuning the tracking of hot files and active users:
+     * <code>windowSeconds</code>, the length of a counting window, <code>width</code>, the number of
+     * counters per row of the sketches, and <code>reported</code>, the number of files and users
+     * reported through JMX.
+     */
+    public static final String ACCESS_PROPERTY_PREFIX = "catalog.access.";
+    /**
+     * Prefix of the system properties configuring request tracing: <code>sampleRate</code>, the
+     * fraction of requests whose traces are logged (default 0), <code>slowMillis</code>, the latency
+     * above which traces are always logged (default 1000, negative to disable), and
+     * <code>log</code>, a file the traces are also written to.
+     */
+    public static final String TRACE_PROPERTY_PREFIX = "catalog.trace.";
     private final Random idGenerator = new Random();
     private final UserManager userMgr;
     private final Catalog cat;
+    private final ClusterMembership cluster;
+    private final AdmissionControl admission = new AdmissionControl();
+    private final SubscriptionIndex subscriptions = new SubscriptionIndex(this::isLoggedIn);
+    private final AccessTracker access = new AccessTracker(Integer.getInteger(ACCESS_PROPERTY_PREFIX + "width", 4096),
+                                                           Integer.getInteger(ACCESS_PROPERTY_PREFIX + "reported", 20),
+                                                           Long.getLong(ACCESS_PROPERTY_PREFIX + "windowSeconds", 60L));
+    private AuditJournal journal;
+    private ContentStore content;
+    private BinaryProtocolServer binaryServer;
+    private final boolean replica;
+    private ReplicationStats replicationStats;
+    private long appliedEpoch;
+    private long appliedSequence;
+    private Set<String> installing;
 
 
-    public Controller() throws RemoteException, CatalogDBException {
-        this.cat = new Catalog(dbms, datasource);
-        this.userMgr = new UserManager(dbms, datasource);
+    /**
+     * Creates a node exported on the specified port.
+     *
+     * @param port    The port on which this node accepts calls, zero means any port.
+     * @param cluster The cluster this node is a member of.
+     */
+    public Controller(int port, ClusterMembership cluster) throws RemoteException, CatalogDBException {
+        super(port);
+        Trace.configure(Double.parseDouble(System.getProperty(TRACE_PROPERTY_PREFIX + "sampleRate", "0")),
+                        Long.getLong(TRACE_PROPERTY_PREFIX + "slowMillis", 1000L));
+        String traceLog = System.getProperty(TRACE_PROPERTY_PREFIX + "log");
+        if (traceLog != null) {
+            try {
+                Trace.logTo(traceLog);
+            } catch (IOException ex) {
+                throw new RemoteException("Could not open trace log " + traceLog, ex);
+            }
+        }
+        this.cluster = cluster;
+        this.cat = new Catalog(dbms, shards(datasource));
+        cat.setQuota(Integer.getInteger(QUOTA_PROPERTY_PREFIX + "files", Integer.MAX_VALUE),
+                     Long.getLong(QUOTA_PROPERTY_PREFIX + "bytes", Long.MAX_VALUE));
+        this.userMgr = new UserManager(cat.getAccountStore());
+        userMgr.monitorCallbacks(Integer.getInteger(CALLBACK_PROPERTY_PREFIX + "failureThreshold", 3),
+                                 Long.getLong(CALLBACK_PROPERTY_PREFIX + "slowMillis", 2000L),
+                                 Long.getLong(CALLBACK_PROPERTY_PREFIX + "probeIntervalMillis", 10000L),
+                                 Long.getLong(CALLBACK_PROPERTY_PREFIX + "evictAfterMillis", 60000L),
+                                 this::sessionEvicted);
+        String snapshotFile = System.getProperty(SNAPSHOT_PROPERTY);
+        if (snapshotFile != null) {
+            cat.enableSnapshots(Paths.get(snapshotFile),
+                                Long.getLong(SNAPSHOT_PROPERTY + ".intervalSeconds", 60L));
+        }
+        if (Boolean.getBoolean(GROUP_COMMIT_PROPERTY)) {
+            cat.enableGroupCommit(Integer.getInteger(GROUP_COMMIT_PROPERTY + ".maxBatch", 64),
+                                  Long.getLong(GROUP_COMMIT_PROPERTY + ".maxDelayMillis", 5L));
+        }
+        String auditDirectory = System.getProperty(AUDIT_PROPERTY);
+        if (auditDirectory != null) {
+            try {
+                journal = new AuditJournal(Paths.get(auditDirectory),
+                                           Integer.getInteger(AUDIT_PROPERTY + ".segmentSize", 64 << 20),
+                                           Integer.getInteger(AUDIT_PROPERTY + ".queueCapacity", 1 << 16),
+                                           Long.getLong(AUDIT_PROPERTY + ".forceIntervalMillis", 1000L));
+            } catch (IOException ex) {
+                throw new CatalogDBException("Could not open audit journal.", ex);
+            }
+        }
+        String contentDirectory = System.getProperty(CONTENT_PROPERTY);
+        if (contentDirectory != null) {
+            try {
+                content = new ContentStore(Paths.get(contentDirectory),
+                                           Integer.getInteger(CONTENT_PROPERTY + ".blockSize", 2048));
+            } catch (IOException ex) {
+                throw new CatalogDBException("Could not open content store.", ex);
+            }
+        }
+        Integer binaryPort = Integer.getInteger(BINARY_PORT_PROPERTY);
+        if (binaryPort != null) {
+            try {
+                binaryServer = new BinaryProtocolServer(this, binaryPort,
+                                                        Integer.getInteger(BINARY_PORT_PROPERTY + ".workers", 32));
+            } catch (IOException ex) {
+                throw new RemoteException("Could not open binary protocol port " + binaryPort, ex);
+            }
+        }
+        this.replica = REPLICA_ROLE.equalsIgnoreCase(System.getProperty(ROLE_PROPERTY));
+        if (replica) {
+            replicationStats = new ReplicationStats(cluster.getNodeName());
+        } else {
+            startReplication(split(System.getProperty(REPLICAS_PROPERTY, "")));
+        }
+    }
+
+    private void startReplication(List<String> replicas) {
+        if (replicas.isEmpty())
+            return;
+        ReplicationLog log = new ReplicationLog(replicas,
+                                                Integer.getInteger(REPLICAS_PROPERTY + ".maxLogMutations", 100_000));
+        cat.replicateTo(log);
+        userMgr.replicateTo(log);
+        for (String replicaName : replicas) {
+            new ReplicaShipper(replicaName, log, cat).start();
+        }
+    }
+
+    /**
+     * @return The shard datasources configured by <code>SHARDS_PROPERTY</code>, or only the
+     *         specified default datasource if the property is not set.
+     */
+    public static List<String> shards(String defaultDatasource) {
+        return split(System.getProperty(SHARDS_PROPERTY, defaultDatasource));
+    }
+
+    /**
+     * @return The storage engine configured by <code>ENGINE_PROPERTY</code>.
+     */
+    public static String engine() {
+        return System.getProperty(ENGINE_PROPERTY, "derby");
+    }
+
+    private static List<String> split(String commaSeparated) {
+        if (commaSeparated.trim().isEmpty())
+            return Collections.emptyList();
+        return Arrays.asList(commaSeparated.trim().split("\\s*,\\s*"));
+    }
+
+    /**
+     * Saves state that should survive a restart. Called when the server is shutting down.
+     */
+    public void shutdown() {
+        if (binaryServer != null)
+            binaryServer.close();
+        cat.writeSnapshot();
+        if (journal != null)
+            journal.close();
+    }
+
+    @Override
+    public boolean acceptsWrites() {
+        return !replica;
+    }
+
+    @Override
+    public int binaryPort() {
+        return binaryServer == null ? 0 : binaryServer.port();
+    }
+
+    private void checkWritable() throws CatalogDBException {
+        if (replica)
+            throw new CatalogDBException("This node is a read-only replica.");
+    }
+
+    private void checkReplica() throws RemoteException {
+        if (!replica)
+            throw new RemoteException("This node is not a replica.");
+    }
+
+    @Override
+    public synchronized long applyMutations(long epoch, List<Mutation> mutations) throws RemoteException {
+        checkReplica();
+        if (epoch != appliedEpoch)
+            return Replica.RESYNC;
+        if (!mutations.isEmpty() && mutations.get(0).sequence > appliedSequence + 1)
+            return Replica.RESYNC;
+        for (Mutation mutation : mutations) {
+            if (mutation.sequence <= appliedSequence)
+                continue;
+            try {
+                if (mutation.type == Mutation.Type.REGISTER)
+                    userMgr.apply(mutation);
+                else
+                    cat.apply(mutation);
+            } catch (CatalogDBException ex) {
+                Logger.getLogger(Controller.class.getName()).log(Level.SEVERE,
+                        "Could not apply mutation " + mutation.sequence + " (" + mutation.type + ")", ex);
+                break;
+            }
+            appliedSequence = mutation.sequence;
+            replicationStats.update(mutations.get(mutations.size() - 1).sequence, appliedSequence,
+                                    System.currentTimeMillis() - mutation.timestamp);
+        }
+        return appliedSequence;
+    }
+
+    @Override
+    public synchronized void installSnapshot(long epoch, long sequence, List<File> files, List<Credentials> accounts,
+                                             boolean first, boolean last) throws RemoteException {
+        checkReplica();
+        if (first) {
+            installing = new HashSet<>();
+            appliedEpoch = 0;
+            appliedSequence = 0;
+        } else if (installing == null) {
+            throw new RemoteException("No snapshot is being installed.");
+        }
+        try {
+            for (Credentials account : accounts)
+                userMgr.install(account);
+            for (File file : files) {
+                cat.install(file);
+                installing.add(file.getFileName());
+            }
+            if (last) {
+                cat.retainOnly(installing);
+                installing = null;
+                appliedEpoch = epoch;
+                appliedSequence = sequence;
+                replicationStats.update(sequence, sequence, 0);
+            }
+        } catch (CatalogDBException ex) {
+            installing = null;
+            throw new RemoteException("Could not install the snapshot.", ex);
+        }
     }
     
     @Override
+    @SuppressWarnings("try")
     public boolean register(Credentials credentials) throws RemoteException, CatalogDBException{
-        return  userMgr.register(credentials);
+        try (Trace trace = Trace.begin("REGISTER", credentials.getUsername())) {
+            checkWritable();
+            return audited(Operation.REGISTER, 0, credentials.getUsername(), null,
+                           () -> admission.write(0, () -> userMgr.register(credentials)),
+                           registered -> registered ? "OK" : "EXISTS");
+        }
     }
     
     @Override
+    @SuppressWarnings("try")
     public long login(Client remoteNode, Credentials credentials) throws RemoteException {
-        long id = 0;
-        try {
-            id = userMgr.createUser(remoteNode, credentials);
-        } catch (CatalogDBException ex) {
-            Logger.getLogger(Controller.class.getName()).log(Level.SEVERE, null, ex);
+        try (Trace trace = Trace.begin("LOGIN", credentials.getUsername())) {
+            long id = 0;
+            String result = "FAILED";
+            try {
+                id = admission.read(0, () -> userMgr.createUser(remoteNode, credentials));
+                result = id != 0 ? "OK" : "DENIED";
+            } catch (ServerBusyException busy) {
+                result = "REJECTED";
+                throw busy;
+            } catch (CatalogDBException ex) {
+                Logger.getLogger(Controller.class.getName()).log(Level.SEVERE, null, ex);
+            } finally {
+                journal(Operation.LOGIN, id, credentials.getUsername(), null, result);
+            }
+            return id;
         }
-        return id;
     }
     
     @Override
     public void logout(long id) throws RemoteException {
+        journal(Operation.LOGOUT, id, usernameOf(id), null, "OK");
+        admission.endSession(id);
         userMgr.removeUser(id);
+        subscriptions.removeSession(id);
     }
     
     @Override
-    public List<File> list() throws RemoteException, CatalogDBException {
-        return cat.getFiles();
+    @SuppressWarnings("try")
+    public FileListing list() throws RemoteException, CatalogDBException {
+        try (Trace trace = Trace.begin("LIST", null)) {
+            return audited(Operation.LIST, 0, null, null,
+                           () -> admission.read(0, () -> new FileListing(cat.getFiles())),
+                           listing -> "OK");
+        }
     }
     
     @Override
-    public void upload(long id, String filename, int size, String permission) throws RemoteException{
-        if(id != 0){
-            FileDTO file = cat.makeFile(filename, size, userMgr.getUser(id).username, permission);
-            try {
-                cat.addFile((File)file);
-            } catch (CatalogDBException ex) {
-                System.err.println("File could not be uploaded.");
+    @SuppressWarnings("try")
+    public void upload(long id, String filename, int size, String permission)
+            throws RemoteException, CatalogDBException, QuotaExceededException {
+        try (Trace trace = Trace.begin("UPLOAD", filename)) {
+            checkWritable();
+            if(id != 0){
+                QuotaExceededException[] refused = new QuotaExceededException[1];
+                boolean uploaded = audited(Operation.UPLOAD, id, usernameOf(id), filename, () -> admission.write(id, () -> {
+                    FileDTO file = cat.makeFile(filename, size, userMgr.getUser(id).username, permission);
+                    try {
+                        cat.addFile((File)file);
+                        return true;
+                    } catch (QuotaExceededException ex) {
+                        refused[0] = ex;
+                        return false;
+                    } catch (CatalogDBException ex) {
+                        System.err.println("File could not be uploaded.");
+                        return false;
+                    }
+                }), added -> added ? "OK" : refused[0] != null ? "QUOTA_EXCEEDED" : "FAILED");
+                if(refused[0] != null)
+                    throw refused[0];
+                if(uploaded)
+                    publish(filename, "UPLOAD", id);
             }
         }
     }
     
     @Override
+    @SuppressWarnings("try")
     public FileDTO open(String file, long id) throws RemoteException, CatalogDBException {
-        if(id != 0){
-            FileDTO fileDTO = cat.getFile(file);
-            String owner = fileDTO.getFileOwner();
-            if(userMgr.userName.containsKey(owner) && !owner.equals(userMgr.getUser(id).username)){
-                long ido = userMgr.getId(owner);
-                String openBy = userMgr.getUser(id).username;
-                userMgr.getUser(ido).send("OPEN##" + openBy);
+        try (Trace trace = Trace.begin("OPEN", file)) {
+            if(id != 0){
+                access.record(file, usernameOf(id));
+                FileDTO fileDTO = audited(Operation.OPEN, id, usernameOf(id), file,
+                                          () -> admission.read(id, () -> cat.getFile(file)),
+                                          found -> found != null ? "OK" : "NOT_FOUND");
+                if(fileDTO == null)
+                    return null;
+                String owner = fileDTO.getFileOwner();
+                if(!owner.equals(userMgr.getUser(id).username)){
+                    String openBy = userMgr.getUser(id).username;
+                    notifyOwner(owner, "OPEN##" + openBy);
+                }
+                publish(file, "OPEN", id);
+                return fileDTO;
             }
-            return fileDTO;
+            return null;
         }
-        return null;
     }
     
     @Override
+    @SuppressWarnings("try")
     public void delete(String filename, long id) throws RemoteException, CatalogDBException {
-        if(id != 0){
-            FileDTO fileDTO = cat.getFile(filename);
-            String owner = fileDTO.getFileOwner();
-            boolean deleted = cat.deleteFile(filename, userMgr.getUser(id).username);
-            if(deleted && !owner.equals(userMgr.getUser(id).username) && userMgr.userName.containsKey(owner)){
-                System.out.println("i notify");
-                long ido = userMgr.getId(owner);
-                String deletedBy = userMgr.getUser(id).username;
-                userMgr.getUser(ido).send("DELETE##" + deletedBy);
+        try (Trace trace = Trace.begin("DELETE", filename)) {
+            checkWritable();
+            if(id != 0){
+                access.record(filename, usernameOf(id));
+                String owner = audited(Operation.DELETE, id, usernameOf(id), filename, () -> admission.write(id, () -> {
+                    Lock lock = cat.lockFile(filename);
+                    try {
+                        FileDTO fileDTO = cat.getCurrentFile(filename);
+                        if (fileDTO == null)
+                            return null;
+                        boolean deleted = cat.deleteFile(filename, userMgr.getUser(id).username);
+                        if (deleted)
+                            deleteContent(filename);
+                        return deleted ? fileDTO.getFileOwner() : null;
+                    } finally {
+                        lock.unlock();
+                    }
+                }), deletedOwner -> deletedOwner != null ? "OK" : "DENIED");
+                if(owner != null && !owner.equals(userMgr.getUser(id).username)){
+                    String deletedBy = userMgr.getUser(id).username;
+                    notifyOwner(owner, "DELETE##" + deletedBy);
+                }
+                if(owner != null)
+                    publish(filename, "DELETE", id);
             }
         }
     }
     
     @Override
-    public void update(String filename, int newSize, long id) throws RemoteException, CatalogDBException {
-        if(id != 0){
-            FileDTO fileDTO = cat.getFile(filename);
-            String owner = fileDTO.getFileOwner();
-            if(fileDTO.getFilePermission().equals("RW") || owner.equals(userMgr.getUser(id).username))
-                cat.updateFile(filename, newSize);
-            if(userMgr.userName.containsKey(owner)  && !owner.equals(userMgr.getUser(id).username)){
-                long ido = userMgr.getId(owner);
+    public UpdateResult update(String filename, int newSize, int expectedVersion, long id) throws RemoteException, CatalogDBException {
+        return update(filename, newSize, null, expectedVersion, id);
+    }
+
+    @Override
+    @SuppressWarnings("try")
+    public BlockSignatures signatures(String filename, long id) throws RemoteException, CatalogDBException {
+        try (Trace trace = Trace.begin("SIGNATURES", filename)) {
+            checkContentStored();
+            if(id == 0)
+                return null;
+            return audited(Operation.SIGNATURES, id, usernameOf(id), filename, () -> admission.read(id, () -> {
+                Lock lock = cat.lockFile(filename);
+                try {
+                    FileDTO fileDTO = cat.getCurrentFile(filename);
+                    return fileDTO == null ? null : content.signatures(filename, fileDTO.getFileVersion());
+                } catch (IOException ex) {
+                    throw new CatalogDBException("Could not read the content of " + filename, ex);
+                } finally {
+                    lock.unlock();
+                }
+            }), signatures -> signatures != null ? "OK" : "NOT_FOUND");
+        }
+    }
+
+    @Override
+    public UpdateResult applyDelta(String filename, Delta delta, int expectedVersion, long id) throws RemoteException, CatalogDBException {
+        checkContentStored();
+        if(delta.getLength() > Integer.MAX_VALUE)
+            throw new CatalogDBException("The content of " + filename + " is too large.");
+        return update(filename, (int) delta.getLength(), delta, expectedVersion, id);
+    }
+
+    private void checkContentStored() throws CatalogDBException {
+        if (content == null)
+            throw new CatalogDBException("This node does not store file content.");
+    }
+
+    private void deleteContent(String filename) {
+        if (content == null)
+            return;
+        try {
+            content.delete(filename);
+        } catch (IOException ex) {
+            Logger.getLogger(Controller.class.getName()).log(Level.WARNING, "Could not delete the content of " + filename, ex);
+        }
+    }
+
+    /**
+     * Sets the size of a file and, if <code>delta</code> is not <code>null</code>, applies it to
+     * the file's content. The delta is staged durably before the catalog is updated, and dropped
+     * if the catalog is not updated, so the content is never ahead of or behind the catalog.
+     */
+    @SuppressWarnings("try")
+    private UpdateResult update(String filename, int newSize, Delta delta, int expectedVersion, long id) throws RemoteException, CatalogDBException {
+        try (Trace trace = Trace.begin(delta == null ? "UPDATE" : "APPLY_DELTA", filename)) {
+            checkWritable();
+            if(id == 0)
+                return UpdateResult.DENIED;
+            access.record(filename, usernameOf(id));
+            String[] owner = new String[1];
+            UpdateResult result = audited(Operation.UPDATE, id, usernameOf(id), filename, () -> admission.write(id, () -> {
+                Lock lock = cat.lockFile(filename);
+                try {
+                    FileDTO fileDTO = cat.getCurrentFile(filename);
+                    if(fileDTO == null)
+                        return UpdateResult.NOT_FOUND;
+                    owner[0] = fileDTO.getFileOwner();
+                    if(!fileDTO.getFilePermission().equals("RW") && !owner[0].equals(userMgr.getUser(id).username))
+                        return UpdateResult.DENIED;
+                    ContentStore.Staged staged = null;
+                    try {
+                        if(content != null)
+                            content.settle(filename, fileDTO.getFileVersion());
+                        if(delta != null && fileDTO.getFileVersion() == expectedVersion) {
+                            if(!content.fits(filename, expectedVersion, delta))
+                                throw new CatalogDBException("The delta does not fit the content of " + filename);
+                            staged = content.stage(filename, expectedVersion, delta);
+                        }
+                    } catch (IOException ex) {
+                        throw new CatalogDBException("Could not write the content of " + filename, ex);
+                    }
+                    boolean updated = false;
+                    try {
+                        updated = cat.updateFile(filename, newSize, expectedVersion);
+                    } catch (QuotaExceededException ex) {
+                        return UpdateResult.QUOTA_EXCEEDED;
+                    } finally {
+                        if(staged != null && !updated)
+                            staged.abandon();
+                    }
+                    if(!updated)
+                        return UpdateResult.CONFLICT;
+                    if(staged != null) {
+                        try {
+                            staged.commit();
+                        } catch (IOException ex) {
+                            Logger.getLogger(Controller.class.getName()).log(Level.WARNING,
+                                    "Could not apply the staged content of " + filename + ", it is applied when the file is next used.", ex);
+                        }
+                    }
+                    return UpdateResult.UPDATED;
+                } finally {
+                    lock.unlock();
+                }
+            }), UpdateResult::name);
+            if(result == UpdateResult.UPDATED && !owner[0].equals(userMgr.getUser(id).username)){
                 String updatedBy = userMgr.getUser(id).username;
-                userMgr.getUser(ido).send("UPDATE##" + updatedBy);
+                notifyOwner(owner[0], "UPDATE##" + updatedBy);
             }
+            if(result == UpdateResult.UPDATED)
+                publish(filename, "UPDATE", id);
+            return result;
         }
     }
+
+    @Override
+    public Usage usage(long id) throws RemoteException {
+        String username = usernameOf(id);
+        Usage usage = username == null ? Usage.NONE : cat.getUsage(username);
+        journal(Operation.USAGE, id, username, null, username == null ? "DENIED" : "OK");
+        return usage;
+    }
+
+    @Override
+    @SuppressWarnings("try")
+    public AccessReport accessReport(long id, int count) throws RemoteException, CatalogDBException {
+        try (Trace trace = Trace.begin("ACCESS_REPORT", null)) {
+            if(!isLoggedIn(id))
+                return null;
+            int reported = Math.max(0, Math.min(count, MAX_REPORTED_ACCESSES));
+            return audited(Operation.ACCESS_REPORT, id, usernameOf(id), null,
+                           () -> admission.read(id, () -> access.report(reported)), report -> "OK");
+        }
+    }
+
+    @Override
+    public boolean deliver(String username, String msg) throws RemoteException {
+        boolean delivered = false;
+        for(long sessionId : userMgr.getIds(username)){
+            delivered |= deliverToSession(sessionId, msg);
+        }
+        return delivered;
+    }
+
+    /**
+     * Cleans up after a session that was ended because its client stayed unreachable.
+     */
+    private void sessionEvicted(long id) {
+        admission.endSession(id);
+        subscriptions.removeSession(id);
+        journal(Operation.LOGOUT, id, null, null, "EVICTED");
+    }
+
+    private boolean deliverToSession(long sessionId, String msg) {
+        User user = userMgr.getUser(sessionId);
+        if(user == null || !user.isReachable())
+            return false;
+        admission.notify(() -> sendTo(user, msg));
+        return true;
+    }
+
+    @Override
+    public void subscribe(long id, String pattern, boolean prefix) throws RemoteException {
+        if(id != 0 && subscriptions.subscribe(id, pattern, prefix)){
+            journal(Operation.SUBSCRIBE, id, usernameOf(id), prefix ? pattern + "*" : pattern, "OK");
+        }
+    }
+
+    @Override
+    public void unsubscribe(long id, String pattern, boolean prefix) throws RemoteException {
+        subscriptions.unsubscribe(id, pattern, prefix);
+        journal(Operation.UNSUBSCRIBE, id, usernameOf(id), prefix ? pattern + "*" : pattern, "OK");
+    }
+
+    /**
+     * Performs the specified call and records it in the audit journal, with the outcome given by
+     * <code>outcome</code>, or the exception thrown by the call.
+     */
+    private <T> T audited(Operation operation, long id, String user, String file,
+                          Bulkhead.Operation<T> call, Function<T, String> outcome)
+            throws RemoteException, CatalogDBException {
+        String result = "FAILED";
+        try {
+            T value = call.perform();
+            result = outcome.apply(value);
+            return value;
+        } catch (ServerBusyException busy) {
+            result = "REJECTED";
+            throw busy;
+        } finally {
+            journal(operation, id, user, file, result);
+        }
+    }
+
+    private void journal(Operation operation, long id, String user, String file, String result) {
+        if (journal != null)
+            journal.record(new AuditRecord(System.currentTimeMillis(), id, operation, user, file, result));
+    }
+
+    private boolean isLoggedIn(long id) {
+        return userMgr.getUser(id) != null;
+    }
+
+    private String usernameOf(long id) {
+        User user = userMgr.getUser(id);
+        return user == null ? null : user.username;
+    }
+
+    /**
+     * Notifies all sessions subscribing to the specified file, except the one causing the event.
+     */
+    private void publish(String filename, String operation, long causedBy) {
+        String event = "EVENT##" + operation + "##" + userMgr.getUser(causedBy).username + "##" + filename;
+        for(long subscriber : subscriptions.subscribers(filename)){
+            if(subscriber != causedBy)
+                deliverToSession(subscriber, event);
+        }
+    }
+
+    private void sendTo(User user, String msg) {
+        try {
+            user.send(msg);
+        } catch (MessageException deliveryFailed) {
+            Logger.getLogger(Controller.class.getName()).log(Level.WARNING, deliveryFailed.getMessage());
+        }
+    }
+
+    /**
+     * Notifies the owner at this node if the owner has a session here, otherwise asks the other
+     * nodes of the cluster to deliver the notification. Delivery happens in the background, the
+     * caller does not wait for it.
+     */
+    @SuppressWarnings("try")
+    private void notifyOwner(String owner, String msg) throws RemoteException {
+        if(deliver(owner, msg))
+            return;
+        admission.notify(() -> {
+            for(ClusterPeer peer : cluster.peers()){
+                try (Trace.Span span = Trace.span("peer.deliver")) {
+                    if(peer.deliver(owner, msg))
+                        return;
+                } catch (RemoteException peerUnavailable) {
+                    Logger.getLogger(Controller.class.getName()).log(Level.FINE, null, peerUnavailable);
+                }
+            }
+        });
+    }
 }
 
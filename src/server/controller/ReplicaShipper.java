@@ -0,0 +1,168 @@
+package server.controller;
+
+import common.Credentials;
+import common.Replica;
+import java.net.MalformedURLException;
+import java.rmi.Naming;
+import java.rmi.NotBoundException;
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import server.integration.CatalogDBException;
+import server.model.Catalog;
+import server.model.File;
+import server.model.Mutation;
+import server.model.ReplicationLog;
+
+/**
+ * Ships the primary's replication log to one replica, in a thread of its own. If the replica can
+ * not be reached, shipping is retried until it is back. The replica is looked up in the registry
+ * like any other cluster node.
+ *
+ * A replica that follows another log, for example that of the primary before it restarted, or
+ * that is missing mutations the log no longer holds, is first sent a snapshot of the catalog. So
+ * is a replica that keeps failing to apply the same mutation, after the mutation is logged.
+ */
+class ReplicaShipper implements Runnable {
+    private static final Logger LOGGER = Logger.getLogger(ReplicaShipper.class.getName());
+    private static final int MAX_BATCH_SIZE = 256;
+    private static final int SNAPSHOT_CHUNK = 1000;
+    private static final int MAX_STALLS = 3;
+    private static final long POLL_MILLIS = 1000;
+    private static final long RETRY_MILLIS = 2000;
+    private final String replicaName;
+    private final ReplicationLog log;
+    private final Catalog catalog;
+    private final ReplicationStats stats;
+    private Replica replica;
+    private boolean synced = false;
+    private int stalls = 0;
+    private long applied = 0;
+
+    ReplicaShipper(String replicaName, ReplicationLog log, Catalog catalog) {
+        this.replicaName = replicaName;
+        this.log = log;
+        this.catalog = catalog;
+        this.stats = new ReplicationStats(replicaName);
+    }
+
+    void start() {
+        Thread shipper = new Thread(this, "replica-shipper-" + replicaName);
+        shipper.setDaemon(true);
+        shipper.start();
+    }
+
+    @Override
+    public void run() {
+        while (true) {
+            try {
+                if (!synced) {
+                    handshake();
+                }
+                List<Mutation> batch = log.since(applied, MAX_BATCH_SIZE, POLL_MILLIS);
+                if (!batch.isEmpty()) {
+                    ship(batch);
+                }
+            } catch (InterruptedException stopped) {
+                return;
+            } catch (RemoteException | NotBoundException | MalformedURLException | CatalogDBException failed) {
+                replica = null;
+                synced = false;
+                LOGGER.log(failed instanceof CatalogDBException ? Level.WARNING : Level.FINE, null, failed);
+                try {
+                    Thread.sleep(RETRY_MILLIS);
+                } catch (InterruptedException stopped) {
+                    return;
+                }
+            }
+        }
+    }
+
+    private Replica replica() throws RemoteException, NotBoundException, MalformedURLException {
+        if (replica == null) {
+            replica = (Replica) Naming.lookup(ClusterMembership.registryName(replicaName));
+        }
+        return replica;
+    }
+
+    /**
+     * Learns where the replica is in the log, and sends it a snapshot if it is not in it.
+     */
+    private void handshake() throws RemoteException, NotBoundException, MalformedURLException, CatalogDBException {
+        long position = replica().applyMutations(log.getEpoch(), Collections.emptyList());
+        if (position == Replica.RESYNC) {
+            resync();
+        } else {
+            applied = position;
+            log.acknowledge(replicaName, applied);
+        }
+        synced = true;
+    }
+
+    private void ship(List<Mutation> batch) throws RemoteException, NotBoundException, MalformedURLException,
+                                                   CatalogDBException, InterruptedException {
+        if (batch.get(0).sequence > applied + 1) {
+            resync();
+            return;
+        }
+        long position = replica().applyMutations(log.getEpoch(), batch);
+        if (position == Replica.RESYNC) {
+            resync();
+            return;
+        }
+        if (position > applied) {
+            stalls = 0;
+        } else if (++stalls >= MAX_STALLS) {
+            Mutation poison = batch.get(0);
+            for (Mutation mutation : batch) {
+                if (mutation.sequence > applied) {
+                    poison = mutation;
+                    break;
+                }
+            }
+            LOGGER.log(Level.SEVERE, "Replica {0} keeps failing to apply mutation {1} ({2} of {3}), sending a snapshot.",
+                       new Object[]{replicaName, poison.sequence, poison.type, poison.file == null
+                                                                               ? poison.credentials.getUsername()
+                                                                               : poison.file.getFileName()});
+            stats.mutationFailed();
+            resync();
+            return;
+        } else {
+            Thread.sleep(RETRY_MILLIS);
+        }
+        applied = position;
+        log.acknowledge(replicaName, applied);
+        Mutation last = batch.get(batch.size() - 1);
+        long lag = last.sequence <= applied ? 0 : System.currentTimeMillis() - last.timestamp;
+        stats.update(log.getLastSequence(), applied, lag);
+    }
+
+    /**
+     * Sends the replica a snapshot of the catalog, in parts. The snapshot is taken after reading
+     * the position in the log, so mutations shipped after it may already be in it, which is fine
+     * since applying them again changes nothing.
+     */
+    private void resync() throws RemoteException, NotBoundException, MalformedURLException, CatalogDBException {
+        long sequence = log.getLastSequence();
+        List<File> files = catalog.getFiles();
+        List<Credentials> accounts = catalog.getAccounts();
+        Replica target = replica();
+        int from = 0;
+        do {
+            int to = Math.min(files.size(), from + SNAPSHOT_CHUNK);
+            target.installSnapshot(log.getEpoch(), sequence, new ArrayList<>(files.subList(from, to)),
+                                   from == 0 ? accounts : Collections.emptyList(), from == 0, to == files.size());
+            from = to;
+        } while (from < files.size());
+        applied = sequence;
+        stalls = 0;
+        log.acknowledge(replicaName, applied);
+        stats.resynced();
+        stats.update(log.getLastSequence(), applied, 0);
+        LOGGER.log(Level.INFO, "Sent replica {0} a snapshot of {1} files up to mutation {2}.",
+                   new Object[]{replicaName, files.size(), sequence});
+    }
+}
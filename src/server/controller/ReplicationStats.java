@@ -0,0 +1,72 @@
+package server.controller;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * Replication progress of one replica. Registered as an MBean, named after the replica.
+ */
+class ReplicationStats implements ReplicationStatsMBean {
+    private volatile long lastSequence;
+    private volatile long appliedSequence;
+    private volatile long lagMillis;
+    private final AtomicLong resyncs = new AtomicLong();
+    private final AtomicLong failedMutations = new AtomicLong();
+
+    ReplicationStats(String replica) {
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this,
+                    new ObjectName("server:type=Replication,replica=" + ObjectName.quote(replica)));
+        } catch (JMException ex) {
+            Logger.getLogger(ReplicationStats.class.getName()).log(Level.WARNING, null, ex);
+        }
+    }
+
+    void update(long lastSequence, long appliedSequence, long lagMillis) {
+        this.lastSequence = lastSequence;
+        this.appliedSequence = appliedSequence;
+        this.lagMillis = lagMillis;
+    }
+
+    void resynced() {
+        resyncs.incrementAndGet();
+    }
+
+    void mutationFailed() {
+        failedMutations.incrementAndGet();
+    }
+
+    @Override
+    public long getLastSequence() {
+        return lastSequence;
+    }
+
+    @Override
+    public long getAppliedSequence() {
+        return appliedSequence;
+    }
+
+    @Override
+    public long getLagMutations() {
+        return Math.max(0, lastSequence - appliedSequence);
+    }
+
+    @Override
+    public long getLagMillis() {
+        return lagMillis;
+    }
+
+    @Override
+    public long getResyncCount() {
+        return resyncs.get();
+    }
+
+    @Override
+    public long getFailedMutationCount() {
+        return failedMutations.get();
+    }
+}
@@ -0,0 +1,36 @@
+package server.controller;
+
+/**
+ * Replication progress, as seen by JMX clients.
+ */
+public interface ReplicationStatsMBean {
+    /**
+     * @return The sequence number of the last mutation written at the primary.
+     */
+    long getLastSequence();
+
+    /**
+     * @return The sequence number of the last mutation applied by the replica.
+     */
+    long getAppliedSequence();
+
+    /**
+     * @return The number of mutations the replica is behind the primary.
+     */
+    long getLagMutations();
+
+    /**
+     * @return How old the last applied mutation was when it was applied, in milliseconds.
+     */
+    long getLagMillis();
+
+    /**
+     * @return The number of snapshots sent to the replica.
+     */
+    long getResyncCount();
+
+    /**
+     * @return The number of mutations the replica repeatedly failed to apply.
+     */
+    long getFailedMutationCount();
+}
@@ -0,0 +1,190 @@
+package server.controller;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Approximate counts of how often keys occur in a stream, and the keys occurring most often.
+ * Counts are kept in a count-min sketch, a fixed number of rows of counters where each key
+ * increments one counter per row, and the count of a key is the smallest of its counters. The most
+ * frequent keys are kept as candidates with their estimated counts, candidates with the lowest
+ * counts are dropped when there are too many.
+ *
+ * Counting happens in windows of fixed length, reports cover the current and the previous window.
+ * Adding a key takes no locks: counters are atomic, candidates are in a concurrent map, and the
+ * thread that finds a window has ended is the one starting the next.
+ */
+class TopKSketch {
+    private static final int DEPTH = 4;
+    private static final int REFRESH_INTERVAL = 16;
+    private final int width;
+    private final int tracked;
+    private final long windowMillis;
+    private final AtomicReference<Window> current;
+    private volatile Window previous;
+
+    /**
+     * @param width        The number of counters per row, rounded up to a power of two.
+     * @param tracked      The number of most frequent keys to keep.
+     * @param windowMillis The length of a window.
+     */
+    TopKSketch(int width, int tracked, long windowMillis) {
+        this.width = Integer.highestOneBit(Math.max(2, width - 1)) << 1;
+        this.tracked = tracked;
+        this.windowMillis = windowMillis;
+        this.current = new AtomicReference<>(new Window(System.currentTimeMillis()));
+    }
+
+    void add(String key) {
+        Window window = window(System.currentTimeMillis());
+        window.offer(key, window.increment(key));
+    }
+
+    /**
+     * @return The estimated count of the specified key in the current and previous window.
+     */
+    long estimate(String key) {
+        long count = 0;
+        for (Window window : recentWindows(System.currentTimeMillis())) {
+            count += window.estimate(key);
+        }
+        return count;
+    }
+
+    /**
+     * @return At most <code>count</code> keys with their estimated counts in the current and
+     *         previous window, the most frequent first.
+     */
+    Map<String, Long> top(int count) {
+        List<Window> windows = recentWindows(System.currentTimeMillis());
+        Set<String> keys = new HashSet<>();
+        for (Window window : windows) {
+            keys.addAll(window.candidates.keySet());
+        }
+        List<Map.Entry<String, Long>> counted = new ArrayList<>(keys.size());
+        for (String key : keys) {
+            long estimate = 0;
+            for (Window window : windows) {
+                estimate += window.estimate(key);
+            }
+            counted.add(Map.entry(key, estimate));
+        }
+        counted.sort(Map.Entry.<String, Long>comparingByValue().reversed());
+        Map<String, Long> top = new LinkedHashMap<>();
+        for (Map.Entry<String, Long> entry : counted.subList(0, Math.min(count, counted.size()))) {
+            top.put(entry.getKey(), entry.getValue());
+        }
+        return top;
+    }
+
+    long getWindowMillis() {
+        return windowMillis;
+    }
+
+    private Window window(long now) {
+        Window window = current.get();
+        if (now - window.start < windowMillis) {
+            return window;
+        }
+        Window next = new Window(now);
+        if (current.compareAndSet(window, next)) {
+            previous = window;
+            return next;
+        }
+        return current.get();
+    }
+
+    /**
+     * @return The windows that ended less than a window ago, or have not ended.
+     */
+    private List<Window> recentWindows(long now) {
+        List<Window> recent = new ArrayList<>(2);
+        Window window = current.get();
+        Window before = previous;
+        if (now - window.start < 2 * windowMillis) {
+            recent.add(window);
+        }
+        if (before != null && before != window && now - before.start < 2 * windowMillis) {
+            recent.add(before);
+        }
+        return recent;
+    }
+
+    private int index(int row, String key) {
+        int hash = key.hashCode();
+        int h1 = hash * 0x9E3779B9;
+        int h2 = ((hash ^ (hash >>> 16)) * 0x85EBCA6B) | 1;
+        int mixed = h1 + row * h2;
+        mixed ^= mixed >>> 15;
+        return row * width + (mixed & (width - 1));
+    }
+
+    /**
+     * The counts of one window.
+     */
+    private class Window {
+        private final long start;
+        private final AtomicLongArray counters = new AtomicLongArray(DEPTH * width);
+        private final Map<String, Long> candidates = new ConcurrentHashMap<>();
+        private final AtomicBoolean pruning = new AtomicBoolean();
+        private volatile long floor;
+
+        Window(long start) {
+            this.start = start;
+        }
+
+        /**
+         * @return The estimated count of the key, including this occurrence.
+         */
+        long increment(String key) {
+            long estimate = Long.MAX_VALUE;
+            for (int row = 0; row < DEPTH; row++) {
+                estimate = Math.min(estimate, counters.incrementAndGet(index(row, key)));
+            }
+            return estimate;
+        }
+
+        long estimate(String key) {
+            long estimate = Long.MAX_VALUE;
+            for (int row = 0; row < DEPTH; row++) {
+                estimate = Math.min(estimate, counters.get(index(row, key)));
+            }
+            return estimate;
+        }
+
+        /**
+         * Makes the key a candidate if its count is above those dropped before. The counts of
+         * candidates are only refreshed every <code>REFRESH_INTERVAL</code> occurrences. When
+         * there are twice as many candidates as are tracked, one thread drops all but the top
+         * ones, the others do not wait for it.
+         */
+        void offer(String key, long estimate) {
+            Long kept = candidates.get(key);
+            if (kept == null ? estimate <= floor : estimate - kept < REFRESH_INTERVAL) {
+                return;
+            }
+            candidates.put(key, estimate);
+            if (candidates.size() > 2 * tracked && pruning.compareAndSet(false, true)) {
+                try {
+                    List<Long> counts = new ArrayList<>(candidates.values());
+                    if (counts.size() > tracked) {
+                        counts.sort(null);
+                        long newFloor = counts.get(counts.size() - tracked - 1);
+                        candidates.values().removeIf(count -> count <= newFloor);
+                        floor = newFloor;
+                    }
+                } finally {
+                    pruning.set(false);
+                }
+            }
+        }
+    }
+}
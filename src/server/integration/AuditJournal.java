@@ -0,0 +1,219 @@
+package server.integration;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * An append-only journal of audit records, stored in a directory as a sequence of fixed size
+ * segment files. Callers only add records to a lock-free queue, a single writer thread copies them
+ * into the current segment through a memory map, and starts a new segment when the current one is
+ * full. A record is stored as its length followed by its bytes and their CRC-32, a zero length
+ * marks the end of the data in a segment.
+ *
+ * The queue is bounded, records arriving while it is full are dropped and counted. The writer
+ * sleeps while there is nothing to write and is woken by <code>record</code>, and forces the
+ * current segment to disk at a fixed interval while records are being written.
+ */
+public class AuditJournal implements Runnable {
+    static final String SEGMENT_PREFIX = "audit-";
+    static final String SEGMENT_SUFFIX = ".log";
+    private static final int DEFAULT_QUEUE_CAPACITY = 1 << 16;
+    private static final long DEFAULT_FORCE_INTERVAL_MILLIS = 1000;
+    private final Queue<AuditRecord> pending = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger queued = new AtomicInteger();
+    private final AtomicLong dropped = new AtomicLong();
+    private final Path directory;
+    private final int segmentSize;
+    private final int queueCapacity;
+    private final long forceIntervalNanos;
+    private final Thread writer;
+    private volatile boolean running = true;
+    private volatile boolean idle;
+    private long segmentNumber;
+    private MappedByteBuffer segment;
+    private boolean unforced;
+    private long lastForce = System.nanoTime();
+    private long reportedDrops;
+
+    /**
+     * Opens the journal in the specified directory. New records are written to a new segment,
+     * following any segments already in the directory.
+     *
+     * @param directory   Where the segments are stored, created if missing.
+     * @param segmentSize The size of each segment file, in bytes.
+     * @throws IOException If the directory or first segment could not be created.
+     */
+    public AuditJournal(Path directory, int segmentSize) throws IOException {
+        this(directory, segmentSize, DEFAULT_QUEUE_CAPACITY, DEFAULT_FORCE_INTERVAL_MILLIS);
+    }
+
+    /**
+     * Opens the journal in the specified directory.
+     *
+     * @param directory           Where the segments are stored, created if missing.
+     * @param segmentSize         The size of each segment file, in bytes.
+     * @param queueCapacity       The largest number of records waiting to be written.
+     * @param forceIntervalMillis How long written records may stay unforced at most.
+     * @throws IOException If the directory or first segment could not be created.
+     */
+    public AuditJournal(Path directory, int segmentSize, int queueCapacity, long forceIntervalMillis)
+            throws IOException {
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.queueCapacity = queueCapacity;
+        this.forceIntervalNanos = TimeUnit.MILLISECONDS.toNanos(forceIntervalMillis);
+        Files.createDirectories(directory);
+        List<Path> existing = segments(directory);
+        segmentNumber = existing.isEmpty() ? 0 : segmentNumber(existing.get(existing.size() - 1)) + 1;
+        openSegment();
+        writer = new Thread(this, "audit-journal");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Adds a record to the journal. Never blocks, the record is written later by the writer thread.
+     */
+    public void record(AuditRecord record) {
+        if (queued.incrementAndGet() > queueCapacity) {
+            queued.decrementAndGet();
+            dropped.incrementAndGet();
+            return;
+        }
+        pending.add(record);
+        if (idle) {
+            LockSupport.unpark(writer);
+        }
+    }
+
+    /**
+     * @return The number of records dropped since the journal was opened, because the queue was full.
+     */
+    public long getDroppedRecords() {
+        return dropped.get();
+    }
+
+    /**
+     * Writes all queued records and stops the writer thread.
+     */
+    public void close() {
+        running = false;
+        LockSupport.unpark(writer);
+        try {
+            writer.join();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public void run() {
+        while (running || !pending.isEmpty()) {
+            AuditRecord record = pending.poll();
+            if (record == null) {
+                forceIfDue();
+                reportDrops();
+                idle = true;
+                if (running && pending.isEmpty() && unforced) {
+                    LockSupport.parkNanos(this, forceIntervalNanos);
+                } else if (running && pending.isEmpty()) {
+                    LockSupport.park(this);
+                }
+                idle = false;
+                continue;
+            }
+            queued.decrementAndGet();
+            try {
+                append(record.encode());
+                unforced = true;
+                forceIfDue();
+            } catch (IOException | RuntimeException ex) {
+                Logger.getLogger(AuditJournal.class.getName()).log(Level.SEVERE, "Audit record lost.", ex);
+            }
+        }
+        segment.force();
+        reportDrops();
+    }
+
+    private void forceIfDue() {
+        if (unforced && System.nanoTime() - lastForce >= forceIntervalNanos) {
+            segment.force();
+            unforced = false;
+            lastForce = System.nanoTime();
+        }
+    }
+
+    private void reportDrops() {
+        long drops = dropped.get();
+        if (drops != reportedDrops) {
+            Logger.getLogger(AuditJournal.class.getName()).log(Level.WARNING,
+                    "{0} audit records dropped, the journal queue was full.", drops - reportedDrops);
+            reportedDrops = drops;
+        }
+    }
+
+    private void append(byte[] record) throws IOException {
+        int stored = Integer.BYTES + record.length + Integer.BYTES;
+        if (stored + Integer.BYTES > segmentSize) {
+            throw new IOException("Audit record larger than a segment.");
+        }
+        if (segment.remaining() < stored + Integer.BYTES) {
+            segment.putInt(0);
+            segment.force();
+            unforced = false;
+            lastForce = System.nanoTime();
+            segmentNumber++;
+            openSegment();
+        }
+        CRC32 crc = new CRC32();
+        crc.update(record);
+        segment.putInt(record.length);
+        segment.put(record);
+        segment.putInt((int) crc.getValue());
+    }
+
+    private void openSegment() throws IOException {
+        Path path = directory.resolve(String.format("%s%020d%s", SEGMENT_PREFIX, segmentNumber, SEGMENT_SUFFIX));
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE_NEW,
+                                                    StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            segment = channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+        }
+    }
+
+    /**
+     * @return The segment files in the specified directory, oldest first.
+     */
+    static List<Path> segments(Path directory) throws IOException {
+        List<Path> segments = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory,
+                SEGMENT_PREFIX + "*" + SEGMENT_SUFFIX)) {
+            for (Path file : files) {
+                segments.add(file);
+            }
+        }
+        Collections.sort(segments);
+        return segments;
+    }
+
+    private static long segmentNumber(Path segment) {
+        String name = segment.getFileName().toString();
+        return Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+    }
+}
@@ -0,0 +1,71 @@
+package server.integration;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+import java.util.zip.CRC32;
+
+/**
+ * Reads the segments of an audit journal, oldest first.
+ */
+public class AuditJournalReader {
+    private final Path directory;
+
+    /**
+     * @param directory The directory holding the journal segments.
+     */
+    public AuditJournalReader(Path directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * Passes every record matching the specified filter to the specified consumer. Segments are
+     * mapped into memory, and a record is only decoded once its length and checksum have been
+     * checked. A segment is read up to its first invalid record, which is where the writer stopped
+     * if it was interrupted, and the next segment is read from its start.
+     *
+     * @return The number of matching records.
+     * @throws IOException If a segment could not be read.
+     */
+    public long scan(Predicate<AuditRecord> filter, Consumer<AuditRecord> consumer) throws IOException {
+        long matches = 0;
+        for (Path segmentFile : AuditJournal.segments(directory)) {
+            try (FileChannel channel = FileChannel.open(segmentFile, StandardOpenOption.READ)) {
+                MappedByteBuffer segment = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                while (segment.remaining() >= Integer.BYTES) {
+                    int length = segment.getInt();
+                    if (length <= 0 || length > segment.remaining() - Integer.BYTES) {
+                        break;
+                    }
+                    int start = segment.position();
+                    int next = start + length;
+                    ByteBuffer body = segment.duplicate();
+                    body.limit(next);
+                    CRC32 crc = new CRC32();
+                    crc.update(body);
+                    if (segment.getInt(next) != (int) crc.getValue()) {
+                        break;
+                    }
+                    AuditRecord record;
+                    try {
+                        body.position(start);
+                        record = AuditRecord.decode(body);
+                    } catch (RuntimeException malformed) {
+                        break;
+                    }
+                    segment.position(next + Integer.BYTES);
+                    if (filter.test(record)) {
+                        consumer.accept(record);
+                        matches++;
+                    }
+                }
+            }
+        }
+        return matches;
+    }
+}
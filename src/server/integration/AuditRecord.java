@@ -0,0 +1,98 @@
+package server.integration;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+
+/**
+ * One entry of the audit journal: who performed which operation on which file, when, and with what
+ * result. In the journal, a record is stored as its length followed by the timestamp, the session
+ * id, the operation and the user, file and result strings, and a CRC-32 of all but the length.
+ */
+public class AuditRecord {
+    public enum Operation {
+        REGISTER,
+        LOGIN,
+        LOGOUT,
+        LIST,
+        OPEN,
+        UPLOAD,
+        DELETE,
+        UPDATE,
+        SUBSCRIBE,
+        UNSUBSCRIBE,
+        SIGNATURES,
+        USAGE,
+        ACCESS_REPORT
+    }
+
+    private static final int FIXED_SIZE = Long.BYTES + Long.BYTES + Byte.BYTES + 3 * Short.BYTES;
+    public final long timestamp;
+    public final long sessionId;
+    public final Operation operation;
+    public final String user;
+    public final String file;
+    public final String result;
+
+    public AuditRecord(long timestamp, long sessionId, Operation operation, String user, String file,
+                       String result) {
+        this.timestamp = timestamp;
+        this.sessionId = sessionId;
+        this.operation = operation;
+        this.user = user == null ? "" : user;
+        this.file = file == null ? "" : file;
+        this.result = result == null ? "" : result;
+    }
+
+    private static byte[] utf8(String value) {
+        return value.getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @return The encoded record, not including the length prefix and the checksum.
+     */
+    byte[] encode() {
+        byte[] userBytes = utf8(user);
+        byte[] fileBytes = utf8(file);
+        byte[] resultBytes = utf8(result);
+        ByteBuffer buf = ByteBuffer.allocate(FIXED_SIZE + userBytes.length + fileBytes.length + resultBytes.length);
+        buf.putLong(timestamp);
+        buf.putLong(sessionId);
+        buf.put((byte) operation.ordinal());
+        putString(buf, userBytes);
+        putString(buf, fileBytes);
+        putString(buf, resultBytes);
+        return buf.array();
+    }
+
+    private static void putString(ByteBuffer buf, byte[] bytes) {
+        buf.putShort((short) bytes.length);
+        buf.put(bytes);
+    }
+
+    /**
+     * Decodes a record whose length prefix has already been read, and whose checksum has been
+     * checked.
+     */
+    static AuditRecord decode(ByteBuffer buf) {
+        long timestamp = buf.getLong();
+        long sessionId = buf.getLong();
+        Operation operation = Operation.values()[buf.get()];
+        String user = getString(buf);
+        String file = getString(buf);
+        String result = getString(buf);
+        return new AuditRecord(timestamp, sessionId, operation, user, file, result);
+    }
+
+    private static String getString(ByteBuffer buf) {
+        byte[] bytes = new byte[buf.getShort() & 0xFFFF];
+        buf.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public String toString() {
+        return Instant.ofEpochMilli(timestamp) + " session=" + sessionId + " user=" + user
+               + " op=" + operation + " file=" + file + " result=" + result;
+    }
+}
@@ -0,0 +1,52 @@
+package server.integration;
+
+import common.FileDTO;
+import common.Usage;
+import java.util.concurrent.CompletableFuture;
+import server.model.File;
+
+/**
+ * A file mutation waiting to be written as part of a group commit. The future is completed once the
+ * transaction containing the write has been committed, with <code>false</code> if the write was a
+ * conditional update that did not take place.
+ */
+class BatchedWrite {
+    enum Type {
+        CREATE,
+        UPDATE,
+        DELETE
+    }
+
+    final Type type;
+    final String filename;
+    final File file;
+    final int newSize;
+    final int expectedVersion;
+    final Usage limit;
+    final CompletableFuture<Boolean> done = new CompletableFuture<>();
+    boolean applied = true;
+
+    private BatchedWrite(Type type, String filename, File file, int newSize, int expectedVersion, Usage limit) {
+        this.type = type;
+        this.filename = filename;
+        this.file = file;
+        this.newSize = newSize;
+        this.expectedVersion = expectedVersion;
+        this.limit = limit;
+    }
+
+    /**
+     * @param limit The largest usage the owner may reach, <code>null</code> if there is none.
+     */
+    static BatchedWrite create(File file, Usage limit) {
+        return new BatchedWrite(Type.CREATE, file.getFileName(), file, 0, 0, limit);
+    }
+
+    static BatchedWrite update(String filename, int newSize, int expectedVersion, Usage limit) {
+        return new BatchedWrite(Type.UPDATE, filename, null, newSize, expectedVersion, limit);
+    }
+
+    static BatchedWrite delete(FileDTO file) {
+        return new BatchedWrite(Type.DELETE, file.getFileName(), null, 0, 0, null);
+    }
+}
@@ -0,0 +1,306 @@
+package server.integration;
+
+import common.Credentials;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import server.model.File;
+
+/**
+ * A file holding the accounts and files of a catalog, written by a bulk export and read by a bulk
+ * import. There are two formats: a compact binary format, and CSV for use with other tools. In
+ * CSV, each line is either <code>ACCOUNT,name,password</code> or
+ * <code>FILE,name,size,owner,permission,version</code>, an empty owner or permission means none.
+ */
+public final class CatalogArchive {
+    private static final int MAGIC = 0x43415458;
+    private static final int FORMAT_VERSION = 1;
+    private static final byte ACCOUNT_RECORD = 'A';
+    private static final byte FILE_RECORD = 'F';
+    private static final byte END_RECORD = 'E';
+    private static final String CSV_HEADER = "type,name,size|password,owner,permission,version";
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    private CatalogArchive() {
+    }
+
+    /**
+     * The archive formats.
+     */
+    public enum Format {
+        BINARY,
+        CSV;
+
+        /**
+         * @return <code>CSV</code> if the specified file name ends with <code>.csv</code>,
+         *         otherwise <code>BINARY</code>.
+         */
+        public static Format of(Path file) {
+            return file.getFileName().toString().toLowerCase().endsWith(".csv") ? CSV : BINARY;
+        }
+    }
+
+    /**
+     * Writes records to an archive. Closing the writer completes the archive.
+     */
+    public interface Writer extends Closeable {
+        void writeAccount(Credentials account) throws IOException;
+
+        void writeFile(File file) throws IOException;
+    }
+
+    /**
+     * Receives the records read from an archive.
+     */
+    public interface Visitor {
+        void account(Credentials account) throws CatalogDBException;
+
+        void file(File file) throws CatalogDBException;
+    }
+
+    /**
+     * Creates an archive, replacing the specified file if it exists.
+     */
+    public static Writer create(Path file, Format format) throws IOException {
+        if (format == Format.CSV) {
+            return new CsvWriter(Files.newBufferedWriter(file, StandardCharsets.UTF_8));
+        }
+        return new BinaryWriter(new DataOutputStream(
+                new BufferedOutputStream(Files.newOutputStream(file), BUFFER_SIZE)));
+    }
+
+    /**
+     * Reads all records of the specified archive, in the order they were written.
+     *
+     * @return The number of records read.
+     * @throws IOException        If the archive could not be read, or is malformed.
+     * @throws CatalogDBException If the visitor failed.
+     */
+    public static long read(Path file, Format format, Visitor visitor) throws IOException, CatalogDBException {
+        if (format == Format.CSV) {
+            try (BufferedReader in = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+                return readCsv(in, visitor);
+            }
+        }
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(Files.newInputStream(file), BUFFER_SIZE))) {
+            return readBinary(in, visitor);
+        }
+    }
+
+    private static long readBinary(DataInputStream in, Visitor visitor) throws IOException, CatalogDBException {
+        if (in.readInt() != MAGIC || in.readUnsignedByte() != FORMAT_VERSION) {
+            throw new IOException("Not a catalog archive.");
+        }
+        long records = 0;
+        while (true) {
+            byte type = in.readByte();
+            switch (type) {
+                case ACCOUNT_RECORD:
+                    visitor.account(new Credentials(in.readUTF(), in.readUTF()));
+                    break;
+                case FILE_RECORD:
+                    String name = in.readUTF();
+                    int size = in.readInt();
+                    String owner = readNullable(in);
+                    String permission = readNullable(in);
+                    visitor.file(new File(name, size, owner, permission, in.readInt()));
+                    break;
+                case END_RECORD:
+                    return records;
+                default:
+                    throw new IOException("Malformed catalog archive, unknown record type " + type);
+            }
+            records++;
+        }
+    }
+
+    private static String readNullable(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+    private static long readCsv(Reader in, Visitor visitor) throws IOException, CatalogDBException {
+        long records = 0;
+        List<String> fields = new ArrayList<>();
+        boolean header = true;
+        while (readCsvLine(in, fields)) {
+            if (header) {
+                header = false;
+                if (!fields.isEmpty() && fields.get(0).equals("type")) {
+                    continue;
+                }
+            }
+            if (fields.size() == 1 && fields.get(0).isEmpty()) {
+                continue;
+            }
+            try {
+                if (fields.get(0).equals("ACCOUNT") && fields.size() >= 3) {
+                    visitor.account(new Credentials(fields.get(1), fields.get(2)));
+                } else if (fields.get(0).equals("FILE") && fields.size() >= 6) {
+                    visitor.file(new File(fields.get(1), Integer.parseInt(fields.get(2)),
+                                          emptyToNull(fields.get(3)), emptyToNull(fields.get(4)),
+                                          Integer.parseInt(fields.get(5))));
+                } else {
+                    throw new IOException("Malformed catalog archive line: " + fields);
+                }
+            } catch (NumberFormatException malformed) {
+                throw new IOException("Malformed catalog archive line: " + fields, malformed);
+            }
+            records++;
+        }
+        return records;
+    }
+
+    /**
+     * Reads the fields of one CSV line. Quoted fields may contain commas, quotes written as two
+     * quotes, and line breaks.
+     *
+     * @return <code>false</code> if the end of the input was reached before any field.
+     */
+    private static boolean readCsvLine(Reader in, List<String> fields) throws IOException {
+        fields.clear();
+        StringBuilder field = new StringBuilder();
+        boolean quoted = false;
+        int c = in.read();
+        if (c < 0) {
+            return false;
+        }
+        while (true) {
+            if (quoted) {
+                if (c < 0) {
+                    throw new IOException("Malformed catalog archive, unterminated quote.");
+                }
+                if (c == '"') {
+                    c = in.read();
+                    if (c != '"') {
+                        quoted = false;
+                        continue;
+                    }
+                }
+                field.append((char) c);
+            } else if (c == '"') {
+                quoted = true;
+            } else if (c == ',') {
+                fields.add(field.toString());
+                field.setLength(0);
+            } else if (c == '\n' || c < 0) {
+                fields.add(field.toString());
+                return true;
+            } else if (c != '\r') {
+                field.append((char) c);
+            }
+            c = in.read();
+        }
+    }
+
+    private static String emptyToNull(String field) {
+        return field.isEmpty() ? null : field;
+    }
+
+    private static final class BinaryWriter implements Writer {
+        private final DataOutputStream out;
+
+        BinaryWriter(DataOutputStream out) throws IOException {
+            this.out = out;
+            out.writeInt(MAGIC);
+            out.writeByte(FORMAT_VERSION);
+        }
+
+        @Override
+        public void writeAccount(Credentials account) throws IOException {
+            out.writeByte(ACCOUNT_RECORD);
+            out.writeUTF(account.getUsername());
+            out.writeUTF(account.getPassword());
+        }
+
+        @Override
+        public void writeFile(File file) throws IOException {
+            out.writeByte(FILE_RECORD);
+            out.writeUTF(file.getFileName());
+            out.writeInt(file.getFileSize());
+            writeNullable(file.getFileOwner());
+            writeNullable(file.getFilePermission());
+            out.writeInt(file.getFileVersion());
+        }
+
+        private void writeNullable(String value) throws IOException {
+            out.writeBoolean(value != null);
+            if (value != null) {
+                out.writeUTF(value);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                out.writeByte(END_RECORD);
+            } finally {
+                out.close();
+            }
+        }
+    }
+
+    private static final class CsvWriter implements Writer {
+        private final BufferedWriter out;
+
+        CsvWriter(BufferedWriter out) throws IOException {
+            this.out = out;
+            out.write(CSV_HEADER);
+            out.write('\n');
+        }
+
+        @Override
+        public void writeAccount(Credentials account) throws IOException {
+            out.write("ACCOUNT,");
+            writeField(account.getUsername());
+            out.write(',');
+            writeField(account.getPassword());
+            out.write('\n');
+        }
+
+        @Override
+        public void writeFile(File file) throws IOException {
+            out.write("FILE,");
+            writeField(file.getFileName());
+            out.write(',');
+            out.write(Integer.toString(file.getFileSize()));
+            out.write(',');
+            writeField(file.getFileOwner());
+            out.write(',');
+            writeField(file.getFilePermission());
+            out.write(',');
+            out.write(Integer.toString(file.getFileVersion()));
+            out.write('\n');
+        }
+
+        private void writeField(String value) throws IOException {
+            if (value == null) {
+                return;
+            }
+            if (value.indexOf(',') >= 0 || value.indexOf('"') >= 0
+                || value.indexOf('\n') >= 0 || value.indexOf('\r') >= 0) {
+                out.write('"');
+                out.write(value.replace("\"", "\"\""));
+                out.write('"');
+            } else {
+                out.write(value);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            out.close();
+        }
+    }
+}
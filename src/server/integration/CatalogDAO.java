@@ -1,38 +1,63 @@
 package server.integration;
 
 import common.Credentials;
+import common.QuotaExceededException;
+import common.Usage;
+import java.io.IOException;
 import java.sql.Connection;
 import java.sql.DatabaseMetaData;
 import java.sql.DriverManager;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
+import java.sql.Savepoint;
 import java.sql.SQLException;
 import java.sql.Statement;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
 import server.model.File;
 import common.FileDTO;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import server.trace.Trace;
 
 /**
  * This data access object (DAO) encapsulates all database calls in the bank application. No code
- * outside this class shall have any knowledge about the database.
+ * outside this class shall have any knowledge about the database. Each call takes a connection,
+ * with prepared statements of its own, from a small pool, so calls from different threads run in
+ * parallel. Calls made by a thread while it performs another call use the same connection, and so
+ * join its transaction.
  */
-public class CatalogDAO {
+public class CatalogDAO implements CatalogStore {
     private static final String TABLE_NAME = "FILE";
     private static final String FILENAME_COLUMN_NAME = "FILENAME";
     private static final String OWNER_COLUMN_NAME = "USERNAME";
     private static final String FILESIZE_COLUMN_NAME = "FILESIZE";
     private static final String FILEPERMISSION_COLUMN_NAME = "FILEPERMISSION";
-    private PreparedStatement createFileStmt;
-    private PreparedStatement findFileStmt;
-    private PreparedStatement findAllFilesStmt;
-    private PreparedStatement deleteFileStmt;
-    private PreparedStatement updateFileStmt;
-    private PreparedStatement getPasswordStmt;
-    private PreparedStatement userExistsStmt;
-    private PreparedStatement registerStmt;
+    private static final String VERSION_COLUMN_NAME = "VERSION";
+    private static final String CHANGE_COLUMN_NAME = "CHANGESEQ";
+    private static final String CHANGE_SEQUENCE_NAME = "FILE_CHANGES";
+    private static final String NEXT_CHANGE = "NEXT VALUE FOR " + CHANGE_SEQUENCE_NAME;
+    private static final String DELETED_TABLE_NAME = "FILE_DELETED";
+    private static final String USAGE_TABLE_NAME = "USAGE";
+    private static final String FILECOUNT_COLUMN_NAME = "FILECOUNT";
+    private static final String TOTALBYTES_COLUMN_NAME = "TOTALBYTES";
+    private static final String COMPUTE_USAGE = "INSERT INTO " + USAGE_TABLE_NAME + " SELECT " + OWNER_COLUMN_NAME
+                                                + ", COUNT(*), SUM(CAST(" + FILESIZE_COLUMN_NAME + " AS BIGINT)) FROM "
+                                                + TABLE_NAME + " WHERE " + OWNER_COLUMN_NAME + " IS NOT NULL GROUP BY "
+                                                + OWNER_COLUMN_NAME;
+    private static final String FILE_STAGING_TABLE_NAME = "FILE_IMPORT";
+    private static final String ACCOUNT_STAGING_TABLE_NAME = "ACCOUNT_IMPORT";
+    private static final String STAGED_COLUMN_NAME = "STAGED";
+    private static final int DEFAULT_CONNECTIONS = 8;
+    private final String dbms;
+    private final String datasource;
+    private final Semaphore available;
+    private final Queue<Session> idle = new ConcurrentLinkedQueue<>();
+    private final ThreadLocal<Session> held = new ThreadLocal<>();
+    private volatile boolean closed;
             
             
     /**
@@ -44,10 +69,24 @@ public class CatalogDAO {
      * @throws server.integration.CatalogDBException
      */
     public CatalogDAO(String dbms, String datasource) throws CatalogDBException {
+        this(dbms, datasource, DEFAULT_CONNECTIONS);
+    }
+
+    /**
+     * Constructs a new DAO object connected to the specified database.
+     *
+     * @param dbms        Database management system vendor. Currently supported type is "derby"
+     * @param datasource  Database name.
+     * @param connections The largest number of connections opened, and so of calls performed at
+     *                    the same time. Further calls wait for a connection.
+     * @throws server.integration.CatalogDBException
+     */
+    public CatalogDAO(String dbms, String datasource, int connections) throws CatalogDBException {
+        this.dbms = dbms;
+        this.datasource = datasource;
+        this.available = new Semaphore(connections);
         try {
-            Connection connection = createDatasource(dbms, datasource);
-            if(connection != null) 
-            prepareStatements(connection);
+            idle.add(new Session(createDatasource(dbms, datasource)));
         } catch (ClassNotFoundException | SQLException exception) {
             throw new CatalogDBException("Could not connect to datasource.", exception);
         }
@@ -56,32 +95,61 @@ public class CatalogDAO {
     private Connection createDatasource(String dbms, String datasource) throws
             ClassNotFoundException, SQLException, CatalogDBException {
         Connection connection = connectToCatalogDB(dbms, datasource);
-        if (!fileTableExists(connection)) {
+        if (!tableExists(connection, TABLE_NAME)) {
             Statement statement = connection.createStatement();
             statement.executeUpdate("CREATE TABLE " + TABLE_NAME
                                   + " (" + FILENAME_COLUMN_NAME + " VARCHAR(32) PRIMARY KEY, "
-                                    + FILESIZE_COLUMN_NAME + " INT," + OWNER_COLUMN_NAME + " VARCHAR(32)," + FILEPERMISSION_COLUMN_NAME + " VARCHAR(32))");  
+                                    + FILESIZE_COLUMN_NAME + " INT," + OWNER_COLUMN_NAME + " VARCHAR(32)," + FILEPERMISSION_COLUMN_NAME + " VARCHAR(32), "
+                                    + VERSION_COLUMN_NAME + " INT NOT NULL DEFAULT 0)");
+        } else if (!columnExists(connection, VERSION_COLUMN_NAME)) {
+            Statement statement = connection.createStatement();
+            statement.executeUpdate("ALTER TABLE " + TABLE_NAME + " ADD COLUMN "
+                                    + VERSION_COLUMN_NAME + " INT NOT NULL DEFAULT 0");
         }
-        if(!accountTableExists(connection)){
+        if (!columnExists(connection, CHANGE_COLUMN_NAME)) {
+            Statement statement = connection.createStatement();
+            statement.executeUpdate("CREATE SEQUENCE " + CHANGE_SEQUENCE_NAME + " AS BIGINT START WITH 1");
+            statement.executeUpdate("ALTER TABLE " + TABLE_NAME + " ADD COLUMN "
+                                    + CHANGE_COLUMN_NAME + " BIGINT NOT NULL DEFAULT 0");
+            statement.executeUpdate("CREATE INDEX " + TABLE_NAME + "_" + CHANGE_COLUMN_NAME + " ON "
+                                    + TABLE_NAME + " (" + CHANGE_COLUMN_NAME + ")");
+            statement.executeUpdate("CREATE TABLE " + DELETED_TABLE_NAME
+                                    + " (" + FILENAME_COLUMN_NAME + " VARCHAR(32) PRIMARY KEY, "
+                                    + CHANGE_COLUMN_NAME + " BIGINT NOT NULL)");
+            statement.executeUpdate("CREATE INDEX " + DELETED_TABLE_NAME + "_" + CHANGE_COLUMN_NAME + " ON "
+                                    + DELETED_TABLE_NAME + " (" + CHANGE_COLUMN_NAME + ")");
+        }
+        if(!tableExists(connection, "ACCOUNT")){
             Statement statement = connection.createStatement();
             statement.executeUpdate("CREATE TABLE ACCOUNT (NAME VARCHAR(32) PRIMARY KEY, PASSWORD VARCHAR(32))");
         }
+        if (!tableExists(connection, USAGE_TABLE_NAME)) {
+            Statement statement = connection.createStatement();
+            statement.executeUpdate("CREATE TABLE " + USAGE_TABLE_NAME
+                                    + " (" + OWNER_COLUMN_NAME + " VARCHAR(32) PRIMARY KEY, "
+                                    + FILECOUNT_COLUMN_NAME + " INT NOT NULL, "
+                                    + TOTALBYTES_COLUMN_NAME + " BIGINT NOT NULL)");
+            statement.executeUpdate(COMPUTE_USAGE);
+        }
 
         return connection;
     }
     
+    @Override
+    @SuppressWarnings("try")
     public String getPassword(String username) throws CatalogDBException{
-        ResultSet result = null;
-        try{
-            getPasswordStmt.setString(1, username);
-            result = getPasswordStmt.executeQuery();
-            if(result.next()){
-                return result.getString("PASSWORD");
-            }
-        } catch (SQLException ex) {
-            Logger.getLogger(CatalogDAO.class.getName()).log(Level.SEVERE, null, ex);
+        try (Trace.Span span = Trace.span("dao.getPassword")) {
+            return withSession("Could not read the password of " + username, session -> {
+                try (ResultSet result = session.query(session.getPasswordStmt, username)) {
+                    if(result.next()){
+                        return result.getString("PASSWORD");
+                    }
+                } catch (SQLException ex) {
+                    Logger.getLogger(CatalogDAO.class.getName()).log(Level.SEVERE, null, ex);
+                }
+                return null;
+            });
         }
-        return null;
     }
 
     /**
@@ -90,26 +158,91 @@ public class CatalogDAO {
      * @return
      * @throws CatalogDBException 
      */
+    @Override
+    @SuppressWarnings("try")
     public File findFileByName(String fileName) throws CatalogDBException {
-        String failureMsg = "Could not search for specified account.";
-        ResultSet result = null;
-        try {
-            findFileStmt.setString(1, fileName);
-            result = findFileStmt.executeQuery();
-            if (result.next()) {
-                return new File(fileName, result.getInt(FILESIZE_COLUMN_NAME), 
-                        result.getString(OWNER_COLUMN_NAME), result.getString(FILEPERMISSION_COLUMN_NAME));
+        try (Trace.Span span = Trace.span("dao.findFileByName")) {
+            return withSession("Could not search for specified account.", session -> {
+                try (ResultSet result = session.query(session.findFileStmt, fileName)) {
+                    if (result.next()) {
+                        return new File(fileName, result.getInt(FILESIZE_COLUMN_NAME), 
+                                result.getString(OWNER_COLUMN_NAME), result.getString(FILEPERMISSION_COLUMN_NAME),
+                                result.getInt(VERSION_COLUMN_NAME));
+                    }
+                }
+                return null;
+            });
+        }
+    }
+
+    /**
+     * Every create and update stamps the file's row with the next value of a database sequence,
+     * and every delete leaves the name of the file behind with such a value, so the latest value
+     * in either table is the position of the last write.
+     *
+     * @return The position of the last file write, 0 if there has been none.
+     * @throws CatalogDBException If failed to read the position.
+     */
+    @Override
+    public long getChangeSequence() throws CatalogDBException {
+        return withSession("Could not read the change sequence.", session -> {
+            long sequence = 0;
+            for (PreparedStatement statement : new PreparedStatement[]{session.lastChangeStmt,
+                                                                       session.lastDeletionStmt}) {
+                try (ResultSet result = statement.executeQuery()) {
+                    if (result.next()) {
+                        sequence = Math.max(sequence, result.getLong(1));
+                    }
+                }
             }
-        } catch (SQLException sqle) {
-            throw new CatalogDBException(failureMsg, sqle);
-        } finally {
-            try {
-                result.close();
-            } catch (Exception e) {
-                throw new CatalogDBException(failureMsg, e);
+            return sequence;
+        });
+    }
+
+    /**
+     * Retrieves the files created, updated or deleted after the specified position, using the
+     * indexes on the change sequence, without reading the rest of the rows.
+     *
+     * @param sequence A position returned by <code>getChangeSequence</code>.
+     * @return The files written after the position.
+     * @throws CatalogDBException If failed to search for files.
+     */
+    @Override
+    public Changes findChangesSince(long sequence) throws CatalogDBException {
+        return withSession("Could not list changed files.", session -> {
+            List<File> changed = new ArrayList<>();
+            session.findChangedStmt.setLong(1, sequence);
+            try (ResultSet result = session.findChangedStmt.executeQuery()) {
+                while (result.next()) {
+                    changed.add(new File(result.getString(FILENAME_COLUMN_NAME), result.getInt(FILESIZE_COLUMN_NAME),
+                            result.getString(OWNER_COLUMN_NAME), result.getString(FILEPERMISSION_COLUMN_NAME),
+                            result.getInt(VERSION_COLUMN_NAME)));
+                }
             }
-        }
-        return null;
+            List<String> deleted = new ArrayList<>();
+            session.findDeletedStmt.setLong(1, sequence);
+            try (ResultSet result = session.findDeletedStmt.executeQuery()) {
+                while (result.next()) {
+                    deleted.add(result.getString(FILENAME_COLUMN_NAME));
+                }
+            }
+            return new Changes(changed, deleted, false);
+        });
+    }
+
+    /**
+     * Retrieves the number of files and the total size of the files of the specified owner. These
+     * are kept up to date by every create, update and delete, so no files are read.
+     *
+     * @return The usage of the owner.
+     * @throws CatalogDBException If failed to read the usage.
+     */
+    @Override
+    public Usage findUsage(String owner) throws CatalogDBException {
+        return withSession("Could not read the usage of " + owner, session -> {
+            Usage usage = session.findUsage(owner);
+            return usage == null ? Usage.NONE : usage;
+        });
     }
 
     /**
@@ -118,19 +251,22 @@ public class CatalogDAO {
      * @return A list with all existing files. The list is empty if there are no files.
      * @throws BankDBException If failed to search for account.
      */
+    @Override
+    @SuppressWarnings("try")
     public List<File> findAllFiles() throws CatalogDBException {
-        String failureMsg = "Could not list accounts.";
-        List<File> files = new ArrayList<>();
-        try (ResultSet result = findAllFilesStmt.executeQuery()) {
-            while (result.next()) {
-                files.add(new File(result.getString(FILENAME_COLUMN_NAME), result.getInt(FILESIZE_COLUMN_NAME), 
-                        result.getString(OWNER_COLUMN_NAME), result.getString(FILEPERMISSION_COLUMN_NAME)));
-            }
-        } catch (SQLException sqle) {
-            throw new CatalogDBException(failureMsg, sqle);
+        try (Trace.Span span = Trace.span("dao.findAllFiles")) {
+            return withSession("Could not list accounts.", session -> {
+                List<File> files = new ArrayList<>();
+                try (ResultSet result = session.findAllFilesStmt.executeQuery()) {
+                    while (result.next()) {
+                        files.add(new File(result.getString(FILENAME_COLUMN_NAME), result.getInt(FILESIZE_COLUMN_NAME), 
+                                result.getString(OWNER_COLUMN_NAME), result.getString(FILEPERMISSION_COLUMN_NAME),
+                                result.getInt(VERSION_COLUMN_NAME)));
+                    }
+                }
+                return files;
+            });
         }
-
-        return files;
     }
 
     /**
@@ -139,20 +275,42 @@ public class CatalogDAO {
      * @param file The file to create.
      * @throws BankDBException If failed to create the specified file.
      */
+    @Override
     public void createFile(File file) throws CatalogDBException {
-        String failureMsg = "Could not create the file: " + file;
+        create(file, null);
+    }
+
+    /**
+     * Creates a new file, provided that the usage row of its owner stays within the specified
+     * limit, which is checked by the same statement that updates the row.
+     */
+    @Override
+    public void createFile(File file, Usage limit) throws CatalogDBException, QuotaExceededException {
         try {
+            create(file, limit);
+        } catch (QuotaRefused refused) {
+            throw refused.refusal;
+        }
+    }
+
+    private void create(File file, Usage limit) throws CatalogDBException {
+        String failureMsg = "Could not create the file: " + file;
+        inTransaction(failureMsg, session -> {
+            PreparedStatement createFileStmt = session.createFileStmt;
             createFileStmt.setString(1, file.getFileName());
             createFileStmt.setInt(2, file.getFileSize());
             createFileStmt.setString(3, file.getFileOwner());
             createFileStmt.setString(4, file.getFilePermission());
+            createFileStmt.setInt(5, file.getFileVersion());
             int rows = createFileStmt.executeUpdate();
             if (rows != 1) {
                 throw new CatalogDBException(failureMsg);
             }
-        } catch (SQLException sqle) {
-            throw new CatalogDBException(failureMsg, sqle);
-        }
+            session.undeleteStmt.setString(1, file.getFileName());
+            session.undeleteStmt.executeUpdate();
+            session.addUsage(file.getFileOwner(), 1, file.getFileSize(), limit);
+            return null;
+        });
     }
 
     /**
@@ -161,53 +319,483 @@ public class CatalogDAO {
      * @param file The file to delete.
      * @throws server.integration.CatalogDBException
      */
+    @Override
     public void deleteFile(FileDTO file) throws CatalogDBException {
-        try {
-            deleteFileStmt.setString(1, file.getFileName());
-            deleteFileStmt.executeUpdate();
-        } catch (SQLException sqle) {
-            throw new CatalogDBException("Could not delete the file: " + file, sqle);
-        }
+        deleteFile(file.getFileName());
     }
-    
+
+    private void deleteFile(String filename) throws CatalogDBException {
+        inTransaction("Could not delete the file: " + filename, session -> {
+            File file = findFileByName(filename);
+            if (file == null) {
+                return null;
+            }
+            session.deleteFileStmt.setString(1, filename);
+            if (session.deleteFileStmt.executeUpdate() == 1) {
+                session.addUsage(file.getFileOwner(), -1, -file.getFileSize());
+                session.undeleteStmt.setString(1, filename);
+                session.undeleteStmt.executeUpdate();
+                session.markDeletedStmt.setString(1, filename);
+                session.markDeletedStmt.executeUpdate();
+            }
+            return null;
+        });
+    }
+
     /**
-     * 
-     * @param file
-     * @throws CatalogDBException 
+     * Sets the size of the specified file, provided that the file still has the specified version.
+     * The version is incremented by one.
+     *
+     * @param filename        The file to update.
+     * @param newSize         The new size of the file.
+     * @param expectedVersion The version the file must have for the update to take place.
+     * @return <code>true</code> if the file was updated, <code>false</code> if it did not have the
+     *         expected version, or did not exist.
+     * @throws CatalogDBException If failed to update the file.
      */
-    public void updateFile(String filename, int newSize) throws CatalogDBException {
+    @Override
+    public boolean updateFile(String filename, int newSize, int expectedVersion) throws CatalogDBException {
+        return update(filename, newSize, expectedVersion, null);
+    }
+
+    @Override
+    public boolean updateFile(String filename, int newSize, int expectedVersion, Usage limit)
+            throws CatalogDBException, QuotaExceededException {
         try {
+            return update(filename, newSize, expectedVersion, limit);
+        } catch (QuotaRefused refused) {
+            throw refused.refusal;
+        }
+    }
+
+    private boolean update(String filename, int newSize, int expectedVersion, Usage limit) throws CatalogDBException {
+        return inTransaction("Could not update the file: " + filename, session -> {
+            File file = findFileByName(filename);
+            if (file == null || file.getFileVersion() != expectedVersion) {
+                return false;
+            }
+            PreparedStatement updateFileStmt = session.updateFileStmt;
             updateFileStmt.setInt(1, newSize);
             updateFileStmt.setString(2, filename);
-            updateFileStmt.executeUpdate();
+            updateFileStmt.setInt(3, expectedVersion);
+            if (updateFileStmt.executeUpdate() != 1) {
+                return false;
+            }
+            session.addUsage(file.getFileOwner(), 0, (long) newSize - file.getFileSize(), limit);
+            return true;
+        });
+    }
+
+    /**
+     * Work on the database, performed with the connection of a session.
+     */
+    private interface Work<T> {
+        T perform(Session session) throws SQLException, CatalogDBException;
+    }
+
+    /**
+     * Performs the specified work with the session of the calling thread, or with a session taken
+     * from the pool, which is returned when the work is done.
+     */
+    private <T> T withSession(String failureMsg, Work<T> work) throws CatalogDBException {
+        Session session = held.get();
+        boolean taken = session == null;
+        if (taken) {
+            session = acquire();
+            held.set(session);
+        }
+        try {
+            return work.perform(session);
         } catch (SQLException sqle) {
-            throw new CatalogDBException("Could not update the file: " + filename, sqle);
+            throw new CatalogDBException(failureMsg, sqle);
+        } finally {
+            if (taken) {
+                held.remove();
+                release(session);
+            }
         }
     }
 
-    private boolean fileTableExists(Connection connection) throws SQLException {
-        int tableNameColumn = 3;
-        DatabaseMetaData dbm = connection.getMetaData();
-        try (ResultSet rs = dbm.getTables(null, null, null, null)) {
-            for (; rs.next();) {
-                if (rs.getString(tableNameColumn).equals(TABLE_NAME)) {
-                    return true;
+    private Session acquire() throws CatalogDBException {
+        if (closed) {
+            throw new CatalogDBException("The catalog is closed.");
+        }
+        try {
+            available.acquire();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new CatalogDBException("Interrupted while waiting for a connection.", ex);
+        }
+        Session session = idle.poll();
+        if (session != null) {
+            return session;
+        }
+        try {
+            return new Session(connectToCatalogDB(dbms, datasource));
+        } catch (ClassNotFoundException | SQLException exception) {
+            available.release();
+            throw new CatalogDBException("Could not connect to datasource.", exception);
+        } catch (CatalogDBException | RuntimeException failed) {
+            available.release();
+            throw failed;
+        }
+    }
+
+    /**
+     * Returns a session to the pool, unless its connection was lost or the DAO was closed.
+     */
+    private void release(Session session) {
+        boolean usable;
+        try {
+            usable = !closed && !session.connection.isClosed();
+        } catch (SQLException ex) {
+            usable = false;
+        }
+        if (usable) {
+            idle.add(session);
+        } else {
+            session.close();
+        }
+        available.release();
+    }
+
+    /**
+     * Performs the specified work in one transaction. If a transaction is already open, as when
+     * called from <code>writeBatch</code>, the work joins it, and is committed or rolled back by
+     * the owner of that transaction.
+     */
+    @SuppressWarnings("try")
+    private <T> T inTransaction(String failureMsg, Work<T> work) throws CatalogDBException {
+        try (Trace.Span span = Trace.span("dao.transaction")) {
+            return withSession(failureMsg, session -> {
+                Connection connection = session.connection;
+                if (!connection.getAutoCommit()) {
+                    return work.perform(session);
+                }
+                try {
+                    connection.setAutoCommit(false);
+                    T result = work.perform(session);
+                    connection.commit();
+                    return result;
+                } catch (SQLException | CatalogDBException | RuntimeException failed) {
+                    session.rollback();
+                    throw failed;
+                } finally {
+                    try {
+                        connection.setAutoCommit(true);
+                    } catch (SQLException ex) {
+                        Logger.getLogger(CatalogDAO.class.getName()).log(Level.SEVERE, null, ex);
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * Writes all the specified file mutations in one transaction. Each write is guarded by a
+     * savepoint, so that a failing write does not abort the others.
+     *
+     * @param writes The writes to perform, in order.
+     * @return The failure of each write, <code>null</code> for writes that succeeded.
+     * @throws CatalogDBException If the transaction could not be committed, in which case none of
+     *                            the writes took effect.
+     */
+    CatalogDBException[] writeBatch(List<BatchedWrite> writes) throws CatalogDBException {
+        CatalogDBException[] failures = new CatalogDBException[writes.size()];
+        withSession("Could not commit batch of " + writes.size() + " writes.", session -> {
+            Connection connection = session.connection;
+            try {
+                connection.setAutoCommit(false);
+                for (int i = 0; i < writes.size(); i++) {
+                    Savepoint savepoint = connection.setSavepoint();
+                    try {
+                        write(writes.get(i));
+                        connection.releaseSavepoint(savepoint);
+                    } catch (CatalogDBException failed) {
+                        connection.rollback(savepoint);
+                        failures[i] = failed;
+                    }
+                }
+                connection.commit();
+            } catch (SQLException | RuntimeException failed) {
+                session.rollback();
+                throw failed;
+            } finally {
+                try {
+                    connection.setAutoCommit(true);
+                } catch (SQLException ex) {
+                    Logger.getLogger(CatalogDAO.class.getName()).log(Level.SEVERE, null, ex);
                 }
             }
-            return false;
+            return null;
+        });
+        return failures;
+    }
+
+    private void write(BatchedWrite write) throws CatalogDBException {
+        switch (write.type) {
+            case CREATE:
+                create(write.file, write.limit);
+                break;
+            case UPDATE:
+                write.applied = update(write.filename, write.newSize, write.expectedVersion, write.limit);
+                break;
+            case DELETE:
+                deleteFile(write.filename);
+                break;
         }
     }
-    
-    private boolean accountTableExists(Connection connection) throws SQLException {
-        int tableNameColumn = 3;
-        DatabaseMetaData dbm = connection.getMetaData();
-        try (ResultSet rs = dbm.getTables(null, null, null, null)) {
-            for (; rs.next();) {
-                if (rs.getString(tableNameColumn).equals("ACCOUNT")) {
-                    return true;
+
+    /**
+     * Streams the rows of this datasource to the specified archive. Rows are fetched from the
+     * database in blocks of <code>fetchSize</code>, and are never all held in memory.
+     *
+     * @param out       The archive to write to.
+     * @param accounts  <code>true</code> if the accounts shall be exported as well as the files.
+     * @param fetchSize The number of rows fetched from the database at a time.
+     * @return The number of rows exported.
+     * @throws CatalogDBException If failed to read the rows.
+     * @throws IOException        If failed to write the archive.
+     */
+    @Override
+    public long exportTo(CatalogArchive.Writer out, boolean accounts, int fetchSize)
+            throws CatalogDBException, IOException {
+        long rows = 0;
+        Session session = acquire();
+        try (Statement statement = session.connection.createStatement(ResultSet.TYPE_FORWARD_ONLY,
+                                                                      ResultSet.CONCUR_READ_ONLY)) {
+            statement.setFetchSize(fetchSize);
+            if (accounts) {
+                try (ResultSet result = statement.executeQuery("SELECT NAME, PASSWORD FROM ACCOUNT")) {
+                    while (result.next()) {
+                        out.writeAccount(new Credentials(result.getString(1), result.getString(2)));
+                        rows++;
+                    }
                 }
             }
-            return false;
+            try (ResultSet result = statement.executeQuery("SELECT * FROM " + TABLE_NAME)) {
+                while (result.next()) {
+                    out.writeFile(new File(result.getString(FILENAME_COLUMN_NAME), result.getInt(FILESIZE_COLUMN_NAME),
+                            result.getString(OWNER_COLUMN_NAME), result.getString(FILEPERMISSION_COLUMN_NAME),
+                            result.getInt(VERSION_COLUMN_NAME)));
+                    rows++;
+                }
+            }
+        } catch (SQLException sqle) {
+            throw new CatalogDBException("Could not export the catalog.", sqle);
+        } finally {
+            release(session);
+        }
+        return rows;
+    }
+
+    /**
+     * Prepares a bulk import by creating empty staging tables. The staging tables have no primary
+     * key, so rows are loaded into them without any index maintenance or uniqueness checks. Each
+     * row is numbered in the order it was staged. Staging tables left by an earlier import are
+     * dropped and created again.
+     *
+     * @throws CatalogDBException If failed to create the staging tables.
+     */
+    @Override
+    public void beginImport() throws CatalogDBException {
+        withSession("Could not prepare the import.", session -> {
+            beginImport(session.connection);
+            return null;
+        });
+    }
+
+    private void beginImport(Connection connection) throws SQLException {
+        try (Statement statement = connection.createStatement()) {
+            if (tableExists(connection, FILE_STAGING_TABLE_NAME)) {
+                statement.executeUpdate("DROP TABLE " + FILE_STAGING_TABLE_NAME);
+            }
+            statement.executeUpdate("CREATE TABLE " + FILE_STAGING_TABLE_NAME
+                                    + " (" + FILENAME_COLUMN_NAME + " VARCHAR(32) NOT NULL, "
+                                    + FILESIZE_COLUMN_NAME + " INT, " + OWNER_COLUMN_NAME + " VARCHAR(32), "
+                                    + FILEPERMISSION_COLUMN_NAME + " VARCHAR(32), "
+                                    + VERSION_COLUMN_NAME + " INT NOT NULL, "
+                                    + STAGED_COLUMN_NAME + " BIGINT GENERATED ALWAYS AS IDENTITY)");
+            if (tableExists(connection, ACCOUNT_STAGING_TABLE_NAME)) {
+                statement.executeUpdate("DROP TABLE " + ACCOUNT_STAGING_TABLE_NAME);
+            }
+            statement.executeUpdate("CREATE TABLE " + ACCOUNT_STAGING_TABLE_NAME
+                                    + " (NAME VARCHAR(32) NOT NULL, PASSWORD VARCHAR(32), "
+                                    + STAGED_COLUMN_NAME + " BIGINT GENERATED ALWAYS AS IDENTITY)");
+        }
+    }
+
+    /**
+     * Loads rows into the staging tables created by <code>beginImport</code>, which may have been
+     * called on another DAO of the same datasource. The rows are sent as JDBC batches, and
+     * committed in one transaction.
+     *
+     * @param files    The files to load.
+     * @param accounts The accounts to load.
+     * @throws CatalogDBException If failed to load the rows, in which case none of them are loaded.
+     */
+    private void stage(List<File> files, List<Credentials> accounts) throws CatalogDBException {
+        inTransaction("Could not load " + files.size() + " files and " + accounts.size() + " accounts.", session -> {
+            if (session.stageFileStmt == null) {
+                session.stageFileStmt = session.connection.prepareStatement(
+                        "INSERT INTO " + FILE_STAGING_TABLE_NAME + " (" + FILENAME_COLUMN_NAME + ", "
+                        + FILESIZE_COLUMN_NAME + ", " + OWNER_COLUMN_NAME + ", " + FILEPERMISSION_COLUMN_NAME + ", "
+                        + VERSION_COLUMN_NAME + ") VALUES (?, ?, ?, ?, ?)");
+                session.stageAccountStmt = session.connection.prepareStatement(
+                        "INSERT INTO " + ACCOUNT_STAGING_TABLE_NAME + " (NAME, PASSWORD) VALUES (?, ?)");
+            }
+            PreparedStatement stageFileStmt = session.stageFileStmt;
+            PreparedStatement stageAccountStmt = session.stageAccountStmt;
+            for (File file : files) {
+                stageFileStmt.setString(1, file.getFileName());
+                stageFileStmt.setInt(2, file.getFileSize());
+                stageFileStmt.setString(3, file.getFileOwner());
+                stageFileStmt.setString(4, file.getFilePermission());
+                stageFileStmt.setInt(5, file.getFileVersion());
+                stageFileStmt.addBatch();
+            }
+            if (!files.isEmpty()) {
+                stageFileStmt.executeBatch();
+            }
+            for (Credentials account : accounts) {
+                stageAccountStmt.setString(1, account.getUsername());
+                stageAccountStmt.setString(2, account.getPassword());
+                stageAccountStmt.addBatch();
+            }
+            if (!accounts.isEmpty()) {
+                stageAccountStmt.executeBatch();
+            }
+            return null;
+        });
+    }
+
+    /**
+     * @return A loader with a connection of its own, so that loaders do not wait for each other.
+     */
+    @Override
+    public CatalogStore.Loader openLoader() throws CatalogDBException {
+        CatalogDAO loader = new CatalogDAO(dbms, datasource, 1);
+        return new CatalogStore.Loader() {
+            @Override
+            public void stage(List<File> files, List<Credentials> accounts) throws CatalogDBException {
+                loader.stage(files, accounts);
+            }
+
+            @Override
+            public void close() {
+                loader.close();
+            }
+        };
+    }
+
+    /**
+     * Completes a bulk import by moving the staged rows into the catalog tables, with one
+     * statement per table so that the indexes are built in one pass, and then recomputing the
+     * usage of all owners. Rows whose name is already in the catalog are skipped. Of several files
+     * staged with the same name, the one with the highest version is moved, and of those the one
+     * staged first. Of several accounts staged with the same name, the one staged first is moved.
+     * The number of rows skipped is logged. The staging tables are dropped.
+     *
+     * @return The number of files added to the catalog.
+     * @throws CatalogDBException If failed to move the rows, in which case none of them are moved.
+     */
+    @Override
+    public int finishImport() throws CatalogDBException {
+        return withSession("Could not complete the import.", session -> {
+            int imported = moveStagedRows();
+            try (Statement statement = session.connection.createStatement()) {
+                statement.executeUpdate("DROP TABLE " + FILE_STAGING_TABLE_NAME);
+                statement.executeUpdate("DROP TABLE " + ACCOUNT_STAGING_TABLE_NAME);
+            } catch (SQLException sqle) {
+                Logger.getLogger(CatalogDAO.class.getName()).log(Level.WARNING, "Could not drop the staging tables.", sqle);
+            }
+            return imported;
+        });
+    }
+
+    private int moveStagedRows() throws CatalogDBException {
+        return inTransaction("Could not complete the import.", session -> {
+            try (Statement statement = session.connection.createStatement()) {
+                statement.executeUpdate("CREATE INDEX " + FILE_STAGING_TABLE_NAME + "_NAME ON "
+                                        + FILE_STAGING_TABLE_NAME + " (" + FILENAME_COLUMN_NAME + ")");
+                statement.executeUpdate("CREATE INDEX " + ACCOUNT_STAGING_TABLE_NAME + "_NAME ON "
+                                        + ACCOUNT_STAGING_TABLE_NAME + " (NAME)");
+                int stagedAccounts = count(statement, "SELECT COUNT(*) FROM " + ACCOUNT_STAGING_TABLE_NAME);
+                int takenAccounts = count(statement, "SELECT COUNT(DISTINCT S.NAME) FROM " + ACCOUNT_STAGING_TABLE_NAME
+                                                     + " S WHERE EXISTS (SELECT 1 FROM ACCOUNT A WHERE A.NAME = S.NAME)");
+                int accounts = statement.executeUpdate(
+                        "INSERT INTO ACCOUNT SELECT S.NAME, S.PASSWORD FROM " + ACCOUNT_STAGING_TABLE_NAME
+                        + " S WHERE NOT EXISTS (SELECT 1 FROM ACCOUNT A WHERE A.NAME = S.NAME) AND NOT EXISTS (SELECT 1 FROM "
+                        + ACCOUNT_STAGING_TABLE_NAME + " T WHERE T.NAME = S.NAME AND T." + STAGED_COLUMN_NAME + " < S."
+                        + STAGED_COLUMN_NAME + ")");
+                reportSkipped("accounts", stagedAccounts, takenAccounts, accounts);
+                int stagedFiles = count(statement, "SELECT COUNT(*) FROM " + FILE_STAGING_TABLE_NAME);
+                int takenFiles = count(statement, "SELECT COUNT(DISTINCT S." + FILENAME_COLUMN_NAME + ") FROM "
+                                                  + FILE_STAGING_TABLE_NAME + " S WHERE EXISTS "
+                                                  + "(SELECT 1 FROM " + TABLE_NAME + " F WHERE F." + FILENAME_COLUMN_NAME
+                                                  + " = S." + FILENAME_COLUMN_NAME + ")");
+                int files = statement.executeUpdate(
+                        "INSERT INTO " + TABLE_NAME + " (" + FILENAME_COLUMN_NAME + ", " + FILESIZE_COLUMN_NAME
+                        + ", " + OWNER_COLUMN_NAME + ", " + FILEPERMISSION_COLUMN_NAME + ", " + VERSION_COLUMN_NAME
+                        + ", " + CHANGE_COLUMN_NAME + ") SELECT S." + FILENAME_COLUMN_NAME + ", S." + FILESIZE_COLUMN_NAME
+                        + ", S." + OWNER_COLUMN_NAME + ", S." + FILEPERMISSION_COLUMN_NAME + ", S." + VERSION_COLUMN_NAME
+                        + ", " + NEXT_CHANGE + " FROM " + FILE_STAGING_TABLE_NAME + " S WHERE NOT EXISTS (SELECT 1 FROM "
+                        + TABLE_NAME + " F WHERE F." + FILENAME_COLUMN_NAME + " = S." + FILENAME_COLUMN_NAME
+                        + ") AND NOT EXISTS (SELECT 1 FROM " + FILE_STAGING_TABLE_NAME + " T WHERE T." + FILENAME_COLUMN_NAME
+                        + " = S." + FILENAME_COLUMN_NAME + " AND (T." + VERSION_COLUMN_NAME + " > S." + VERSION_COLUMN_NAME
+                        + " OR (T." + VERSION_COLUMN_NAME + " = S." + VERSION_COLUMN_NAME + " AND T." + STAGED_COLUMN_NAME
+                        + " < S." + STAGED_COLUMN_NAME + ")))");
+                reportSkipped("files", stagedFiles, takenFiles, files);
+                statement.executeUpdate("DELETE FROM " + DELETED_TABLE_NAME + " WHERE " + FILENAME_COLUMN_NAME
+                                        + " IN (SELECT " + FILENAME_COLUMN_NAME + " FROM " + FILE_STAGING_TABLE_NAME + ")");
+                statement.executeUpdate("DELETE FROM " + USAGE_TABLE_NAME);
+                statement.executeUpdate(COMPUTE_USAGE);
+                return files;
+            }
+        });
+    }
+
+    private static int count(Statement statement, String query) throws SQLException {
+        try (ResultSet result = statement.executeQuery(query)) {
+            return result.next() ? result.getInt(1) : 0;
+        }
+    }
+
+    /**
+     * Logs the number of staged rows of an import that were not added, since their name was
+     * already taken, or since another row staged with the same name was added instead.
+     */
+    private static void reportSkipped(String rows, int staged, int taken, int added) {
+        if (added < staged) {
+            Logger.getLogger(CatalogDAO.class.getName()).log(Level.WARNING,
+                    "Imported {0} of {1} staged {2}, skipped {3} whose name is taken and {4} duplicates.",
+                    new Object[]{added, staged, rows, taken, staged - taken - added});
+        }
+    }
+
+    /**
+     * Closes the connections of this DAO, those in use when they are returned. The DAO can not be
+     * used afterwards.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        for (Session session; (session = idle.poll()) != null; ) {
+            session.close();
+        }
+    }
+
+    private boolean tableExists(Connection connection, String tableName) throws SQLException {
+        DatabaseMetaData dbm = connection.getMetaData();
+        try (ResultSet rs = dbm.getTables(null, null, tableName, new String[] {"TABLE"})) {
+            return rs.next();
+        }
+    }
+
+    private boolean columnExists(Connection connection, String columnName) throws SQLException {
+        DatabaseMetaData dbm = connection.getMetaData();
+        try (ResultSet rs = dbm.getColumns(null, null, TABLE_NAME, columnName)) {
+            return rs.next();
         }
     }
 
@@ -222,47 +810,202 @@ public class CatalogDAO {
         }
     }
     
+    @Override
     public boolean userExists (String username) throws CatalogDBException {
         String failureMsg = "Could not determine whether user exists or not.";
-        ResultSet result;
-        try {
-            userExistsStmt.setString(1, username);
-            result = userExistsStmt.executeQuery();
-             return result.next();
-        } catch (SQLException sqle) {
-            throw new CatalogDBException(failureMsg, sqle);
-        }
+        return withSession(failureMsg, session -> {
+            try (ResultSet result = session.query(session.userExistsStmt, username)) {
+                return result.next();
+            }
+        });
     }
     
+    @Override
     public void register(Credentials credentials) throws CatalogDBException {
          String failureMsg = "Could not register with username: " + credentials.getUsername();
-        try {
-            registerStmt.setString(1, credentials.getUsername());
-            registerStmt.setString(2, credentials.getPassword());
-            int rows = registerStmt.executeUpdate();
+        withSession(failureMsg, session -> {
+            session.registerStmt.setString(1, credentials.getUsername());
+            session.registerStmt.setString(2, credentials.getPassword());
+            int rows = session.registerStmt.executeUpdate();
             if (rows != 1) {
                 throw new CatalogDBException(failureMsg);
             }
-        } catch (SQLException sqle) {
-            throw new CatalogDBException(failureMsg, sqle);
+            return null;
+        });
+    }
+
+    /**
+     * Aborts the transaction of a write that would take its owner over the limit, carrying the
+     * exception thrown to the caller.
+     */
+    static class QuotaRefused extends CatalogDBException {
+        private static final long serialVersionUID = 1L;
+        final QuotaExceededException refusal;
+
+        QuotaRefused(QuotaExceededException refusal) {
+            super(refusal.getMessage(), refusal);
+            this.refusal = refusal;
         }
     }
-    
 
-    private void prepareStatements(Connection connection) throws SQLException {
-        createFileStmt = connection.prepareStatement("INSERT INTO "
-                                                        + TABLE_NAME + " VALUES (?, ?, ?, ?)");
-        findFileStmt = connection.prepareStatement("SELECT * from "
-                                                      + TABLE_NAME + " WHERE FILENAME = ?");
-        findAllFilesStmt = connection.prepareStatement("SELECT * from "
-                                                          + TABLE_NAME);
-        deleteFileStmt = connection.prepareStatement("DELETE FROM "
-                                                        + TABLE_NAME
-                                                        + " WHERE FILENAME = ?"); 
-        updateFileStmt = connection.prepareStatement("UPDATE " + TABLE_NAME + " SET FILESIZE = ? WHERE FILENAME = ? ");
-        getPasswordStmt = connection.prepareStatement("SELECT PASSWORD from ACCOUNT WHERE NAME = ?");
-        userExistsStmt = connection.prepareStatement("SELECT * FROM ACCOUNT WHERE NAME = ?");
-        registerStmt = connection.prepareStatement("INSERT INTO ACCOUNT VALUES(?, ?)");
+    /**
+     * One connection of the pool, with its prepared statements. Used by one thread at a time.
+     */
+    private static class Session {
+        private final Connection connection;
+        private final PreparedStatement createFileStmt;
+        private final PreparedStatement findFileStmt;
+        private final PreparedStatement findAllFilesStmt;
+        private final PreparedStatement lastChangeStmt;
+        private final PreparedStatement lastDeletionStmt;
+        private final PreparedStatement findChangedStmt;
+        private final PreparedStatement findDeletedStmt;
+        private final PreparedStatement markDeletedStmt;
+        private final PreparedStatement undeleteStmt;
+        private final PreparedStatement deleteFileStmt;
+        private final PreparedStatement updateFileStmt;
+        private final PreparedStatement getPasswordStmt;
+        private final PreparedStatement userExistsStmt;
+        private final PreparedStatement registerStmt;
+        private final PreparedStatement addUsageStmt;
+        private final PreparedStatement insertUsageStmt;
+        private final PreparedStatement addUsageWithinStmt;
+        private final PreparedStatement findUsageStmt;
+        private PreparedStatement stageFileStmt;
+        private PreparedStatement stageAccountStmt;
+
+        Session(Connection connection) throws SQLException {
+            this.connection = connection;
+            createFileStmt = connection.prepareStatement("INSERT INTO " + TABLE_NAME + " ("
+                                                            + FILENAME_COLUMN_NAME + ", " + FILESIZE_COLUMN_NAME + ", "
+                                                            + OWNER_COLUMN_NAME + ", " + FILEPERMISSION_COLUMN_NAME + ", "
+                                                            + VERSION_COLUMN_NAME + ", " + CHANGE_COLUMN_NAME
+                                                            + ") VALUES (?, ?, ?, ?, ?, " + NEXT_CHANGE + ")");
+            findFileStmt = connection.prepareStatement("SELECT * from "
+                                                          + TABLE_NAME + " WHERE FILENAME = ?");
+            findAllFilesStmt = connection.prepareStatement("SELECT * from "
+                                                              + TABLE_NAME);
+            lastChangeStmt = connection.prepareStatement("SELECT MAX(" + CHANGE_COLUMN_NAME + ") from " + TABLE_NAME);
+            lastDeletionStmt = connection.prepareStatement("SELECT MAX(" + CHANGE_COLUMN_NAME + ") from "
+                                                           + DELETED_TABLE_NAME);
+            findChangedStmt = connection.prepareStatement("SELECT * from " + TABLE_NAME + " WHERE "
+                                                          + CHANGE_COLUMN_NAME + " > ?");
+            findDeletedStmt = connection.prepareStatement("SELECT " + FILENAME_COLUMN_NAME + " from "
+                                                          + DELETED_TABLE_NAME + " WHERE " + CHANGE_COLUMN_NAME + " > ?");
+            markDeletedStmt = connection.prepareStatement("INSERT INTO " + DELETED_TABLE_NAME + " VALUES (?, "
+                                                          + NEXT_CHANGE + ")");
+            undeleteStmt = connection.prepareStatement("DELETE FROM " + DELETED_TABLE_NAME + " WHERE "
+                                                       + FILENAME_COLUMN_NAME + " = ?");
+            deleteFileStmt = connection.prepareStatement("DELETE FROM "
+                                                            + TABLE_NAME
+                                                            + " WHERE FILENAME = ?"); 
+            updateFileStmt = connection.prepareStatement("UPDATE " + TABLE_NAME + " SET FILESIZE = ?, VERSION = VERSION + 1, "
+                                                            + CHANGE_COLUMN_NAME + " = " + NEXT_CHANGE
+                                                            + " WHERE FILENAME = ? AND VERSION = ?");
+            getPasswordStmt = connection.prepareStatement("SELECT PASSWORD from ACCOUNT WHERE NAME = ?");
+            userExistsStmt = connection.prepareStatement("SELECT * FROM ACCOUNT WHERE NAME = ?");
+            registerStmt = connection.prepareStatement("INSERT INTO ACCOUNT VALUES(?, ?)");
+            addUsageStmt = connection.prepareStatement("UPDATE " + USAGE_TABLE_NAME + " SET "
+                                                       + FILECOUNT_COLUMN_NAME + " = " + FILECOUNT_COLUMN_NAME + " + ?, "
+                                                       + TOTALBYTES_COLUMN_NAME + " = " + TOTALBYTES_COLUMN_NAME + " + ?"
+                                                       + " WHERE " + OWNER_COLUMN_NAME + " = ?");
+            insertUsageStmt = connection.prepareStatement("INSERT INTO " + USAGE_TABLE_NAME + " VALUES (?, ?, ?)");
+            addUsageWithinStmt = connection.prepareStatement("UPDATE " + USAGE_TABLE_NAME + " SET "
+                                                       + FILECOUNT_COLUMN_NAME + " = " + FILECOUNT_COLUMN_NAME + " + ?, "
+                                                       + TOTALBYTES_COLUMN_NAME + " = " + TOTALBYTES_COLUMN_NAME + " + ?"
+                                                       + " WHERE " + OWNER_COLUMN_NAME + " = ?"
+                                                       + " AND (CAST(? AS INT) <= 0 OR " + FILECOUNT_COLUMN_NAME + " + ? <= ?)"
+                                                       + " AND (CAST(? AS BIGINT) <= 0 OR " + TOTALBYTES_COLUMN_NAME + " + ? <= ?)");
+            findUsageStmt = connection.prepareStatement("SELECT * from " + USAGE_TABLE_NAME + " WHERE "
+                                                        + OWNER_COLUMN_NAME + " = ?");
+        }
+
+        ResultSet query(PreparedStatement statement, String key) throws SQLException {
+            statement.setString(1, key);
+            return statement.executeQuery();
+        }
+
+        /**
+         * Adds the specified differences to the usage of the specified owner. Must be called in
+         * the same transaction as the file write it accounts for.
+         */
+        void addUsage(String owner, int files, long bytes) throws SQLException {
+            if (owner == null) {
+                return;
+            }
+            addUsageStmt.setInt(1, files);
+            addUsageStmt.setLong(2, bytes);
+            addUsageStmt.setString(3, owner);
+            if (addUsageStmt.executeUpdate() == 0) {
+                insertUsageStmt.setString(1, owner);
+                insertUsageStmt.setInt(2, files);
+                insertUsageStmt.setLong(3, bytes);
+                insertUsageStmt.executeUpdate();
+            }
+        }
+
+        /**
+         * Adds the specified differences to the usage of the specified owner, like
+         * <code>addUsage</code>, provided that the usage stays within the specified limit. The
+         * limit is only checked for the numbers that grow.
+         *
+         * @param limit The largest usage permitted, <code>null</code> if there is none.
+         * @throws QuotaRefused If the usage would exceed the limit.
+         */
+        void addUsage(String owner, int files, long bytes, Usage limit) throws SQLException, CatalogDBException {
+            if (owner == null || limit == null || (files <= 0 && bytes <= 0)) {
+                addUsage(owner, files, bytes);
+                return;
+            }
+            addUsageWithinStmt.setInt(1, files);
+            addUsageWithinStmt.setLong(2, bytes);
+            addUsageWithinStmt.setString(3, owner);
+            addUsageWithinStmt.setInt(4, files);
+            addUsageWithinStmt.setInt(5, files);
+            addUsageWithinStmt.setInt(6, limit.getFileCount());
+            addUsageWithinStmt.setLong(7, bytes);
+            addUsageWithinStmt.setLong(8, bytes);
+            addUsageWithinStmt.setLong(9, limit.getTotalBytes());
+            if (addUsageWithinStmt.executeUpdate() == 1) {
+                return;
+            }
+            Usage current = findUsage(owner);
+            Usage next = (current == null ? Usage.NONE : current).plus(files, bytes);
+            if (current != null || (files > 0 && next.getFileCount() > limit.getFileCount())
+                || (bytes > 0 && next.getTotalBytes() > limit.getTotalBytes())) {
+                throw new QuotaRefused(new QuotaExceededException(
+                        owner + " would have " + next + ", at most " + limit + " are permitted."));
+            }
+            addUsage(owner, files, bytes);
+        }
+
+        /**
+         * @return The usage row of the specified owner, <code>null</code> if there is none.
+         */
+        Usage findUsage(String owner) throws SQLException {
+            try (ResultSet result = query(findUsageStmt, owner)) {
+                if (result.next()) {
+                    return new Usage(result.getInt(FILECOUNT_COLUMN_NAME), result.getLong(TOTALBYTES_COLUMN_NAME));
+                }
+                return null;
+            }
+        }
+
+        void rollback() {
+            try {
+                connection.rollback();
+            } catch (SQLException ex) {
+                Logger.getLogger(CatalogDAO.class.getName()).log(Level.SEVERE, null, ex);
+            }
+        }
+
+        void close() {
+            try {
+                connection.close();
+            } catch (SQLException ex) {
+                Logger.getLogger(CatalogDAO.class.getName()).log(Level.WARNING, null, ex);
+            }
+        }
     }
 
 }
@@ -0,0 +1,186 @@
+package server.integration;
+
+import common.Credentials;
+import common.FileDTO;
+import common.QuotaExceededException;
+import common.Usage;
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.List;
+import server.model.File;
+
+/**
+ * A storage engine holding the files and accounts of one catalog shard. There are two engines:
+ * <code>CatalogDAO</code>, which stores the catalog in a database through JDBC, and
+ * <code>LogStructuredStore</code>, an embedded append-only log. Engines must be safe for use by
+ * several threads.
+ */
+public interface CatalogStore {
+    /**
+     * The engine name selecting <code>LogStructuredStore</code>. Any other name is passed to
+     * <code>CatalogDAO</code> as the database management system vendor.
+     */
+    String LOG_ENGINE = "log";
+
+    /**
+     * Opens a shard.
+     *
+     * @param engine     <code>LOG_ENGINE</code>, or a database management system vendor.
+     * @param datasource The database name, or the directory of the log.
+     * @return The opened shard.
+     * @throws CatalogDBException If failed to open the shard.
+     */
+    static CatalogStore open(String engine, String datasource) throws CatalogDBException {
+        if (LOG_ENGINE.equalsIgnoreCase(engine)) {
+            return new LogStructuredStore(Paths.get(datasource));
+        }
+        return new CatalogDAO(engine, datasource);
+    }
+
+    /**
+     * @return The password of the specified user, or <code>null</code> if there is no such user.
+     */
+    String getPassword(String username) throws CatalogDBException;
+
+    boolean userExists(String username) throws CatalogDBException;
+
+    /**
+     * Creates an account.
+     *
+     * @throws CatalogDBException If failed to create the account, or if the username is taken.
+     */
+    void register(Credentials credentials) throws CatalogDBException;
+
+    /**
+     * @return The specified file, or <code>null</code> if there is no such file.
+     */
+    File findFileByName(String fileName) throws CatalogDBException;
+
+    List<File> findAllFiles() throws CatalogDBException;
+
+    /**
+     * @return The position of the last file write in the change sequence of this shard, which
+     *         every create, update and delete advances.
+     */
+    long getChangeSequence() throws CatalogDBException;
+
+    /**
+     * @param sequence A position returned by <code>getChangeSequence</code>.
+     * @return The files written after the specified position. May include files written before.
+     */
+    Changes findChangesSince(long sequence) throws CatalogDBException;
+
+    /**
+     * @return The number of files the specified owner has in this shard, and their total size.
+     */
+    Usage findUsage(String owner) throws CatalogDBException;
+
+    /**
+     * Creates a file.
+     *
+     * @throws CatalogDBException If failed to create the file, or if the filename is taken.
+     */
+    void createFile(File file) throws CatalogDBException;
+
+    /**
+     * Creates a file, provided that its owner's usage in this shard stays within the specified
+     * limit. The usage is checked and updated atomically with the file, so that writes through
+     * other servers sharing the shard are taken into account.
+     *
+     * @param limit The largest usage the owner may reach in this shard.
+     * @throws CatalogDBException     If failed to create the file, or if the filename is taken.
+     * @throws QuotaExceededException If the file would take the owner over the limit.
+     */
+    void createFile(File file, Usage limit) throws CatalogDBException, QuotaExceededException;
+
+    void deleteFile(FileDTO file) throws CatalogDBException;
+
+    /**
+     * Sets the size of the specified file and increments its version, provided that the file has
+     * the specified version.
+     *
+     * @return <code>true</code> if the file was updated.
+     */
+    boolean updateFile(String filename, int newSize, int expectedVersion) throws CatalogDBException;
+
+    /**
+     * Like <code>updateFile</code>, provided that the owner's usage in this shard stays within the
+     * specified limit. Updates that do not make the file larger are always permitted.
+     *
+     * @param limit The largest usage the owner may reach in this shard.
+     * @throws QuotaExceededException If the new size would take the owner over the limit.
+     */
+    boolean updateFile(String filename, int newSize, int expectedVersion, Usage limit)
+            throws CatalogDBException, QuotaExceededException;
+
+    /**
+     * Writes the files, and optionally the accounts, of this shard to an archive.
+     *
+     * @return The number of rows written.
+     */
+    long exportTo(CatalogArchive.Writer out, boolean accounts, int fetchSize) throws CatalogDBException, IOException;
+
+    /**
+     * Starts a bulk import, after which rows are staged through loaders and added by
+     * <code>finishImport</code>.
+     */
+    void beginImport() throws CatalogDBException;
+
+    /**
+     * @return A loader that stages rows of a bulk import. Each loader is used by one thread, and
+     *         several loaders may stage rows concurrently.
+     */
+    Loader openLoader() throws CatalogDBException;
+
+    /**
+     * Adds all staged rows whose name is not already taken. Of several files staged with the same
+     * name, the one with the highest version is added, and of those the one staged first. Of
+     * several accounts staged with the same name, the one staged first is added. Rows that are
+     * skipped are counted in the log, and do not fail the import.
+     *
+     * @return The number of files added.
+     */
+    int finishImport() throws CatalogDBException;
+
+    /**
+     * Closes this shard. It can not be used afterwards.
+     */
+    void close();
+
+    /**
+     * The files of a shard written after a position in its change sequence.
+     */
+    final class Changes {
+        /**
+         * The files created or updated.
+         */
+        public final List<File> changed;
+        /**
+         * The names of the files deleted.
+         */
+        public final List<String> deleted;
+        /**
+         * <code>true</code> if <code>changed</code> holds every file of the shard, in which case
+         * all other files have been deleted.
+         */
+        public final boolean complete;
+
+        public Changes(List<File> changed, List<String> deleted, boolean complete) {
+            this.changed = changed;
+            this.deleted = deleted;
+            this.complete = complete;
+        }
+    }
+
+    /**
+     * Stages rows for a bulk import.
+     */
+    interface Loader {
+        void stage(List<File> files, List<Credentials> accounts) throws CatalogDBException;
+
+        /**
+         * Releases the resources of this loader, without closing the shard.
+         */
+        void close();
+    }
+}
@@ -0,0 +1,431 @@
+package server.integration;
+
+import common.BlockSignatures;
+import common.Delta;
+import common.RollingChecksum;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * The content of files, stored in a directory with one data file per catalog file. The checksums
+ * of the blocks of each file are kept in memory, computed when the file is first used after a
+ * start, and updated when a <code>Delta</code> is applied. A delta is applied in place: only the
+ * pieces it holds are written, with positional writes, so the cost of an update grows with the size
+ * of the change rather than the size of the file.
+ *
+ * Before a delta is applied, it is <code>stage</code>d: the bytes it writes, including the blocks
+ * it copies, are forced to a journal next to the data file, together with the catalog version the
+ * update creates. Only then is the catalog updated, and the delta applied and the journal removed.
+ * If the update is interrupted, the journal is found when the file is next used, or next updated
+ * without a delta, and the delta is applied again if the catalog has the version it was staged
+ * for, or dropped if it has not. So the content always matches the catalog, and never holds a
+ * partly applied delta.
+ *
+ * Callers must make sure a file is not used by two calls at the same time, by holding the file's
+ * lock in the catalog.
+ */
+public class ContentStore {
+    private static final String DATA_SUFFIX = ".dat";
+    private static final String JOURNAL_SUFFIX = ".pending";
+    private final Path directory;
+    private final int blockSize;
+    private final Map<String, Blocks> blocks = new ConcurrentHashMap<>();
+
+    /**
+     * Opens the store in the specified directory.
+     *
+     * @param directory Where the content is stored, created if missing.
+     * @param blockSize The size of the blocks checksums are kept for.
+     * @throws IOException If the directory could not be created.
+     */
+    public ContentStore(Path directory, int blockSize) throws IOException {
+        this.directory = directory;
+        this.blockSize = blockSize;
+        Files.createDirectories(directory);
+    }
+
+    /**
+     * @param filename The file whose content to describe, which may have no content yet.
+     * @param version  The version of the file in the catalog.
+     * @return The checksums of the blocks of the file's content.
+     */
+    public BlockSignatures signatures(String filename, int version) throws IOException {
+        Blocks stored = blocks(filename, version);
+        return new BlockSignatures(version, blockSize, stored.length, stored.weak.clone(), stored.strong.clone());
+    }
+
+    /**
+     * @param version The version of the file in the catalog.
+     * @return <code>false</code> if the specified delta was not computed against the blocks of the
+     *         file's current content, writes outside the new content, or leaves part of the content
+     *         beyond the current content unwritten.
+     */
+    public boolean fits(String filename, int version, Delta delta) throws IOException {
+        if (delta.getBlockSize() != blockSize || delta.getLength() < 0) {
+            return false;
+        }
+        long oldLength = blocks(filename, version).length;
+        long fullBlocks = oldLength / blockSize;
+        List<long[]> beyond = new ArrayList<>();
+        for (int piece = 0; piece < delta.getPieceCount(); piece++) {
+            int source = delta.getSourceBlock(piece);
+            long length = source == Delta.LITERAL ? delta.getLiteral(piece).length : blockSize;
+            long target = delta.getTarget(piece);
+            if (source != Delta.LITERAL && (source < 0 || source >= fullBlocks)) {
+                return false;
+            }
+            if (target < 0 || target + length > delta.getLength()) {
+                return false;
+            }
+            if (target + length > oldLength) {
+                beyond.add(new long[]{Math.max(target, oldLength), target + length});
+            }
+        }
+        beyond.sort(Comparator.comparingLong(range -> range[0]));
+        long written = oldLength;
+        for (long[] range : beyond) {
+            if (range[0] > written) {
+                return false;
+            }
+            written = Math.max(written, range[1]);
+        }
+        return written >= delta.getLength();
+    }
+
+    /**
+     * Completes or drops a delta left in the journal of a file by an interrupted update, against
+     * the version the file has in the catalog. Must be called before the catalog is updated
+     * without a delta, or the update would give the file the version the delta was staged for.
+     *
+     * @param version The version of the file in the catalog.
+     */
+    public void settle(String filename, int version) throws IOException {
+        if (Files.exists(journal(filename))) {
+            blocks.remove(filename);
+            recover(filename, version);
+        }
+    }
+
+    /**
+     * Forces a delta to the journal of a file, to be applied once the catalog has been updated.
+     * The blocks the delta copies are read now, so the journal holds every byte to be written.
+     *
+     * @param filename The file to change.
+     * @param version  The version of the file in the catalog, which the update increments.
+     * @param delta    A delta that <code>fits</code> the file's content.
+     * @return The staged delta, which must be committed or abandoned while holding the file's lock.
+     * @throws IOException If the journal could not be written, the content is left as it was.
+     */
+    public Staged stage(String filename, int version, Delta delta) throws IOException {
+        Blocks base = blocks(filename, version);
+        Delta resolved = new Delta(blockSize, delta.getLength());
+        Map<Integer, byte[]> copied = new HashMap<>();
+        FileChannel channel = null;
+        try {
+            for (int piece = 0; piece < delta.getPieceCount(); piece++) {
+                int source = delta.getSourceBlock(piece);
+                if (source != Delta.LITERAL && !copied.containsKey(source)) {
+                    if (channel == null) {
+                        channel = FileChannel.open(path(filename), StandardOpenOption.READ);
+                    }
+                    ByteBuffer block = read(channel, (long) source * blockSize, blockSize);
+                    copied.put(source, Arrays.copyOf(block.array(), block.limit()));
+                }
+                resolved.literal(delta.getTarget(piece),
+                                 source == Delta.LITERAL ? delta.getLiteral(piece) : copied.get(source));
+            }
+        } finally {
+            if (channel != null) {
+                channel.close();
+            }
+        }
+        Path journal = journal(filename);
+        try {
+            writeJournal(journal, version + 1, resolved);
+        } catch (IOException failed) {
+            Files.deleteIfExists(journal);
+            throw failed;
+        }
+        return new Staged(filename, base, resolved);
+    }
+
+    /**
+     * A delta forced to the journal of a file, not yet applied to its content.
+     */
+    public class Staged {
+        private final String filename;
+        private final Blocks base;
+        private final Delta resolved;
+
+        private Staged(String filename, Blocks base, Delta resolved) {
+            this.filename = filename;
+            this.base = base;
+            this.resolved = resolved;
+        }
+
+        /**
+         * Applies the delta to the content, after the catalog has been updated. Only the checksums
+         * of the blocks that were written are computed again.
+         *
+         * @throws IOException If the delta could not be applied, in which case it is applied again
+         *                     from the journal when the file is next used.
+         */
+        public void commit() throws IOException {
+            try (FileChannel channel = FileChannel.open(path(filename), StandardOpenOption.CREATE,
+                                                        StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                BitSet written = writeInPlace(channel, resolved, base.length);
+                blocks.put(filename, base.resized(resolved.getLength(), written, channel));
+            } catch (IOException failed) {
+                blocks.remove(filename);
+                throw failed;
+            }
+            Files.deleteIfExists(journal(filename));
+        }
+
+        /**
+         * Drops the delta, when the catalog was not updated.
+         */
+        public void abandon() {
+            try {
+                Files.deleteIfExists(journal(filename));
+            } catch (IOException ex) {
+                Logger.getLogger(ContentStore.class.getName()).log(Level.WARNING,
+                        "Could not remove the journal of " + filename, ex);
+            }
+        }
+    }
+
+    /**
+     * Writes the literal pieces of a resolved delta, and forces them to disk.
+     *
+     * @return The blocks that were written.
+     */
+    private BitSet writeInPlace(FileChannel channel, Delta resolved, long oldLength) throws IOException {
+        BitSet written = new BitSet();
+        for (int piece = 0; piece < resolved.getPieceCount(); piece++) {
+            ByteBuffer data = ByteBuffer.wrap(resolved.getLiteral(piece));
+            long target = resolved.getTarget(piece);
+            if (data.hasRemaining()) {
+                written.set((int) (target / blockSize), (int) ((target + data.remaining() - 1) / blockSize) + 1);
+            }
+            write(channel, data, target);
+        }
+        if (channel.size() > resolved.getLength()) {
+            channel.truncate(resolved.getLength());
+        }
+        channel.force(false);
+        if (resolved.getLength() != oldLength && resolved.getLength() > 0) {
+            written.set((int) ((resolved.getLength() - 1) / blockSize));
+        }
+        return written;
+    }
+
+    private static void writeJournal(Path journal, int version, Delta resolved) throws IOException {
+        try (FileChannel channel = FileChannel.open(journal, StandardOpenOption.CREATE,
+                                                    StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            CheckedOutputStream checked = new CheckedOutputStream(
+                    new BufferedOutputStream(Channels.newOutputStream(channel), 1 << 16), new CRC32());
+            DataOutputStream out = new DataOutputStream(checked);
+            out.writeInt(version);
+            out.writeLong(resolved.getLength());
+            out.writeInt(resolved.getPieceCount());
+            for (int piece = 0; piece < resolved.getPieceCount(); piece++) {
+                byte[] literal = resolved.getLiteral(piece);
+                out.writeLong(resolved.getTarget(piece));
+                out.writeInt(literal.length);
+                out.write(literal);
+            }
+            out.writeInt((int) checked.getChecksum().getValue());
+            out.flush();
+            channel.force(true);
+        }
+    }
+
+    /**
+     * Completes or drops an update interrupted after its delta was staged.
+     *
+     * @param version The version of the file in the catalog.
+     */
+    private void recover(String filename, int version) throws IOException {
+        Path journal = journal(filename);
+        if (!Files.exists(journal)) {
+            return;
+        }
+        Delta resolved = readJournal(journal, version);
+        if (resolved != null) {
+            Logger.getLogger(ContentStore.class.getName()).log(Level.INFO,
+                    "Completing an interrupted update of {0}.", filename);
+            try (FileChannel channel = FileChannel.open(path(filename), StandardOpenOption.CREATE,
+                                                        StandardOpenOption.WRITE)) {
+                writeInPlace(channel, resolved, -1);
+            }
+        }
+        Files.delete(journal);
+    }
+
+    /**
+     * @return The delta in the journal, or <code>null</code> if it was staged for another version
+     *         than the specified one, or was not completely written.
+     */
+    private Delta readJournal(Path journal, int version) throws IOException {
+        long size = Files.size(journal);
+        CheckedInputStream checked = new CheckedInputStream(
+                new BufferedInputStream(Files.newInputStream(journal), 1 << 16), new CRC32());
+        try (DataInputStream in = new DataInputStream(checked)) {
+            if (in.readInt() != version) {
+                return null;
+            }
+            Delta resolved = new Delta(blockSize, in.readLong());
+            int pieces = in.readInt();
+            for (int piece = 0; piece < pieces; piece++) {
+                long target = in.readLong();
+                int length = in.readInt();
+                if (length < 0 || length > size) {
+                    return null;
+                }
+                byte[] literal = new byte[length];
+                in.readFully(literal);
+                resolved.literal(target, literal);
+            }
+            int computed = (int) checked.getChecksum().getValue();
+            return in.readInt() == computed ? resolved : null;
+        } catch (EOFException incomplete) {
+            return null;
+        }
+    }
+
+    /**
+     * Removes the content of a file.
+     */
+    public void delete(String filename) throws IOException {
+        blocks.remove(filename);
+        Files.deleteIfExists(journal(filename));
+        Files.deleteIfExists(path(filename));
+    }
+
+    /**
+     * @param version The version of the file in the catalog, against which a staged delta left
+     *                by an interrupted update is checked.
+     */
+    private Blocks blocks(String filename, int version) throws IOException {
+        Blocks stored = blocks.get(filename);
+        if (stored != null) {
+            return stored;
+        }
+        recover(filename, version);
+        try (FileChannel channel = FileChannel.open(path(filename), StandardOpenOption.READ)) {
+            long length = channel.size();
+            BitSet all = new BitSet();
+            all.set(0, blockCount(length));
+            stored = new Blocks(0, new int[0], new byte[0]).resized(length, all, channel);
+        } catch (NoSuchFileException noContent) {
+            stored = new Blocks(0, new int[0], new byte[0]);
+        }
+        blocks.put(filename, stored);
+        return stored;
+    }
+
+    private int blockCount(long length) {
+        return (int) ((length + blockSize - 1) / blockSize);
+    }
+
+    /**
+     * The data file of a catalog file, named after the hex digits of the filename, so that any
+     * filename can be stored.
+     */
+    private Path path(String filename) {
+        return directory.resolve(hex(filename) + DATA_SUFFIX);
+    }
+
+    /**
+     * The journal of a catalog file, holding a staged delta.
+     */
+    private Path journal(String filename) {
+        return directory.resolve(hex(filename) + JOURNAL_SUFFIX);
+    }
+
+    private static String hex(String filename) {
+        StringBuilder name = new StringBuilder();
+        for (byte b : filename.getBytes(StandardCharsets.UTF_8)) {
+            name.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return name.toString();
+    }
+
+    private static ByteBuffer read(FileChannel channel, long position, int length) throws IOException {
+        ByteBuffer data = ByteBuffer.allocate(length);
+        while (data.hasRemaining()) {
+            if (channel.read(data, position + data.position()) < 0) {
+                break;
+            }
+        }
+        data.flip();
+        return data;
+    }
+
+    private static void write(FileChannel channel, ByteBuffer data, long position) throws IOException {
+        long at = position;
+        while (data.hasRemaining()) {
+            at += channel.write(data, at);
+        }
+    }
+
+    /**
+     * The checksums of the blocks of one file's content.
+     */
+    private class Blocks {
+        private final long length;
+        private final int[] weak;
+        private final byte[] strong;
+
+        Blocks(long length, int[] weak, byte[] strong) {
+            this.length = length;
+            this.weak = weak;
+            this.strong = strong;
+        }
+
+        /**
+         * @return The checksums of content of the specified length, where the blocks in
+         *         <code>changed</code> are read again from <code>channel</code>.
+         */
+        Blocks resized(long newLength, BitSet changed, FileChannel channel) throws IOException {
+            int count = blockCount(newLength);
+            Blocks resized = new Blocks(newLength, Arrays.copyOf(weak, count),
+                                        Arrays.copyOf(strong, count * BlockSignatures.STRONG_SIZE));
+            for (int block = changed.nextSetBit(0); block >= 0 && block < count; block = changed.nextSetBit(block + 1)) {
+                long start = (long) block * blockSize;
+                ByteBuffer data = read(channel, start, (int) Math.min(blockSize, newLength - start));
+                byte[] bytes = Arrays.copyOf(data.array(), data.limit());
+                resized.weak[block] = RollingChecksum.of(bytes, 0, bytes.length);
+                System.arraycopy(BlockSignatures.strong(bytes, 0, bytes.length), 0, resized.strong,
+                                 block * BlockSignatures.STRONG_SIZE, BlockSignatures.STRONG_SIZE);
+            }
+            return resized;
+        }
+    }
+}
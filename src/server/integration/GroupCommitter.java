@@ -0,0 +1,140 @@
+package server.integration;
+
+import common.FileDTO;
+import common.QuotaExceededException;
+import common.Usage;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import server.model.File;
+
+/**
+ * Collects file mutations from many threads and writes them to the database in batches, one
+ * transaction per batch. A batch is written when it holds <code>maxBatchSize</code> writes, or when
+ * the first write in it has waited for <code>maxDelayMillis</code>. Callers block until the batch
+ * containing their write has been committed, or for at most <code>WRITE_TIMEOUT_SECONDS</code>.
+ */
+public class GroupCommitter implements Runnable {
+    private static final Logger LOGGER = Logger.getLogger(GroupCommitter.class.getName());
+    /**
+     * How long a caller waits for its batch. A write that times out may still be committed.
+     */
+    private static final long WRITE_TIMEOUT_SECONDS = 60;
+    private final BlockingQueue<BatchedWrite> pending = new LinkedBlockingQueue<>();
+    private final CatalogDAO writer;
+    private final int maxBatchSize;
+    private final long maxDelayMillis;
+
+    /**
+     * Starts a committer writing through the specified DAO, which must not be used for anything
+     * else since it runs its own transactions.
+     *
+     * @param writer         The DAO used to write batches.
+     * @param maxBatchSize   The largest number of writes in one transaction.
+     * @param maxDelayMillis The longest time a write waits for more writes to join its batch.
+     */
+    public GroupCommitter(CatalogDAO writer, int maxBatchSize, long maxDelayMillis) {
+        this.writer = writer;
+        this.maxBatchSize = maxBatchSize;
+        this.maxDelayMillis = maxDelayMillis;
+        Thread committer = new Thread(this, "group-committer");
+        committer.setDaemon(true);
+        committer.start();
+    }
+
+    /**
+     * @param limit The largest usage the owner may reach, <code>null</code> if there is none.
+     * @see CatalogStore#createFile(File, Usage)
+     */
+    public void createFile(File file, Usage limit) throws CatalogDBException, QuotaExceededException {
+        submitLimited(BatchedWrite.create(file, limit));
+    }
+
+    /**
+     * @param limit The largest usage the owner may reach, <code>null</code> if there is none.
+     * @see CatalogStore#updateFile(String, int, int, Usage)
+     */
+    public boolean updateFile(String filename, int newSize, int expectedVersion, Usage limit)
+            throws CatalogDBException, QuotaExceededException {
+        return submitLimited(BatchedWrite.update(filename, newSize, expectedVersion, limit));
+    }
+
+    public void deleteFile(FileDTO file) throws CatalogDBException {
+        submit(BatchedWrite.delete(file));
+    }
+
+    private boolean submitLimited(BatchedWrite write) throws CatalogDBException, QuotaExceededException {
+        try {
+            return submit(write);
+        } catch (CatalogDAO.QuotaRefused refused) {
+            throw refused.refusal;
+        }
+    }
+
+    private boolean submit(BatchedWrite write) throws CatalogDBException {
+        pending.add(write);
+        try {
+            return write.done.get(WRITE_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        } catch (TimeoutException ex) {
+            throw new CatalogDBException("Timed out waiting for the batch writing " + write.filename, ex);
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof CatalogDBException) {
+                throw (CatalogDBException) ex.getCause();
+            }
+            throw new CatalogDBException("Could not write " + write.filename, ex.getCause());
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new CatalogDBException("Interrupted while writing " + write.filename, ex);
+        }
+    }
+
+    @Override
+    public void run() {
+        List<BatchedWrite> batch = new ArrayList<>();
+        while (true) {
+            try {
+                batch.add(pending.take());
+                long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(maxDelayMillis);
+                while (batch.size() < maxBatchSize) {
+                    BatchedWrite next = pending.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+                    if (next == null) {
+                        break;
+                    }
+                    batch.add(next);
+                }
+            } catch (InterruptedException stopped) {
+                return;
+            }
+            commit(batch);
+            batch.clear();
+        }
+    }
+
+    private void commit(List<BatchedWrite> batch) {
+        try {
+            CatalogDBException[] failures = writer.writeBatch(batch);
+            for (int i = 0; i < batch.size(); i++) {
+                if (failures[i] == null) {
+                    batch.get(i).done.complete(batch.get(i).applied);
+                } else {
+                    batch.get(i).done.completeExceptionally(failures[i]);
+                }
+            }
+        } catch (CatalogDBException commitFailed) {
+            for (BatchedWrite write : batch) {
+                write.done.completeExceptionally(commitFailed);
+            }
+        } catch (RuntimeException | Error unexpected) {
+            LOGGER.log(Level.SEVERE, "Could not commit batch of " + batch.size() + " writes.", unexpected);
+            for (BatchedWrite write : batch) {
+                write.done.completeExceptionally(unexpected);
+            }
+        }
+    }
+}
@@ -0,0 +1,871 @@
+package server.integration;
+
+import common.Credentials;
+import common.FileDTO;
+import common.QuotaExceededException;
+import common.Usage;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+import server.model.File;
+
+/**
+ * A catalog shard stored in an append-only log, without a database. Every change is appended to
+ * the log as a record holding the new state of a file or account, or the removal of a file. The
+ * latest state of every file and account is kept in memory, so reads never touch the log, and the
+ * log is only read when the store is opened.
+ *
+ * A write returns when its record has been forced to disk. Writers that arrive while the log is
+ * being forced wait for that force to complete, and are then made durable together by a single
+ * force, so concurrent writers share the cost of an fsync. A write only becomes visible to readers
+ * once it is durable. Until then its file or account is pending: other writes to it wait, and
+ * compaction copies its record.
+ *
+ * The log is compacted in the background when most of it is records that have been superseded:
+ * the current state is written to a new log, which replaces the old one.
+ *
+ * A record that could not be written completely is cut off the log again, and only its write
+ * fails. When the log is opened, a torn last record is discarded, but a corrupt record followed by
+ * others fails the open, since discarding it would also discard every later write. If the log can not be forced, or a partial record can not be cut off, it is unknown what
+ * is on disk, so the store fails closed: every later call throws, and the store must be opened
+ * again, which reads back what was made durable.
+ */
+public class LogStructuredStore implements CatalogStore {
+    private static final String LOG_FILE_NAME = "catalog.log";
+    private static final String COMPACTION_FILE_NAME = "catalog.log.compacting";
+    private static final byte PUT_FILE = 'F';
+    private static final byte DELETE_FILE = 'D';
+    private static final byte PUT_ACCOUNT = 'A';
+    private static final int RECORD_HEADER_SIZE = 2 * Integer.BYTES;
+    private static final long COMPACTION_INTERVAL_SECONDS = 60;
+    private static final long COMPACTION_MIN_SIZE = 1 << 20;
+    private final Path directory;
+    private final Map<String, File> files = new ConcurrentHashMap<>();
+    private final Map<String, String> accounts = new ConcurrentHashMap<>();
+    private final Object syncLock = new Object();
+    private final ScheduledExecutorService compactor;
+    private final List<File> stagedFiles = new ArrayList<>();
+    private final List<Credentials> stagedAccounts = new ArrayList<>();
+    private final Map<String, byte[]> pendingFiles = new HashMap<>();
+    private final Map<String, byte[]> pendingAccounts = new HashMap<>();
+    private final Map<String, Usage> usage = new HashMap<>();
+    private FileChannel log;
+    private long logSize;
+    private long liveBytes;
+    private long appendedRecords;
+    private long syncedRecords;
+    private volatile IOException failure;
+
+    /**
+     * Opens the log in the specified directory, creating it if missing, and reads it into memory.
+     * An incomplete record at the end of the log, left by a crash during a write, is discarded.
+     *
+     * @param directory The directory of the log.
+     * @throws CatalogDBException If the log could not be opened or read, or is corrupt before its
+     *                            last record.
+     */
+    public LogStructuredStore(Path directory) throws CatalogDBException {
+        this.directory = directory;
+        try {
+            Files.createDirectories(directory);
+            Files.deleteIfExists(directory.resolve(COMPACTION_FILE_NAME));
+            Path logFile = directory.resolve(LOG_FILE_NAME);
+            log = FileChannel.open(logFile, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                                   StandardOpenOption.WRITE);
+            logSize = replay(logFile);
+            for (File file : files.values()) {
+                addUsage(file.getFileOwner(), 1, file.getFileSize());
+            }
+            log.truncate(logSize);
+            log.position(logSize);
+        } catch (IOException ex) {
+            throw new CatalogDBException("Could not open the log in " + directory, ex);
+        }
+        compactor = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "catalog-log-compaction");
+            thread.setDaemon(true);
+            return thread;
+        });
+        compactor.scheduleWithFixedDelay(this::compactIfWorthwhile, COMPACTION_INTERVAL_SECONDS,
+                                         COMPACTION_INTERVAL_SECONDS, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Reads the log into memory.
+     *
+     * @return The length of the valid part of the log.
+     * @throws IOException If the log could not be read, or a record other than the last is corrupt.
+     */
+    private long replay(Path logFile) throws IOException {
+        long logLength = Files.size(logFile);
+        long position = 0;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(logFile), 1 << 16))) {
+            CRC32 crc = new CRC32();
+            while (true) {
+                int length;
+                int checksum;
+                byte[] body;
+                try {
+                    length = in.readInt();
+                    checksum = in.readInt();
+                    if (length > logLength - position - RECORD_HEADER_SIZE) {
+                        return tornAt(logFile, position);
+                    }
+                    if (length <= 0) {
+                        if (zeroFrom(logFile, position)) {
+                            return tornAt(logFile, position);
+                        }
+                        throw new IOException("Corrupt record header in log " + logFile + " at position " + position);
+                    }
+                    body = new byte[length];
+                    in.readFully(body);
+                } catch (EOFException incompleteRecord) {
+                    return tornAt(logFile, position);
+                }
+                crc.reset();
+                crc.update(body);
+                if ((int) crc.getValue() != checksum) {
+                    if (position + RECORD_HEADER_SIZE + length == logLength) {
+                        return tornAt(logFile, position);
+                    }
+                    throw new IOException("Corrupt record in log " + logFile + " at position " + position
+                                          + ", followed by " + (logLength - position - RECORD_HEADER_SIZE - length)
+                                          + " more bytes.");
+                }
+                apply(body);
+                position += RECORD_HEADER_SIZE + length;
+            }
+        }
+    }
+
+    private static long tornAt(Path logFile, long position) throws IOException {
+        if (position < Files.size(logFile)) {
+            Logger.getLogger(LogStructuredStore.class.getName()).log(Level.WARNING,
+                    "Discarding torn end of log {0} from position {1}.", new Object[] {logFile, position});
+        }
+        return position;
+    }
+
+    /**
+     * @return <code>true</code> if the log holds only zeros from the specified position, which is
+     *         what a crash leaves when the file was extended but the record not yet written.
+     */
+    private static boolean zeroFrom(Path logFile, long position) throws IOException {
+        try (FileChannel channel = FileChannel.open(logFile, StandardOpenOption.READ)) {
+            ByteBuffer buffer = ByteBuffer.allocate(1 << 16);
+            channel.position(position);
+            while (channel.read(buffer) > 0) {
+                buffer.flip();
+                while (buffer.hasRemaining()) {
+                    if (buffer.get() != 0) {
+                        return false;
+                    }
+                }
+                buffer.clear();
+            }
+            return true;
+        }
+    }
+
+    private void apply(byte[] body) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(body));
+        byte type = in.readByte();
+        switch (type) {
+            case PUT_FILE:
+                String name = in.readUTF();
+                int size = in.readInt();
+                String owner = in.readBoolean() ? in.readUTF() : null;
+                String permission = in.readBoolean() ? in.readUTF() : null;
+                File previous = files.put(name, new File(name, size, owner, permission, in.readInt()));
+                liveBytes += RECORD_HEADER_SIZE + body.length - (previous == null ? 0 : encodedSize(previous));
+                break;
+            case DELETE_FILE:
+                File removed = files.remove(in.readUTF());
+                if (removed != null) {
+                    liveBytes -= encodedSize(removed);
+                }
+                break;
+            case PUT_ACCOUNT:
+                accounts.put(in.readUTF(), in.readUTF());
+                liveBytes += RECORD_HEADER_SIZE + body.length;
+                break;
+            default:
+                throw new IOException("Unknown log record type " + type);
+        }
+    }
+
+    private static byte[] encodeFile(File file) {
+        return encode(out -> {
+            out.writeByte(PUT_FILE);
+            out.writeUTF(file.getFileName());
+            out.writeInt(file.getFileSize());
+            out.writeBoolean(file.getFileOwner() != null);
+            if (file.getFileOwner() != null) {
+                out.writeUTF(file.getFileOwner());
+            }
+            out.writeBoolean(file.getFilePermission() != null);
+            if (file.getFilePermission() != null) {
+                out.writeUTF(file.getFilePermission());
+            }
+            out.writeInt(file.getFileVersion());
+        });
+    }
+
+    private static byte[] encodeDelete(String filename) {
+        return encode(out -> {
+            out.writeByte(DELETE_FILE);
+            out.writeUTF(filename);
+        });
+    }
+
+    private static byte[] encodeAccount(String username, String password) {
+        return encode(out -> {
+            out.writeByte(PUT_ACCOUNT);
+            out.writeUTF(username);
+            out.writeUTF(password);
+        });
+    }
+
+    private static long encodedSize(File file) {
+        return RECORD_HEADER_SIZE + encodeFile(file).length;
+    }
+
+    private interface Encoder {
+        void encode(DataOutputStream out) throws IOException;
+    }
+
+    private static byte[] encode(Encoder encoder) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+        try {
+            encoder.encode(new DataOutputStream(bytes));
+        } catch (IOException cannotHappenInMemory) {
+            throw new IllegalStateException(cannotHappenInMemory);
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Appends records to the log. Must be called while holding the lock of this store. If the
+     * records can not be written, whatever part of them was written is cut off the log.
+     *
+     * @return The sequence number of the last appended record, to be passed to <code>sync</code>.
+     */
+    private long append(byte[]... bodies) throws IOException {
+        checkOpen();
+        int total = 0;
+        for (byte[] body : bodies) {
+            total += RECORD_HEADER_SIZE + body.length;
+        }
+        ByteBuffer records = ByteBuffer.allocate(total);
+        CRC32 crc = new CRC32();
+        for (byte[] body : bodies) {
+            crc.reset();
+            crc.update(body);
+            records.putInt(body.length).putInt((int) crc.getValue()).put(body);
+        }
+        records.flip();
+        try {
+            while (records.hasRemaining()) {
+                log.write(records);
+            }
+        } catch (IOException failed) {
+            try {
+                log.truncate(logSize);
+                log.position(logSize);
+            } catch (IOException notCutOff) {
+                failed.addSuppressed(notCutOff);
+                fail(failed);
+            }
+            throw failed;
+        }
+        logSize += total;
+        appendedRecords += bodies.length;
+        return appendedRecords;
+    }
+
+    /**
+     * Waits until the specified record has been forced to disk. The first waiting writer forces
+     * the log, which makes all records appended so far durable, including those of the writers
+     * waiting behind it.
+     */
+    private void sync(long record) throws IOException {
+        synchronized (syncLock) {
+            if (syncedRecords >= record) {
+                return;
+            }
+            checkOpen();
+            long appended;
+            FileChannel current;
+            synchronized (this) {
+                appended = appendedRecords;
+                current = log;
+            }
+            try {
+                current.force(false);
+            } catch (IOException failed) {
+                fail(failed);
+                throw failed;
+            }
+            syncedRecords = appended;
+        }
+    }
+
+    /**
+     * Makes every later call fail, since what is on disk is no longer known.
+     */
+    private void fail(IOException cause) {
+        if (failure == null) {
+            failure = cause;
+            Logger.getLogger(LogStructuredStore.class.getName()).log(Level.SEVERE,
+                    "The log in " + directory + " failed, it must be opened again.", cause);
+        }
+    }
+
+    private void checkOpen() throws IOException {
+        IOException failed = failure;
+        if (failed != null) {
+            throw new IOException("The log in " + directory + " has failed.", failed);
+        }
+    }
+
+    /**
+     * @return The current state, which is only read while the store has not failed.
+     */
+    private <T> T read(T state) throws CatalogDBException {
+        try {
+            checkOpen();
+        } catch (IOException failed) {
+            throw new CatalogDBException("Could not read the catalog.", failed);
+        }
+        return state;
+    }
+
+    private void write(String failureMsg, byte[]... bodies) throws CatalogDBException {
+        long record;
+        try {
+            synchronized (this) {
+                record = append(bodies);
+            }
+            sync(record);
+        } catch (IOException ex) {
+            throw new CatalogDBException(failureMsg, ex);
+        }
+    }
+
+    /**
+     * Waits until the specified file or account has no pending write. Must be called while
+     * holding the lock of this store.
+     */
+    private void awaitSettled(Map<String, byte[]> pending, String name) throws IOException {
+        while (pending.containsKey(name)) {
+            try {
+                wait();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for the write of " + name);
+            }
+        }
+    }
+
+    /**
+     * Waits until the specified record is durable, then makes the write visible. Whether or not
+     * it became durable, the write is no longer pending afterwards.
+     *
+     * @param apply   Applies the write to the state in memory.
+     * @param release Removes the write from the pending writes.
+     */
+    private void settle(long record, Runnable apply, Runnable release) throws IOException {
+        boolean durable = false;
+        try {
+            sync(record);
+            durable = true;
+        } finally {
+            synchronized (this) {
+                if (durable) {
+                    apply.run();
+                }
+                release.run();
+                notifyAll();
+            }
+        }
+    }
+
+    private void compactIfWorthwhile() {
+        boolean worthwhile;
+        synchronized (this) {
+            worthwhile = logSize > COMPACTION_MIN_SIZE && liveBytes < logSize / 2;
+        }
+        if (worthwhile) {
+            try {
+                compact();
+            } catch (IOException ex) {
+                Logger.getLogger(LogStructuredStore.class.getName()).log(Level.WARNING,
+                        "Could not compact the log in " + directory, ex);
+            }
+        }
+    }
+
+    /**
+     * Rewrites the log, keeping only the current state of each file and account. Writers wait
+     * while the log is rewritten.
+     *
+     * @throws IOException If the new log could not be written, in which case the old one is kept.
+     */
+    public void compact() throws IOException {
+        synchronized (syncLock) {
+            synchronized (this) {
+                Path compacted = directory.resolve(COMPACTION_FILE_NAME);
+                FileChannel old = log;
+                long oldSize = logSize;
+                log = FileChannel.open(compacted, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                                       StandardOpenOption.WRITE, StandardOpenOption.READ);
+                logSize = 0;
+                try {
+                    for (Map.Entry<String, String> account : accounts.entrySet()) {
+                        append(encodeAccount(account.getKey(), account.getValue()));
+                    }
+                    for (File file : files.values()) {
+                        append(encodeFile(file));
+                    }
+                    for (byte[] pending : pendingAccounts.values()) {
+                        append(pending);
+                    }
+                    for (byte[] pending : pendingFiles.values()) {
+                        append(pending);
+                    }
+                    log.force(true);
+                    Files.move(compacted, directory.resolve(LOG_FILE_NAME), StandardCopyOption.ATOMIC_MOVE,
+                               StandardCopyOption.REPLACE_EXISTING);
+                    forceDirectory();
+                } catch (IOException ex) {
+                    log.close();
+                    log = old;
+                    logSize = oldSize;
+                    throw ex;
+                }
+                old.close();
+                liveBytes = logSize;
+                for (byte[] pending : pendingAccounts.values()) {
+                    liveBytes -= RECORD_HEADER_SIZE + pending.length;
+                }
+                for (byte[] pending : pendingFiles.values()) {
+                    liveBytes -= RECORD_HEADER_SIZE + pending.length;
+                }
+                syncedRecords = appendedRecords;
+            }
+        }
+    }
+
+    /**
+     * Forces the directory of the log, so that the rename of a compacted log survives a crash.
+     * Not all platforms can open a directory, where this does nothing.
+     */
+    private void forceDirectory() throws IOException {
+        FileChannel dir;
+        try {
+            dir = FileChannel.open(directory, StandardOpenOption.READ);
+        } catch (IOException | UnsupportedOperationException notSupported) {
+            return;
+        }
+        try (FileChannel channel = dir) {
+            channel.force(true);
+        }
+    }
+
+    @Override
+    public String getPassword(String username) throws CatalogDBException {
+        return read(accounts).get(username);
+    }
+
+    @Override
+    public boolean userExists(String username) throws CatalogDBException {
+        return read(accounts).containsKey(username);
+    }
+
+    @Override
+    public void register(Credentials credentials) throws CatalogDBException {
+        String failureMsg = "Could not register with username: " + credentials.getUsername();
+        byte[] body = encodeAccount(credentials.getUsername(), credentials.getPassword());
+        String username = credentials.getUsername();
+        long record;
+        try {
+            synchronized (this) {
+                awaitSettled(pendingAccounts, username);
+                if (accounts.containsKey(username)) {
+                    throw new CatalogDBException(failureMsg);
+                }
+                record = append(body);
+                pendingAccounts.put(username, body);
+            }
+            settle(record, () -> {
+                accounts.put(username, credentials.getPassword());
+                liveBytes += RECORD_HEADER_SIZE + body.length;
+            }, () -> pendingAccounts.remove(username));
+        } catch (IOException ex) {
+            throw new CatalogDBException(failureMsg, ex);
+        }
+    }
+
+    @Override
+    public File findFileByName(String fileName) throws CatalogDBException {
+        return read(files).get(fileName);
+    }
+
+    @Override
+    public List<File> findAllFiles() throws CatalogDBException {
+        return new ArrayList<>(read(files).values());
+    }
+
+    /**
+     * @return Always 0. The whole log is read when the store is opened, so there is nothing to
+     *         save by reading only the latest changes.
+     */
+    @Override
+    public long getChangeSequence() throws CatalogDBException {
+        read(files);
+        return 0;
+    }
+
+    /**
+     * @return Every file, since all of them are in memory anyway.
+     */
+    @Override
+    public Changes findChangesSince(long sequence) throws CatalogDBException {
+        return new Changes(findAllFiles(), Collections.emptyList(), true);
+    }
+
+    /**
+     * @return The usage of the specified owner, including writes that are not yet durable.
+     */
+    @Override
+    public synchronized Usage findUsage(String owner) throws CatalogDBException {
+        return read(usage).getOrDefault(owner, Usage.NONE);
+    }
+
+    /**
+     * Adds to the usage of an owner. Must be called while holding the lock of this store.
+     */
+    private void addUsage(String owner, int count, long bytes) {
+        if (owner != null) {
+            usage.merge(owner, Usage.NONE.plus(count, bytes),
+                        (current, added) -> current.plus(added.getFileCount(), added.getTotalBytes()));
+        }
+    }
+
+    /**
+     * Adds to the usage of an owner, provided that it stays within the specified limit, which is
+     * only checked for the numbers that grow. Must be called while holding the lock of this store.
+     *
+     * @param limit The largest usage permitted, <code>null</code> if there is none.
+     */
+    private void reserveUsage(String owner, int count, long bytes, Usage limit) throws QuotaExceededException {
+        if (owner != null && limit != null) {
+            Usage next = usage.getOrDefault(owner, Usage.NONE).plus(count, bytes);
+            if ((count > 0 && next.getFileCount() > limit.getFileCount())
+                || (bytes > 0 && next.getTotalBytes() > limit.getTotalBytes())) {
+                throw new QuotaExceededException(owner + " would have " + next + ", at most " + limit
+                                                 + " are permitted.");
+            }
+        }
+        addUsage(owner, count, bytes);
+    }
+
+    @Override
+    public void createFile(File file) throws CatalogDBException {
+        try {
+            createFile(file, null);
+        } catch (QuotaExceededException unlimited) {
+            throw new CatalogDBException("Could not create the file: " + file, unlimited);
+        }
+    }
+
+    @Override
+    public void createFile(File file, Usage limit) throws CatalogDBException, QuotaExceededException {
+        String failureMsg = "Could not create the file: " + file;
+        byte[] body = encodeFile(file);
+        long record;
+        String name = file.getFileName();
+        try {
+            synchronized (this) {
+                awaitSettled(pendingFiles, name);
+                if (files.containsKey(name)) {
+                    throw new CatalogDBException(failureMsg);
+                }
+                reserveUsage(file.getFileOwner(), 1, file.getFileSize(), limit);
+                try {
+                    record = append(body);
+                } catch (IOException notAppended) {
+                    addUsage(file.getFileOwner(), -1, -file.getFileSize());
+                    throw notAppended;
+                }
+                pendingFiles.put(name, body);
+            }
+            try {
+                settle(record, () -> {
+                    files.put(name, file);
+                    liveBytes += RECORD_HEADER_SIZE + body.length;
+                }, () -> pendingFiles.remove(name));
+            } catch (IOException notDurable) {
+                synchronized (this) {
+                    addUsage(file.getFileOwner(), -1, -file.getFileSize());
+                }
+                throw notDurable;
+            }
+        } catch (IOException ex) {
+            throw new CatalogDBException(failureMsg, ex);
+        }
+    }
+
+    @Override
+    public void deleteFile(FileDTO file) throws CatalogDBException {
+        String failureMsg = "Could not delete the file: " + file.getFileName();
+        String name = file.getFileName();
+        long record;
+        File removed;
+        try {
+            synchronized (this) {
+                awaitSettled(pendingFiles, name);
+                removed = files.get(name);
+                if (removed == null) {
+                    return;
+                }
+                byte[] body = encodeDelete(name);
+                record = append(body);
+                pendingFiles.put(name, body);
+            }
+            settle(record, () -> {
+                files.remove(name);
+                liveBytes -= encodedSize(removed);
+                addUsage(removed.getFileOwner(), -1, -removed.getFileSize());
+            }, () -> pendingFiles.remove(name));
+        } catch (IOException ex) {
+            throw new CatalogDBException(failureMsg, ex);
+        }
+    }
+
+    @Override
+    public boolean updateFile(String filename, int newSize, int expectedVersion) throws CatalogDBException {
+        try {
+            return updateFile(filename, newSize, expectedVersion, null);
+        } catch (QuotaExceededException unlimited) {
+            throw new CatalogDBException("Could not update the file: " + filename, unlimited);
+        }
+    }
+
+    /**
+     * Growth is reserved before the record is written, shrinking is applied once it is durable.
+     */
+    @Override
+    public boolean updateFile(String filename, int newSize, int expectedVersion, Usage limit)
+            throws CatalogDBException, QuotaExceededException {
+        long record;
+        File current;
+        File updated;
+        byte[] body;
+        long growth;
+        try {
+            synchronized (this) {
+                awaitSettled(pendingFiles, filename);
+                current = files.get(filename);
+                if (current == null || current.getFileVersion() != expectedVersion) {
+                    return false;
+                }
+                updated = new File(filename, newSize, current.getFileOwner(), current.getFilePermission(),
+                                   expectedVersion + 1);
+                growth = (long) newSize - current.getFileSize();
+                body = encodeFile(updated);
+                reserveUsage(current.getFileOwner(), 0, Math.max(0, growth), limit);
+                try {
+                    record = append(body);
+                } catch (IOException notAppended) {
+                    addUsage(current.getFileOwner(), 0, -Math.max(0, growth));
+                    throw notAppended;
+                }
+                pendingFiles.put(filename, body);
+            }
+            try {
+                settle(record, () -> {
+                    files.put(filename, updated);
+                    liveBytes += RECORD_HEADER_SIZE + body.length - encodedSize(current);
+                    addUsage(current.getFileOwner(), 0, Math.min(0, growth));
+                }, () -> pendingFiles.remove(filename));
+            } catch (IOException notDurable) {
+                synchronized (this) {
+                    addUsage(current.getFileOwner(), 0, -Math.max(0, growth));
+                }
+                throw notDurable;
+            }
+            return true;
+        } catch (IOException ex) {
+            throw new CatalogDBException("Could not update the file: " + filename, ex);
+        }
+    }
+
+    @Override
+    public long exportTo(CatalogArchive.Writer out, boolean exportAccounts, int fetchSize)
+            throws CatalogDBException, IOException {
+        long rows = 0;
+        if (exportAccounts) {
+            for (Map.Entry<String, String> account : read(accounts).entrySet()) {
+                out.writeAccount(new Credentials(account.getKey(), account.getValue()));
+                rows++;
+            }
+        }
+        for (File file : read(files).values()) {
+            out.writeFile(file);
+            rows++;
+        }
+        return rows;
+    }
+
+    /**
+     * Logs the number of staged rows of an import that are not added, since their name is taken,
+     * or since another row staged with the same name is added instead.
+     */
+    private static void reportSkipped(String rows, int staged, int unique, int taken) {
+        if (unique - taken < staged) {
+            Logger.getLogger(LogStructuredStore.class.getName()).log(Level.WARNING,
+                    "Importing {0} of {1} staged {2}, skipped {3} whose name is taken and {4} duplicates.",
+                    new Object[]{unique - taken, staged, rows, taken, staged - unique});
+        }
+    }
+
+    @Override
+    public synchronized void beginImport() {
+        stagedFiles.clear();
+        stagedAccounts.clear();
+    }
+
+    /**
+     * @return A loader adding rows to the rows staged in memory, shared by all loaders.
+     */
+    @Override
+    public CatalogStore.Loader openLoader() {
+        return new CatalogStore.Loader() {
+            @Override
+            public void stage(List<File> files, List<Credentials> accounts) {
+                synchronized (LogStructuredStore.this) {
+                    stagedFiles.addAll(files);
+                    stagedAccounts.addAll(accounts);
+                }
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+    }
+
+    /**
+     * Appends all staged rows whose name is not taken, and forces the log once for all of them.
+     * Of several files staged with the same name, the one with the highest version is appended,
+     * and of those the one staged first. Of several accounts staged with the same name, the one
+     * staged first is appended. The number of rows skipped is logged.
+     */
+    @Override
+    public int finishImport() throws CatalogDBException {
+        List<byte[]> bodies = new ArrayList<>();
+        Map<String, String> newAccounts = new HashMap<>();
+        Map<String, File> newFiles = new HashMap<>();
+        long record;
+        try {
+            synchronized (this) {
+                Map<String, Credentials> uniqueAccounts = new LinkedHashMap<>();
+                for (Credentials account : stagedAccounts) {
+                    uniqueAccounts.putIfAbsent(account.getUsername(), account);
+                }
+                int takenAccounts = 0;
+                for (Credentials account : uniqueAccounts.values()) {
+                    String username = account.getUsername();
+                    awaitSettled(pendingAccounts, username);
+                    if (accounts.containsKey(username)) {
+                        takenAccounts++;
+                    } else {
+                        byte[] body = encodeAccount(username, account.getPassword());
+                        newAccounts.put(username, account.getPassword());
+                        pendingAccounts.put(username, body);
+                        bodies.add(body);
+                    }
+                }
+                Map<String, File> uniqueFiles = new LinkedHashMap<>();
+                for (File file : stagedFiles) {
+                    uniqueFiles.merge(file.getFileName(), file,
+                                      (kept, staged) -> staged.getFileVersion() > kept.getFileVersion() ? staged : kept);
+                }
+                int takenFiles = 0;
+                for (File file : uniqueFiles.values()) {
+                    String name = file.getFileName();
+                    awaitSettled(pendingFiles, name);
+                    if (files.containsKey(name)) {
+                        takenFiles++;
+                    } else {
+                        byte[] body = encodeFile(file);
+                        newFiles.put(name, file);
+                        pendingFiles.put(name, body);
+                        bodies.add(body);
+                    }
+                }
+                reportSkipped("accounts", stagedAccounts.size(), uniqueAccounts.size(), takenAccounts);
+                reportSkipped("files", stagedFiles.size(), uniqueFiles.size(), takenFiles);
+                stagedFiles.clear();
+                stagedAccounts.clear();
+                record = append(bodies.toArray(new byte[0][]));
+            }
+            settle(record, () -> {
+                accounts.putAll(newAccounts);
+                files.putAll(newFiles);
+                for (File file : newFiles.values()) {
+                    addUsage(file.getFileOwner(), 1, file.getFileSize());
+                }
+                for (byte[] body : bodies) {
+                    liveBytes += RECORD_HEADER_SIZE + body.length;
+                }
+            }, () -> {
+                pendingAccounts.keySet().removeAll(newAccounts.keySet());
+                pendingFiles.keySet().removeAll(newFiles.keySet());
+            });
+        } catch (IOException ex) {
+            throw new CatalogDBException("Could not complete the import.", ex);
+        }
+        return newFiles.size();
+    }
+
+    @Override
+    public void close() {
+        compactor.shutdownNow();
+        synchronized (syncLock) {
+            synchronized (this) {
+                try {
+                    log.force(false);
+                    log.close();
+                } catch (IOException ex) {
+                    Logger.getLogger(LogStructuredStore.class.getName()).log(Level.WARNING, null, ex);
+                }
+            }
+        }
+    }
+}
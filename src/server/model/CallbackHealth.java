@@ -0,0 +1,65 @@
+package server.model;
+
+/**
+ * Tracks whether callbacks to one client are getting through, as a circuit breaker. The circuit is
+ * closed while deliveries succeed. After <code>failureThreshold</code> failed or slow deliveries in
+ * a row it opens, and deliveries are skipped until a background probe reaches the client again.
+ */
+class CallbackHealth {
+    private final int failureThreshold;
+    private final long slowDeliveryNanos;
+    private int consecutiveFailures;
+    private long openedAt;
+    private boolean open;
+
+    CallbackHealth(int failureThreshold, long slowDeliveryNanos) {
+        this.failureThreshold = failureThreshold;
+        this.slowDeliveryNanos = slowDeliveryNanos;
+    }
+
+    /**
+     * @return <code>true</code> if a callback should be attempted.
+     */
+    synchronized boolean allowDelivery() {
+        return !open;
+    }
+
+    synchronized boolean isOpen() {
+        return open;
+    }
+
+    /**
+     * @return The time, in milliseconds since the epoch, when the circuit opened.
+     */
+    synchronized long openedAt() {
+        return openedAt;
+    }
+
+    /**
+     * Records a delivery that reached the client after the specified time. A slow delivery counts
+     * as a failure.
+     */
+    synchronized void delivered(long durationNanos) {
+        if (durationNanos > slowDeliveryNanos) {
+            failed();
+        } else {
+            consecutiveFailures = 0;
+        }
+    }
+
+    synchronized void failed() {
+        consecutiveFailures++;
+        if (!open && consecutiveFailures >= failureThreshold) {
+            open = true;
+            openedAt = System.currentTimeMillis();
+        }
+    }
+
+    /**
+     * Closes the circuit after a successful probe.
+     */
+    synchronized void recovered() {
+        open = false;
+        consecutiveFailures = 0;
+    }
+}
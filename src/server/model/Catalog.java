@@ -1,58 +1,924 @@
 package server.model;
 
 import common.Credentials;
+import common.QuotaExceededException;
+import common.Usage;
+import java.io.IOException;
+import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BiConsumer;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import server.integration.CatalogArchive;
 import server.integration.CatalogDAO;
+import server.integration.CatalogStore;
 import server.integration.CatalogDBException;
+import server.integration.GroupCommitter;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import server.trace.Trace;
 /**
+ * The file catalog. Files are spread over one or more shards, each shard being a separate
+ * datasource with its own <code>CatalogStore</code>. A file always lives in the shard selected by
+ * the hash of its name.
  *
  * @author yuchen
  */
 public class Catalog {
+    private static final int LOCK_STRIPES = 256;
+    /**
+     * For how long a usage read from the shards is reused.
+     */
+    private static final long USAGE_CACHE_MILLIS = 1000;
     private List<File> files = Collections.synchronizedList(new ArrayList<>());
-    private final CatalogDAO catDAO;
-    
+    private final String dbms;
+    private final List<String> datasources;
+    private final CatalogStore[] shards;
+    private GroupCommitter[] committers;
+    private final FileLocks locks = new FileLocks(LOCK_STRIPES);
+    private final Map<String, CompletableFuture<File>> lookups = new ConcurrentHashMap<>();
+    private volatile CatalogIndex index;
+    private Path snapshotFile;
+    private final ReadWriteLock writes = new ReentrantReadWriteLock();
+    private final ExecutorService shardPool;
+    private ReplicationLog replicationLog;
+    private final Map<String, CachedUsage> usage = new ConcurrentHashMap<>();
+    private volatile int maxFilesPerOwner = Integer.MAX_VALUE;
+    private volatile long maxBytesPerOwner = Long.MAX_VALUE;
+
     public Catalog(String dbms, String datasource) throws CatalogDBException {
-        this.catDAO = new CatalogDAO(dbms, datasource);
+        this(dbms, Collections.singletonList(datasource));
+    }
+
+    /**
+     * Creates a catalog sharded over the specified datasources. The order of the datasources
+     * decides which files go where, and must be the same every time the catalog is started.
+     *
+     * @param dbms        Database management system vendor.
+     * @param datasources The names of the shard databases.
+     * @throws CatalogDBException If failed to connect to any of the shards.
+     */
+    public Catalog(String dbms, List<String> datasources) throws CatalogDBException {
+        if (datasources.isEmpty()) {
+            throw new CatalogDBException("At least one datasource is required.");
+        }
+        this.dbms = dbms;
+        this.datasources = datasources;
+        this.shards = new CatalogStore[datasources.size()];
+        for (int i = 0; i < shards.length; i++) {
+            shards[i] = CatalogStore.open(dbms, datasources.get(i));
+        }
+        this.shardPool = Executors.newFixedThreadPool(shards.length, task -> {
+            Thread thread = new Thread(task, "catalog-shard");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Limits the number of files, and their total size, that each user may own. Uploads and updates
+     * that would take the owner over a limit are refused. Updates that make a file smaller are
+     * always permitted. The limits are checked by each shard in the same transaction as the write,
+     * against the usage stored in the shard, so writes through other servers sharing the
+     * datasources count as well. With several shards, the owner's usage in the other shards is
+     * read just before the write.
+     *
+     * @param maxFiles The largest number of files per owner.
+     * @param maxBytes The largest total size of the files per owner.
+     */
+    public void setQuota(int maxFiles, long maxBytes) {
+        this.maxFilesPerOwner = maxFiles;
+        this.maxBytesPerOwner = maxBytes;
+    }
+
+    /**
+     * @return The number of files the specified user owns, and their total size, as stored in the
+     *         shards at most <code>USAGE_CACHE_MILLIS</code> ago. If the shards can not be read,
+     *         the last usage read.
+     */
+    public Usage getUsage(String owner) {
+        CachedUsage cached = usage.get(owner);
+        long now = System.currentTimeMillis();
+        if (cached != null && now - cached.readAt < USAGE_CACHE_MILLIS) {
+            return cached.usage;
+        }
+        try {
+            Usage total = Usage.NONE;
+            for (CatalogStore shard : shards) {
+                Usage inShard = shard.findUsage(owner);
+                total = total.plus(inShard.getFileCount(), inShard.getTotalBytes());
+            }
+            usage.put(owner, new CachedUsage(total, now));
+            return total;
+        } catch (CatalogDBException ex) {
+            Logger.getLogger(Catalog.class.getName()).log(Level.WARNING, "Could not read the usage of " + owner, ex);
+            return cached == null ? Usage.NONE : cached.usage;
+        }
+    }
+
+    private void forgetUsage(String owner) {
+        if (owner != null) {
+            usage.remove(owner);
+        }
+    }
+
+    /**
+     * @return The largest usage the specified owner may reach in the specified shard, or
+     *         <code>null</code> if there is no quota.
+     */
+    private Usage limitFor(String owner, int shard) throws CatalogDBException {
+        int maxFiles = maxFilesPerOwner;
+        long maxBytes = maxBytesPerOwner;
+        if (owner == null || (maxFiles == Integer.MAX_VALUE && maxBytes == Long.MAX_VALUE)) {
+            return null;
+        }
+        Usage elsewhere = Usage.NONE;
+        for (int i = 0; i < shards.length; i++) {
+            if (i != shard) {
+                Usage inShard = shards[i].findUsage(owner);
+                elsewhere = elsewhere.plus(inShard.getFileCount(), inShard.getTotalBytes());
+            }
+        }
+        return new Usage(maxFiles - elsewhere.getFileCount(), maxBytes - elsewhere.getTotalBytes());
+    }
+
+    private QuotaExceededException overQuota(String owner, QuotaExceededException refused) {
+        QuotaExceededException ex = new QuotaExceededException(owner + " would exceed the quota of "
+                + maxFilesPerOwner + " files, " + maxBytesPerOwner + " bytes.");
+        ex.initCause(refused);
+        return ex;
+    }
+
+    /**
+     * The usage of an owner, and when it was read from the shards.
+     */
+    private static class CachedUsage {
+        final Usage usage;
+        final long readAt;
+
+        CachedUsage(Usage usage, long readAt) {
+            this.usage = usage;
+            this.readAt = readAt;
+        }
+    }
+
+    /**
+     * Makes all file mutations go through a group commit pipeline, one per shard, which writes
+     * concurrent mutations in shared transactions. Each shard gets a separate connection for this.
+     * Only applies to shards stored through JDBC, the log-structured engine already shares disk
+     * forces between concurrent writes.
+     *
+     * @param maxBatchSize   The largest number of mutations in one transaction.
+     * @param maxDelayMillis The longest time a mutation waits for others to join its transaction.
+     * @throws CatalogDBException If failed to connect to a shard.
+     */
+    public void enableGroupCommit(int maxBatchSize, long maxDelayMillis) throws CatalogDBException {
+        if (!(shards[0] instanceof CatalogDAO)) {
+            return;
+        }
+        GroupCommitter[] started = new GroupCommitter[shards.length];
+        for (int i = 0; i < shards.length; i++) {
+            started[i] = new GroupCommitter(new CatalogDAO(dbms, datasources.get(i), 1),
+                                            maxBatchSize, maxDelayMillis);
+        }
+        this.committers = started;
+    }
+
+    /**
+     * Writes to a shard, and the in-memory catalog, hold the read lock of <code>writes</code>, so
+     * that a snapshot, by taking the write lock, sees every write up to a position in the change
+     * sequence of each shard both in the shard and in memory.
+     */
+    private void createInShard(int shard, File file) throws CatalogDBException {
+        try {
+            createInShard(shard, file, null);
+        } catch (QuotaExceededException unlimited) {
+            throw new CatalogDBException("Could not create " + file.getFileName(), unlimited);
+        }
+    }
+
+    /**
+     * @param limit The largest usage the owner may reach in the shard, <code>null</code> if there
+     *              is none.
+     */
+    private void createInShard(int shard, File file, Usage limit) throws CatalogDBException, QuotaExceededException {
+        Lock gate = writes.readLock();
+        gate.lock();
+        try {
+            if (committers != null) {
+                committers[shard].createFile(file, limit);
+            } else if (limit != null) {
+                shards[shard].createFile(file, limit);
+            } else {
+                shards[shard].createFile(file);
+            }
+            if (index != null) {
+                index.put(file);
+            }
+        } finally {
+            gate.unlock();
+        }
+    }
+
+    private boolean updateInShard(int shard, String filename, int newSize, int expectedVersion)
+            throws CatalogDBException {
+        try {
+            return updateInShard(shard, filename, newSize, expectedVersion, null);
+        } catch (QuotaExceededException unlimited) {
+            throw new CatalogDBException("Could not update " + filename, unlimited);
+        }
+    }
+
+    private boolean updateInShard(int shard, String filename, int newSize, int expectedVersion, Usage limit)
+            throws CatalogDBException, QuotaExceededException {
+        Lock gate = writes.readLock();
+        gate.lock();
+        try {
+            boolean updated;
+            if (committers != null) {
+                updated = committers[shard].updateFile(filename, newSize, expectedVersion, limit);
+            } else if (limit != null) {
+                updated = shards[shard].updateFile(filename, newSize, expectedVersion, limit);
+            } else {
+                updated = shards[shard].updateFile(filename, newSize, expectedVersion);
+            }
+            if (updated && index != null) {
+                index.updated(filename, newSize, expectedVersion + 1);
+            }
+            return updated;
+        } finally {
+            gate.unlock();
+        }
+    }
+
+    private void deleteInShard(int shard, File file) throws CatalogDBException {
+        Lock gate = writes.readLock();
+        gate.lock();
+        try {
+            if (committers != null) {
+                committers[shard].deleteFile(file);
+            } else {
+                shards[shard].deleteFile(file);
+            }
+            if (index != null) {
+                index.remove(file.getFileName());
+            }
+        } finally {
+            gate.unlock();
+        }
+    }
+
+    /**
+     * Keeps all files in memory, so that lookups and listings no longer query the database. The
+     * in-memory catalog is loaded from the specified snapshot file if it exists, after which only
+     * the files written since the snapshot, according to the change sequence of each shard, are
+     * read from the database. A new snapshot
+     * is written every <code>intervalSeconds</code>, and by <code>writeSnapshot</code>.
+     *
+     * Must only be used if no other server node writes to the same datasources.
+     *
+     * @param snapshotFile    Where the snapshot is stored.
+     * @param intervalSeconds How often to write a snapshot.
+     * @throws CatalogDBException If failed to read the catalog from the database.
+     */
+    public void enableSnapshots(Path snapshotFile, long intervalSeconds) throws CatalogDBException {
+        CatalogIndex loaded = new CatalogIndex();
+        CatalogSnapshot snapshot = null;
+        try {
+            snapshot = CatalogSnapshot.read(snapshotFile);
+        } catch (IOException unreadable) {
+            Logger.getLogger(Catalog.class.getName()).log(Level.WARNING, null, unreadable);
+        }
+        if (snapshot != null && snapshot.datasources.equals(datasources)) {
+            loaded.putAll(snapshot.files);
+            reconcile(loaded, snapshot.sequences);
+        } else {
+            loaded.putAll(getFiles());
+        }
+        this.snapshotFile = snapshotFile;
+        this.index = loaded;
+        ScheduledExecutorService snapshotter = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "catalog-snapshot");
+            thread.setDaemon(true);
+            return thread;
+        });
+        snapshotter.scheduleWithFixedDelay(this::writeSnapshot, intervalSeconds, intervalSeconds,
+                                           TimeUnit.SECONDS);
+    }
+
+    private void reconcile(CatalogIndex loaded, long[] sequences) throws CatalogDBException {
+        for (int i = 0; i < shards.length; i++) {
+            int shard = i;
+            loaded.reconcile(shards[i].findChangesSince(sequences[i]), name -> shardIndex(name) == shard);
+        }
+    }
+
+    /**
+     * Writes a snapshot of the in-memory catalog, if snapshots are enabled.
+     */
+    public void writeSnapshot() {
+        if (index == null) {
+            return;
+        }
+        long[] sequences = new long[shards.length];
+        Lock gate = writes.writeLock();
+        gate.lock();
+        try {
+            for (int i = 0; i < shards.length; i++) {
+                sequences[i] = shards[i].getChangeSequence();
+            }
+        } catch (CatalogDBException ex) {
+            Logger.getLogger(Catalog.class.getName()).log(Level.WARNING, "Could not write snapshot.", ex);
+            return;
+        } finally {
+            gate.unlock();
+        }
+        try {
+            CatalogSnapshot.write(snapshotFile, datasources, sequences, index.all());
+        } catch (IOException ex) {
+            Logger.getLogger(Catalog.class.getName()).log(Level.WARNING, "Could not write snapshot.", ex);
+        }
+    }
+
+    /**
+     * @return The first shard, which also holds the user accounts.
+     */
+    public CatalogStore getAccountStore() {
+        return shards[0];
+    }
+
+    private CatalogStore shardFor(String filename) {
+        return shards[shardIndex(filename)];
+    }
+
+    private int shardIndex(String filename) {
+        return Math.floorMod(filename.hashCode(), shards.length);
+    }
+
+    /**
+     * Makes this catalog record all its changes in the specified log, to be shipped to replicas.
+     */
+    public void replicateTo(ReplicationLog replicationLog) {
+        this.replicationLog = replicationLog;
+    }
+
+    private void record(Mutation.Type type, File file) {
+        if (replicationLog != null) {
+            replicationLog.append(type, file, null);
+        }
+    }
+
+    /**
+     * Locks the specified file. Operations that read a file, check the result and then write the
+     * file must hold its lock during the whole sequence. The catalog's own write operations lock
+     * the file themselves, the lock is reentrant.
+     *
+     * @param filename The file to lock.
+     * @return The lock, which the caller must unlock.
+     */
+    @SuppressWarnings("try")
+    public Lock lockFile(String filename) {
+        try (Trace.Span span = Trace.span("catalog.lockFile")) {
+            return locks.lock(filename);
+        }
     }
-    
-    public void addFile(File file) throws CatalogDBException{ 
-        catDAO.createFile(file);
-        //files.add(file);
+
+    /**
+     * Stores the specified file, provided that its owner stays within the quota.
+     *
+     * @throws QuotaExceededException If the file would take its owner over the quota.
+     */
+    @SuppressWarnings("try")
+    public void addFile(File file) throws CatalogDBException, QuotaExceededException {
+        try (Trace.Span span = Trace.span("catalog.addFile")) {
+            Lock lock = lockFile(file.getFileName());
+            try {
+                int shard = shardIndex(file.getFileName());
+                try {
+                    createInShard(shard, file, limitFor(file.getFileOwner(), shard));
+                } catch (QuotaExceededException refused) {
+                    throw overQuota(file.getFileOwner(), refused);
+                } finally {
+                    forgetUsage(file.getFileOwner());
+                }
+                record(Mutation.Type.CREATE_FILE, file);
+            } finally {
+                lock.unlock();
+            }
+            //files.add(file);
+        }
     }
-    
+
+    /**
+     * Lists the files of all shards. The shards are queried in parallel.
+     */
+    @SuppressWarnings("try")
     public List<File> getFiles() throws CatalogDBException{
+        try (Trace.Span span = Trace.span("catalog.getFiles")) {
+            if (index != null) {
+                return index.all();
+            }
+            if (shards.length == 1) {
+                return shards[0].findAllFiles();
+            }
+            List<Future<List<File>>> results = new ArrayList<>();
+            Trace.Context context = Trace.context();
+            for (CatalogStore shard : shards) {
+                results.add(shardPool.submit(() -> {
+                    try (Trace.Span shardSpan = context.enter("catalog.listShard")) {
+                        return shard.findAllFiles();
+                    }
+                }));
+            }
+            List<File> all = new ArrayList<>();
+            for (Future<List<File>> result : results) {
+                all.addAll(gather(result));
+            }
+            return all;
+        }
+    }
 
-        return catDAO.findAllFiles();
+    private List<File> gather(Future<List<File>> result) throws CatalogDBException {
+        try {
+            return result.get();
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof CatalogDBException) {
+                throw (CatalogDBException) ex.getCause();
+            }
+            throw new CatalogDBException("Could not list shard.", ex.getCause());
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new CatalogDBException("Interrupted while listing shards.", ex);
+        }
     }
-    
+
     public File makeFile(String filename, int size, String owner, String permission){
         File file = new File(filename, size, owner, permission);
         return file;
     }
-    
+
+    /**
+     * Finds the specified file. Concurrent lookups of the same file share one database query, the
+     * callers arriving while a query is in flight wait for it and get its result.
+     */
+    @SuppressWarnings("try")
     public File getFile(String filename) throws CatalogDBException{
-        return catDAO.findFileByName(filename);
+        try (Trace.Span span = Trace.span("catalog.getFile")) {
+            if (index != null) {
+                return index.get(filename);
+            }
+            CompletableFuture<File> lookup = new CompletableFuture<>();
+            CompletableFuture<File> inFlight = lookups.putIfAbsent(filename, lookup);
+            if (inFlight != null) {
+                return awaitLookup(filename, inFlight);
+            }
+            try {
+                File file = shardFor(filename).findFileByName(filename);
+                lookup.complete(file);
+                return file;
+            } catch (CatalogDBException | RuntimeException ex) {
+                lookup.completeExceptionally(ex);
+                throw ex;
+            } finally {
+                lookups.remove(filename, lookup);
+            }
+        }
+    }
+
+    /**
+     * Finds the specified file without joining a lookup in flight, which may have started before
+     * the last write to the file. Callers holding the file's lock use this to see that write.
+     */
+    @SuppressWarnings("try")
+    public File getCurrentFile(String filename) throws CatalogDBException {
+        try (Trace.Span span = Trace.span("catalog.getFile")) {
+            if (index != null) {
+                return index.get(filename);
+            }
+            return shardFor(filename).findFileByName(filename);
+        }
+    }
+
+    private File awaitLookup(String filename, CompletableFuture<File> inFlight) throws CatalogDBException {
+        try {
+            return inFlight.get();
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof CatalogDBException) {
+                throw (CatalogDBException) ex.getCause();
+            }
+            throw new CatalogDBException("Could not find " + filename, ex.getCause());
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new CatalogDBException("Interrupted while finding " + filename, ex);
+        }
     }
-    
+
+    @SuppressWarnings("try")
     public boolean deleteFile(String filename, String username) throws CatalogDBException {
-        boolean deleted = false;
-        File fileToDelete = catDAO.findFileByName(filename);
-        if(fileToDelete.getFileOwner().equals(username) || fileToDelete.getFilePermission().equals("RW")){
-            catDAO.deleteFile(fileToDelete);
-            deleted = true;
+        try (Trace.Span span = Trace.span("catalog.deleteFile")) {
+            boolean deleted = false;
+            Lock lock = lockFile(filename);
+            try {
+                File fileToDelete = getCurrentFile(filename);
+                if(fileToDelete != null && (fileToDelete.getFileOwner().equals(username) || fileToDelete.getFilePermission().equals("RW"))){
+                    deleteInShard(shardIndex(filename), fileToDelete);
+                    forgetUsage(fileToDelete.getFileOwner());
+                    record(Mutation.Type.DELETE_FILE, fileToDelete);
+                    deleted = true;
+                }
+            } finally {
+                lock.unlock();
+            }
+            return deleted;
         }
-        return deleted;
     }
-    
-    public void updateFile(String filename, int newSize) throws CatalogDBException{
-        catDAO.updateFile(filename, newSize);
+
+    /**
+     * Updates the specified file, unless it has been updated by someone else since it was read.
+     *
+     * @param filename        The file to update.
+     * @param newSize         The new size.
+     * @param expectedVersion The version of the file that was read by the updater.
+     * @return <code>true</code> if the file was updated, <code>false</code> if its version was not
+     *         <code>expectedVersion</code>.
+     * @throws CatalogDBException     If failed to update the file.
+     * @throws QuotaExceededException If the new size would take the owner over the quota.
+     */
+    @SuppressWarnings("try")
+    public boolean updateFile(String filename, int newSize, int expectedVersion)
+            throws CatalogDBException, QuotaExceededException {
+        try (Trace.Span span = Trace.span("catalog.updateFile")) {
+            Lock lock = lockFile(filename);
+            try {
+                File existing = getCurrentFile(filename);
+                if (existing == null || existing.getFileVersion() != expectedVersion) {
+                    return false;
+                }
+                int shard = shardIndex(filename);
+                boolean updated;
+                try {
+                    Usage limit = newSize > existing.getFileSize() ? limitFor(existing.getFileOwner(), shard) : null;
+                    updated = updateInShard(shard, filename, newSize, expectedVersion, limit);
+                } catch (QuotaExceededException refused) {
+                    throw overQuota(existing.getFileOwner(), refused);
+                } finally {
+                    forgetUsage(existing.getFileOwner());
+                }
+                if (!updated) {
+                    return false;
+                }
+                record(Mutation.Type.UPDATE_FILE, new File(filename, newSize, null, null, expectedVersion + 1));
+                return true;
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Applies a file mutation shipped from the primary. Applying the same mutation more than once
+     * has the same effect as applying it once.
+     */
+    public void apply(Mutation mutation) throws CatalogDBException {
+        Lock lock = lockFile(mutation.file.getFileName());
+        try {
+            applyLocked(mutation);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void applyLocked(Mutation mutation) throws CatalogDBException {
+        int shard = shardIndex(mutation.file.getFileName());
+        File existing = getCurrentFile(mutation.file.getFileName());
+        switch (mutation.type) {
+            case CREATE_FILE:
+                if (existing != null) {
+                    deleteInShard(shard, existing);
+                    forgetUsage(existing.getFileOwner());
+                }
+                createInShard(shard, mutation.file);
+                forgetUsage(mutation.file.getFileOwner());
+                break;
+            case UPDATE_FILE:
+                if (updateInShard(shard, mutation.file.getFileName(), mutation.file.getFileSize(),
+                                  mutation.file.getFileVersion() - 1) && existing != null) {
+                    forgetUsage(existing.getFileOwner());
+                }
+                break;
+            case DELETE_FILE:
+                if (existing != null) {
+                    deleteInShard(shard, existing);
+                    forgetUsage(existing.getFileOwner());
+                }
+                break;
+            default:
+                throw new CatalogDBException("Not a file mutation: " + mutation.type);
+        }
     }
-    
+
+    /**
+     * Makes the specified file, shipped in a snapshot of the primary, as it is there, unless it
+     * already is.
+     */
+    public void install(File file) throws CatalogDBException {
+        Lock lock = lockFile(file.getFileName());
+        try {
+            File existing = getCurrentFile(file.getFileName());
+            if (existing == null || existing.getFileVersion() != file.getFileVersion()
+                || existing.getFileSize() != file.getFileSize()
+                || !Objects.equals(existing.getFileOwner(), file.getFileOwner())
+                || !Objects.equals(existing.getFilePermission(), file.getFilePermission())) {
+                applyLocked(new Mutation(0, Mutation.Type.CREATE_FILE, file, null));
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Removes every file whose name is not among the specified ones, after a snapshot of the
+     * primary has been installed.
+     *
+     * @return The number of files removed.
+     */
+    public int retainOnly(Set<String> filenames) throws CatalogDBException {
+        int removed = 0;
+        for (File file : getFiles()) {
+            if (!filenames.contains(file.getFileName())) {
+                apply(new Mutation(0, Mutation.Type.DELETE_FILE, file, null));
+                removed++;
+            }
+        }
+        return removed;
+    }
+
+    /**
+     * Moves every file that is not stored in the shard its name hashes to, and copies the accounts
+     * of all other shards to the first shard, which is where accounts are looked up. Must be
+     * called after the number or order of shards has changed, before the catalog is used.
+     *
+     * A file is written to its new shard before it is deleted from the old one, and a file or
+     * account already in place is not written again, so a rebalance that was interrupted can
+     * simply be run again.
+     *
+     * @param dbms                Database management system vendor of the retired shards.
+     * @param retiredDatasources  Shards that are no longer part of the catalog. All their files
+     *                            are moved to the current shards. May be empty.
+     * @return The number of files that were moved.
+     * @throws CatalogDBException If failed to read or write a shard.
+     */
+    public int rebalance(String dbms, List<String> retiredDatasources) throws CatalogDBException {
+        int moved = 0;
+        for (String datasource : retiredDatasources) {
+            CatalogStore retired = CatalogStore.open(dbms, datasource);
+            try {
+                copyAccounts(retired);
+                for (File file : retired.findAllFiles()) {
+                    move(file, retired, shardFor(file.getFileName()));
+                    moved++;
+                }
+            } finally {
+                retired.close();
+            }
+        }
+        for (int i = 0; i < shards.length; i++) {
+            if (i > 0) {
+                copyAccounts(shards[i]);
+            }
+            for (File file : shards[i].findAllFiles()) {
+                int target = shardIndex(file.getFileName());
+                if (target != i) {
+                    move(file, shards[i], shards[target]);
+                    moved++;
+                }
+            }
+        }
+        usage.clear();
+        return moved;
+    }
+
+    /**
+     * Writes a file to the shard it belongs in, unless that shard already has a copy of it, and
+     * then deletes it from the shard it was found in.
+     *
+     * A copy in the shard the file belongs in was either written by an interrupted rebalance, in
+     * which case it is the same, or written since, through the current shards, in which case it is
+     * the newer one. Versions can not tell, since they start over when a file is deleted and
+     * created again, and neither can the change sequences, which are kept per shard and can not be
+     * compared between shards.
+     */
+    private static void move(File file, CatalogStore from, CatalogStore to) throws CatalogDBException {
+        if (to.findFileByName(file.getFileName()) == null) {
+            to.createFile(file);
+        }
+        from.deleteFile(file);
+    }
+
+    /**
+     * Registers the accounts of the specified shard in the first shard, unless the username is
+     * already taken there.
+     */
+    private void copyAccounts(CatalogStore from) throws CatalogDBException {
+        CatalogStore accountStore = getAccountStore();
+        for (Credentials account : accountsOf(from)) {
+            if (!accountStore.userExists(account.getUsername())) {
+                accountStore.register(account);
+            }
+        }
+    }
+
+    /**
+     * @return All user accounts.
+     */
+    public List<Credentials> getAccounts() throws CatalogDBException {
+        return accountsOf(getAccountStore());
+    }
+
+    private static List<Credentials> accountsOf(CatalogStore from) throws CatalogDBException {
+        List<Credentials> accounts = new ArrayList<>();
+        try {
+            from.exportTo(new CatalogArchive.Writer() {
+                @Override
+                public void writeAccount(Credentials account) {
+                    accounts.add(account);
+                }
+
+                @Override
+                public void writeFile(File file) {
+                }
+
+                @Override
+                public void close() {
+                }
+            }, true, 1000);
+        } catch (IOException ex) {
+            throw new CatalogDBException("Could not read the accounts.", ex);
+        }
+        return accounts;
+    }
+
+    /**
+     * Writes all accounts and files to the specified archive, in the format selected by its name.
+     * The shards are streamed one at a time, <code>fetchSize</code> rows at a time.
+     *
+     * @return The number of accounts and files written.
+     * @throws CatalogDBException If failed to read a shard.
+     * @throws IOException        If failed to write the archive.
+     */
+    public long exportTo(Path archive, int fetchSize) throws CatalogDBException, IOException {
+        long rows = 0;
+        try (CatalogArchive.Writer out = CatalogArchive.create(archive, CatalogArchive.Format.of(archive))) {
+            for (int i = 0; i < shards.length; i++) {
+                rows += shards[i].exportTo(out, i == 0, fetchSize);
+            }
+        }
+        return rows;
+    }
+
+    /**
+     * Loads all accounts and files of the specified archive. The archive is read by the calling
+     * thread, which hands batches of <code>batchSize</code> rows to <code>loaders</code> threads.
+     * Each thread opens its own loader on each shard to stage its batches, JDBC shards give every
+     * loader a connection of its own. When all batches are loaded, each shard moves its staged rows into the
+     * catalog. Accounts and files that already exist are kept. Must be run while the server is
+     * stopped.
+     *
+     * @return The number of files added.
+     * @throws CatalogDBException If failed to load the rows. Rows are only added to the catalog
+     *                            if all of them were loaded.
+     * @throws IOException        If failed to read the archive.
+     */
+    public int importFrom(Path archive, int loaders, int batchSize) throws CatalogDBException, IOException {
+        for (CatalogStore shard : shards) {
+            shard.beginImport();
+        }
+        List<CatalogStore.Loader> opened = Collections.synchronizedList(new ArrayList<>());
+        ThreadLocal<CatalogStore.Loader[]> loaderShards
+                = ThreadLocal.withInitial(() -> new CatalogStore.Loader[shards.length]);
+        AtomicReference<CatalogDBException> failure = new AtomicReference<>();
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(loaders, loaders, 0, TimeUnit.MILLISECONDS,
+                                                         new ArrayBlockingQueue<>(loaders * 2), task -> {
+            Thread thread = new Thread(task, "catalog-import");
+            thread.setDaemon(true);
+            return thread;
+        }, new ThreadPoolExecutor.CallerRunsPolicy());
+        StagedRows[] pending = new StagedRows[shards.length];
+        for (int i = 0; i < pending.length; i++) {
+            pending[i] = new StagedRows();
+        }
+        BiConsumer<Integer, StagedRows> load = (shard, rows) -> pool.execute(() -> {
+            if (failure.get() != null) {
+                return;
+            }
+            try {
+                CatalogStore.Loader[] mine = loaderShards.get();
+                if (mine[shard] == null) {
+                    mine[shard] = shards[shard].openLoader();
+                    opened.add(mine[shard]);
+                }
+                mine[shard].stage(rows.files, rows.accounts);
+            } catch (CatalogDBException ex) {
+                failure.compareAndSet(null, ex);
+            }
+        });
+        try {
+            CatalogArchive.read(archive, CatalogArchive.Format.of(archive), new CatalogArchive.Visitor() {
+                @Override
+                public void account(Credentials account) throws CatalogDBException {
+                    pending[0].accounts.add(account);
+                    flushIfFull(0);
+                }
+
+                @Override
+                public void file(File file) throws CatalogDBException {
+                    int shard = shardIndex(file.getFileName());
+                    pending[shard].files.add(file);
+                    flushIfFull(shard);
+                }
+
+                private void flushIfFull(int shard) throws CatalogDBException {
+                    if (failure.get() != null) {
+                        throw failure.get();
+                    }
+                    if (pending[shard].size() >= batchSize) {
+                        load.accept(shard, pending[shard]);
+                        pending[shard] = new StagedRows();
+                    }
+                }
+            });
+            for (int i = 0; i < pending.length; i++) {
+                if (pending[i].size() > 0) {
+                    load.accept(i, pending[i]);
+                }
+            }
+        } finally {
+            pool.shutdown();
+            try {
+                pool.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+            for (CatalogStore.Loader loader : opened) {
+                loader.close();
+            }
+        }
+        if (failure.get() != null) {
+            throw failure.get();
+        }
+        List<Future<Integer>> finished = new ArrayList<>();
+        for (CatalogStore shard : shards) {
+            finished.add(shardPool.submit(shard::finishImport));
+        }
+        int imported = 0;
+        for (Future<Integer> result : finished) {
+            try {
+                imported += result.get();
+            } catch (ExecutionException ex) {
+                if (ex.getCause() instanceof CatalogDBException) {
+                    throw (CatalogDBException) ex.getCause();
+                }
+                throw new CatalogDBException("Could not complete the import.", ex.getCause());
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new CatalogDBException("Interrupted while completing the import.", ex);
+            }
+        }
+        usage.clear();
+        return imported;
+    }
+
+    /**
+     * Rows of one shard waiting to be loaded by an import.
+     */
+    private static class StagedRows {
+        final List<File> files = new ArrayList<>();
+        final List<Credentials> accounts = new ArrayList<>();
+
+        int size() {
+            return files.size() + accounts.size();
+        }
+    }
+
     public boolean authentication(Credentials credentials)throws CatalogDBException{
-        if(catDAO.getPassword(credentials.getUsername()).equals(credentials.getPassword()))
+        if(shards[0].getPassword(credentials.getUsername()).equals(credentials.getPassword()))
             return true;
         else
             return false;
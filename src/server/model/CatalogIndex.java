@@ -0,0 +1,356 @@
+package server.model;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Predicate;
+import server.integration.CatalogStore;
+
+/**
+ * All files of the catalog, held in memory. Kept up to date by the catalog's own writes, which
+ * makes it valid only as long as this node is the only one writing to the catalog's datasources.
+ *
+ * The files are not stored as objects. The index is an open-addressing hash table whose columns
+ * are primitive arrays: the hash, size, version and owner of each file, and a byte of flags that
+ * also holds the permission. Filenames are stored as UTF-8 in an off-heap arena, and owners as ids
+ * into a table of distinct owners. <code>File</code> objects are only created when files are
+ * read, so the number of objects on the heap does not grow with the catalog.
+ */
+class CatalogIndex {
+    private static final int INITIAL_CAPACITY = 1024;
+    private static final int INITIAL_ARENA_SIZE = 1 << 16;
+    private static final byte OCCUPIED = 1;
+    private static final byte REMOVED = 2;
+    private static final byte HAS_PERMISSION = 4;
+    private static final byte READ_WRITE = 8;
+    private static final int NO_OWNER = -1;
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private final Map<String, Integer> ownerIds = new HashMap<>();
+    private final List<String> owners = new ArrayList<>();
+    private int[] hashes;
+    private long[] names;
+    private int[] sizes;
+    private int[] versions;
+    private int[] ownerOf;
+    private byte[] flags;
+    private int count;
+    private int removed;
+    private ByteBuffer arena;
+    private int arenaGarbage;
+
+    CatalogIndex() {
+        allocate(INITIAL_CAPACITY);
+        arena = ByteBuffer.allocateDirect(INITIAL_ARENA_SIZE);
+    }
+
+    private void allocate(int capacity) {
+        hashes = new int[capacity];
+        names = new long[capacity];
+        sizes = new int[capacity];
+        versions = new int[capacity];
+        ownerOf = new int[capacity];
+        flags = new byte[capacity];
+    }
+
+    File get(String filename) {
+        byte[] name = utf8(filename);
+        lock.readLock().lock();
+        try {
+            int slot = find(name, hash(name));
+            return slot < 0 ? null : file(slot, filename);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    List<File> all() {
+        lock.readLock().lock();
+        try {
+            List<File> all = new ArrayList<>(count);
+            for (int slot = 0; slot < flags.length; slot++) {
+                if (isOccupied(slot)) {
+                    all.add(file(slot, name(slot)));
+                }
+            }
+            return all;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    void put(File file) {
+        byte[] name = utf8(file.getFileName());
+        int hash = hash(name);
+        lock.writeLock().lock();
+        try {
+            int slot = find(name, hash);
+            if (slot < 0) {
+                if (count + removed + 1 > flags.length * 3 / 4) {
+                    rehash(count + 1 > flags.length / 2 ? flags.length * 2 : flags.length);
+                }
+                slot = freeSlot(hash);
+                if ((flags[slot] & REMOVED) != 0) {
+                    removed--;
+                }
+                hashes[slot] = hash;
+                names[slot] = store(name);
+                count++;
+            }
+            sizes[slot] = file.getFileSize();
+            versions[slot] = file.getFileVersion();
+            ownerOf[slot] = ownerId(file.getFileOwner());
+            flags[slot] = permissionFlags(file.getFilePermission());
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    void putAll(Collection<File> toAdd) {
+        for (File file : toAdd) {
+            put(file);
+        }
+    }
+
+    void updated(String filename, int newSize, int newVersion) {
+        byte[] name = utf8(filename);
+        lock.writeLock().lock();
+        try {
+            int slot = find(name, hash(name));
+            if (slot >= 0) {
+                sizes[slot] = newSize;
+                versions[slot] = newVersion;
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    void remove(String filename) {
+        byte[] name = utf8(filename);
+        lock.writeLock().lock();
+        try {
+            int slot = find(name, hash(name));
+            if (slot >= 0) {
+                removeSlot(slot);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Makes the index agree with the specified changes read from one shard. A changed file
+     * replaces the indexed one unless they are the same, including the owner and permission,
+     * since a file that was deleted and uploaded again starts over at the same version.
+     *
+     * @param changes The files written in the shard since the index was saved.
+     * @param inShard Tells whether a filename belongs to the shard the changes were read from.
+     */
+    void reconcile(CatalogStore.Changes changes, Predicate<String> inShard) {
+        Set<String> changed = new HashSet<>();
+        for (File file : changes.changed) {
+            changed.add(file.getFileName());
+        }
+        lock.writeLock().lock();
+        try {
+            if (changes.complete) {
+                for (int slot = 0; slot < flags.length; slot++) {
+                    if (isOccupied(slot)) {
+                        String name = name(slot);
+                        if (inShard.test(name) && !changed.contains(name)) {
+                            removeSlot(slot);
+                        }
+                    }
+                }
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+        for (String deleted : changes.deleted) {
+            remove(deleted);
+        }
+        for (File file : changes.changed) {
+            if (!same(get(file.getFileName()), file)) {
+                put(file);
+            }
+        }
+    }
+
+    private static boolean same(File indexed, File file) {
+        return indexed != null && indexed.getFileVersion() == file.getFileVersion()
+               && indexed.getFileSize() == file.getFileSize()
+               && Objects.equals(indexed.getFileOwner(), file.getFileOwner())
+               && Objects.equals(indexed.getFilePermission(), file.getFilePermission());
+    }
+
+    private boolean isOccupied(int slot) {
+        return (flags[slot] & (OCCUPIED | REMOVED)) == OCCUPIED;
+    }
+
+    private void removeSlot(int slot) {
+        arenaGarbage += nameLength(names[slot]);
+        flags[slot] = REMOVED;
+        count--;
+        removed++;
+    }
+
+    /**
+     * @return The slot holding the specified name, or <code>-1</code>.
+     */
+    private int find(byte[] name, int hash) {
+        int mask = flags.length - 1;
+        for (int slot = hash & mask; ; slot = (slot + 1) & mask) {
+            if (flags[slot] == 0) {
+                return -1;
+            }
+            if (isOccupied(slot) && hashes[slot] == hash && nameEquals(names[slot], name)) {
+                return slot;
+            }
+        }
+    }
+
+    private int freeSlot(int hash) {
+        int mask = flags.length - 1;
+        for (int slot = hash & mask; ; slot = (slot + 1) & mask) {
+            if (!isOccupied(slot)) {
+                return slot;
+            }
+        }
+    }
+
+    /**
+     * Moves all files to new arrays of the specified capacity, dropping removed slots, and to a
+     * new arena if the current one is mostly garbage.
+     */
+    private void rehash(int capacity) {
+        int[] oldHashes = hashes;
+        long[] oldNames = names;
+        int[] oldSizes = sizes;
+        int[] oldVersions = versions;
+        int[] oldOwners = ownerOf;
+        byte[] oldFlags = flags;
+        ByteBuffer oldArena = arena;
+        boolean compactArena = arenaGarbage > arena.position() / 2;
+        if (compactArena) {
+            arena = ByteBuffer.allocateDirect(Math.max(INITIAL_ARENA_SIZE, (arena.position() - arenaGarbage) * 2));
+            arenaGarbage = 0;
+        }
+        allocate(capacity);
+        removed = 0;
+        for (int old = 0; old < oldFlags.length; old++) {
+            if ((oldFlags[old] & (OCCUPIED | REMOVED)) != OCCUPIED) {
+                continue;
+            }
+            int slot = freeSlot(oldHashes[old]);
+            hashes[slot] = oldHashes[old];
+            names[slot] = compactArena ? store(bytes(oldArena, oldNames[old])) : oldNames[old];
+            sizes[slot] = oldSizes[old];
+            versions[slot] = oldVersions[old];
+            ownerOf[slot] = oldOwners[old];
+            flags[slot] = oldFlags[old];
+        }
+    }
+
+    /**
+     * Copies a name into the arena, growing the arena if it is full.
+     *
+     * @return The offset of the name in the arena in the high bits, and its length in the low 16.
+     */
+    private long store(byte[] name) {
+        if (arena.remaining() < name.length) {
+            ByteBuffer grown = ByteBuffer.allocateDirect(Math.max(arena.capacity() * 2, arena.position() + name.length));
+            arena.flip();
+            grown.put(arena);
+            arena = grown;
+        }
+        long offset = arena.position();
+        arena.put(name);
+        return (offset << 16) | name.length;
+    }
+
+    private static int nameOffset(long name) {
+        return (int) (name >>> 16);
+    }
+
+    private static int nameLength(long name) {
+        return (int) (name & 0xFFFF);
+    }
+
+    private boolean nameEquals(long stored, byte[] name) {
+        if (nameLength(stored) != name.length) {
+            return false;
+        }
+        int offset = nameOffset(stored);
+        for (int i = 0; i < name.length; i++) {
+            if (arena.get(offset + i) != name[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static byte[] bytes(ByteBuffer arena, long stored) {
+        byte[] name = new byte[nameLength(stored)];
+        int offset = nameOffset(stored);
+        for (int i = 0; i < name.length; i++) {
+            name[i] = arena.get(offset + i);
+        }
+        return name;
+    }
+
+    private String name(int slot) {
+        return new String(bytes(arena, names[slot]), StandardCharsets.UTF_8);
+    }
+
+    private File file(int slot, String filename) {
+        int owner = ownerOf[slot];
+        return new File(filename, sizes[slot], owner == NO_OWNER ? null : owners.get(owner),
+                        permission(flags[slot]), versions[slot]);
+    }
+
+    private int ownerId(String owner) {
+        if (owner == null) {
+            return NO_OWNER;
+        }
+        Integer id = ownerIds.get(owner);
+        if (id == null) {
+            id = owners.size();
+            owners.add(owner);
+            ownerIds.put(owner, id);
+        }
+        return id;
+    }
+
+    private static byte permissionFlags(String permission) {
+        if (permission == null) {
+            return OCCUPIED;
+        }
+        return (byte) (OCCUPIED | HAS_PERMISSION | ("RW".equals(permission) ? READ_WRITE : 0));
+    }
+
+    private static String permission(byte flags) {
+        if ((flags & HAS_PERMISSION) == 0) {
+            return null;
+        }
+        return (flags & READ_WRITE) != 0 ? "RW" : "RO";
+    }
+
+    private static byte[] utf8(String filename) {
+        return filename.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static int hash(byte[] name) {
+        int hash = Arrays.hashCode(name);
+        return hash ^ (hash >>> 16);
+    }
+}
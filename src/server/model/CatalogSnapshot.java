@@ -0,0 +1,185 @@
+package server.model;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A binary copy of all files of the catalog, written to a local file so that a restarted server
+ * does not have to read the whole catalog from the database. The file starts with a header naming
+ * the datasources the snapshot was taken from, each with the position in its change sequence that
+ * the snapshot includes all writes up to, followed by a table of distinct owners and one record
+ * per file. Strings are stored as a length followed by UTF-8 bytes, or as the length -1 if they
+ * are <code>null</code>.
+ */
+class CatalogSnapshot {
+    private static final int MAGIC = 0x43415453;
+    private static final int FORMAT_VERSION = 3;
+    private static final int NULL_LENGTH = -1;
+    private static final byte READ_ONLY = 0;
+    private static final byte READ_WRITE = 1;
+    private static final byte NO_PERMISSION = 2;
+    final List<String> datasources;
+    final long[] sequences;
+    final List<File> files;
+
+    private CatalogSnapshot(List<String> datasources, long[] sequences, List<File> files) {
+        this.datasources = datasources;
+        this.sequences = sequences;
+        this.files = files;
+    }
+
+    /**
+     * Writes a snapshot of the specified files. The snapshot is first written to a temporary file
+     * and forced to disk, which then replaces the old snapshot, so that a crash never leaves a half
+     * written snapshot. The directory is forced too, so the replacement survives a crash.
+     *
+     * @param sequences The change sequence position of each datasource.
+     */
+    static void write(Path path, List<String> datasources, long[] sequences, Collection<File> files)
+            throws IOException {
+        Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+        Map<String, Integer> owners = new HashMap<>();
+        List<String> ownerTable = new ArrayList<>();
+        for (File file : files) {
+            if (owners.putIfAbsent(file.getFileOwner(), ownerTable.size()) == null) {
+                ownerTable.add(file.getFileOwner());
+            }
+        }
+        try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                                                    StandardOpenOption.WRITE)) {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel)));
+            out.writeInt(MAGIC);
+            out.writeInt(FORMAT_VERSION);
+            out.writeInt(datasources.size());
+            for (int i = 0; i < datasources.size(); i++) {
+                writeString(out, datasources.get(i));
+                out.writeLong(sequences[i]);
+            }
+            out.writeInt(ownerTable.size());
+            for (String owner : ownerTable) {
+                writeString(out, owner);
+            }
+            out.writeInt(files.size());
+            for (File file : files) {
+                writeString(out, file.getFileName());
+                out.writeInt(file.getFileSize());
+                out.writeInt(owners.get(file.getFileOwner()));
+                out.writeByte(permission(file.getFilePermission()));
+                out.writeInt(file.getFileVersion());
+            }
+            out.flush();
+            channel.force(true);
+        }
+        Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        forceDirectory(path.toAbsolutePath().getParent());
+    }
+
+    private static byte permission(String permission) {
+        if (permission == null) {
+            return NO_PERMISSION;
+        }
+        return "RW".equals(permission) ? READ_WRITE : READ_ONLY;
+    }
+
+    private static String permission(byte code) {
+        switch (code) {
+            case READ_WRITE:
+                return "RW";
+            case READ_ONLY:
+                return "RO";
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * Forces the entries of a directory to disk, where the platform allows directories to be
+     * opened.
+     */
+    private static void forceDirectory(Path directory) throws IOException {
+        FileChannel dir;
+        try {
+            dir = FileChannel.open(directory, StandardOpenOption.READ);
+        } catch (IOException | UnsupportedOperationException notSupported) {
+            return;
+        }
+        try (FileChannel channel = dir) {
+            channel.force(true);
+        }
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        if (value == null) {
+            out.writeInt(NULL_LENGTH);
+            return;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    /**
+     * Reads a snapshot by mapping the snapshot file into memory.
+     *
+     * @return The snapshot, or <code>null</code> if there is no snapshot file.
+     * @throws IOException If the file could not be read, or is not a snapshot.
+     */
+    static CatalogSnapshot read(Path path) throws IOException {
+        if (!Files.exists(path)) {
+            return null;
+        }
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            MappedByteBuffer in = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (in.getInt() != MAGIC || in.getInt() != FORMAT_VERSION) {
+                throw new IOException("Not a catalog snapshot: " + path);
+            }
+            List<String> datasources = new ArrayList<>();
+            long[] sequences = new long[in.getInt()];
+            for (int i = 0; i < sequences.length; i++) {
+                datasources.add(readString(in));
+                sequences[i] = in.getLong();
+            }
+            String[] owners = new String[in.getInt()];
+            for (int i = 0; i < owners.length; i++) {
+                owners[i] = readString(in);
+            }
+            int count = in.getInt();
+            List<File> files = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                String name = readString(in);
+                int size = in.getInt();
+                String owner = owners[in.getInt()];
+                String permission = permission(in.get());
+                files.add(new File(name, size, owner, permission, in.getInt()));
+            }
+            return new CatalogSnapshot(datasources, sequences, files);
+        } catch (RuntimeException corrupt) {
+            throw new IOException("Corrupt catalog snapshot: " + path, corrupt);
+        }
+    }
+
+    private static String readString(ByteBuffer in) {
+        int length = in.getInt();
+        if (length == NULL_LENGTH) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        in.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
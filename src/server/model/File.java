@@ -4,17 +4,28 @@ import common.*;
 import server.integration.CatalogDAO;
 
 public class File implements FileDTO {
+    /**
+     * The serialVersionUID the class had before it got a version, so that files serialized by
+     * older nodes and clients can still be read, with version 0.
+     */
+    private static final long serialVersionUID = -8031214320152131367L;
     public final String name;
     public final Integer size;
     public final String owner;
     public final String permission;
+    public final int version;
     
     
     public File(String name, Integer size, String owner, String permission) {
+        this(name, size, owner, permission, 0);
+    }
+
+    public File(String name, Integer size, String owner, String permission, int version) {
         this.name = name;
         this.size = size;
         this.owner = owner;
         this.permission = permission;
+        this.version = version;
     }
 
     @Override
@@ -36,4 +47,9 @@ public class File implements FileDTO {
     public String getFilePermission() {
         return this.permission;
     }
+
+    @Override
+    public int getFileVersion() {
+        return this.version;
+    }
 }
@@ -0,0 +1,84 @@
+package server.model;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * Locks serializing operations on the same file. There is a fixed number of locks, and each
+ * filename maps to one of them by its hash, so operations on the same file always exclude each
+ * other while operations on different files rarely do. The locks are reentrant.
+ */
+public class FileLocks implements FileLocksMBean {
+    private final ReentrantLock[] stripes;
+    private final LongAdder acquisitions = new LongAdder();
+    private final LongAdder contendedAcquisitions = new LongAdder();
+    private final LongAdder waitNanos = new LongAdder();
+    private final LongAccumulator maxWaitNanos = new LongAccumulator(Math::max, 0);
+
+    /**
+     * @param stripeCount The number of locks, rounded up to a power of two.
+     */
+    public FileLocks(int stripeCount) {
+        int size = Integer.highestOneBit(Math.max(1, stripeCount - 1)) << 1;
+        stripes = new ReentrantLock[size];
+        for (int i = 0; i < size; i++) {
+            stripes[i] = new ReentrantLock();
+        }
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this,
+                    new ObjectName("server:type=FileLocks,id=" + System.identityHashCode(this)));
+        } catch (JMException ex) {
+            Logger.getLogger(FileLocks.class.getName()).log(Level.WARNING, null, ex);
+        }
+    }
+
+    /**
+     * Acquires the lock of the specified file, waiting if another thread holds it.
+     *
+     * @param filename The file to lock.
+     * @return The acquired lock, which the caller must unlock.
+     */
+    public Lock lock(String filename) {
+        int hash = filename.hashCode();
+        ReentrantLock stripe = stripes[(hash ^ (hash >>> 16)) & (stripes.length - 1)];
+        acquisitions.increment();
+        if (stripe.tryLock()) {
+            return stripe;
+        }
+        long waitStart = System.nanoTime();
+        stripe.lock();
+        long waited = System.nanoTime() - waitStart;
+        contendedAcquisitions.increment();
+        waitNanos.add(waited);
+        maxWaitNanos.accumulate(waited);
+        return stripe;
+    }
+
+    @Override
+    public long getAcquisitions() {
+        return acquisitions.sum();
+    }
+
+    @Override
+    public long getContendedAcquisitions() {
+        return contendedAcquisitions.sum();
+    }
+
+    @Override
+    public long getTotalWaitMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(waitNanos.sum());
+    }
+
+    @Override
+    public long getMaxWaitMicros() {
+        return TimeUnit.NANOSECONDS.toMicros(maxWaitNanos.get());
+    }
+}
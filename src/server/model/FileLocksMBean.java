@@ -0,0 +1,26 @@
+package server.model;
+
+/**
+ * Lock wait statistics of the file locks, as seen by JMX clients.
+ */
+public interface FileLocksMBean {
+    /**
+     * @return The number of times a file lock has been acquired.
+     */
+    long getAcquisitions();
+
+    /**
+     * @return The number of acquisitions that had to wait for another thread.
+     */
+    long getContendedAcquisitions();
+
+    /**
+     * @return The total time spent waiting for file locks, in milliseconds.
+     */
+    long getTotalWaitMillis();
+
+    /**
+     * @return The longest time a thread has waited for a file lock, in microseconds.
+     */
+    long getMaxWaitMicros();
+}
@@ -0,0 +1,32 @@
+package server.model;
+
+import common.Credentials;
+import java.io.Serializable;
+
+/**
+ * One change of the catalog or the user accounts, as shipped from the primary to the replicas.
+ * Mutations are numbered in the order they were made at the primary.
+ */
+public class Mutation implements Serializable {
+    public enum Type {
+        CREATE_FILE,
+        UPDATE_FILE,
+        DELETE_FILE,
+        REGISTER
+    }
+
+    private static final long serialVersionUID = 1L;
+    public final long sequence;
+    public final long timestamp;
+    public final Type type;
+    public final File file;
+    public final Credentials credentials;
+
+    Mutation(long sequence, Type type, File file, Credentials credentials) {
+        this.sequence = sequence;
+        this.timestamp = System.currentTimeMillis();
+        this.type = type;
+        this.file = file;
+        this.credentials = credentials;
+    }
+}
@@ -0,0 +1,97 @@
+package server.model;
+
+import common.Credentials;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The ordered log of mutations made at the primary. Mutations are kept until every replica has
+ * acknowledged them, but never more than a fixed number: when a replica falls further behind, the
+ * oldest mutations are dropped, and the replica is sent a snapshot instead.
+ */
+public class ReplicationLog {
+    private final Deque<Mutation> mutations = new ArrayDeque<>();
+    private final Map<String, Long> acknowledged = new HashMap<>();
+    private final long epoch = System.currentTimeMillis();
+    private final int capacity;
+    private long lastSequence = 0;
+
+    /**
+     * @param replicas The names of all replicas that will read this log.
+     * @param capacity The largest number of mutations kept.
+     */
+    public ReplicationLog(List<String> replicas, int capacity) {
+        this.capacity = capacity;
+        for (String replica : replicas) {
+            acknowledged.put(replica, 0L);
+        }
+    }
+
+    /**
+     * @return Identifies this log. A new log, with sequence numbers starting over from one, is
+     *         created every time the primary is started.
+     */
+    public long getEpoch() {
+        return epoch;
+    }
+
+    public synchronized long getLastSequence() {
+        return lastSequence;
+    }
+
+    synchronized void append(Mutation.Type type, File file, Credentials credentials) {
+        mutations.addLast(new Mutation(++lastSequence, type, file, credentials));
+        if (mutations.size() > capacity) {
+            mutations.removeFirst();
+        }
+        notifyAll();
+    }
+
+    /**
+     * Returns mutations following the specified sequence number, waiting for new mutations if
+     * there are none.
+     *
+     * @param afterSequence The last mutation the caller already has.
+     * @param maxMutations  The largest number of mutations to return.
+     * @param timeoutMillis For how long to wait for a mutation.
+     * @return The mutations, in order. Empty if none arrived before the timeout. The first one
+     *         does not follow <code>afterSequence</code> if the mutations in between were dropped.
+     * @throws InterruptedException If interrupted while waiting.
+     */
+    public synchronized List<Mutation> since(long afterSequence, int maxMutations, long timeoutMillis)
+            throws InterruptedException {
+        if (lastSequence <= afterSequence) {
+            wait(timeoutMillis);
+        }
+        if (lastSequence <= afterSequence) {
+            return Collections.emptyList();
+        }
+        List<Mutation> batch = new ArrayList<>();
+        for (Mutation mutation : mutations) {
+            if (mutation.sequence > afterSequence) {
+                batch.add(mutation);
+                if (batch.size() == maxMutations) {
+                    break;
+                }
+            }
+        }
+        return batch;
+    }
+
+    /**
+     * Records that the specified replica has applied all mutations up to the specified sequence
+     * number, and discards the mutations that all replicas have applied.
+     */
+    public synchronized void acknowledge(String replica, long sequence) {
+        acknowledged.put(replica, sequence);
+        long applied = Collections.min(acknowledged.values());
+        while (!mutations.isEmpty() && mutations.peekFirst().sequence <= applied) {
+            mutations.removeFirst();
+        }
+    }
+}
@@ -0,0 +1,139 @@
+package server.model;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.LongPredicate;
+
+/**
+ * The sessions subscribing to events of files. A session can subscribe to one file, by its exact
+ * name, or to all files whose names start with a prefix. Prefix subscriptions are kept in a trie
+ * with one node per character, so finding the subscribers of an event only visits the nodes along
+ * the filename, and the cost grows with the length of the name and the number of matching
+ * subscriptions, not with the number of sessions.
+ */
+public class SubscriptionIndex {
+    private final Map<String, Set<Long>> exact = new ConcurrentHashMap<>();
+    private final Node prefixes = new Node();
+    private final Map<Long, Set<String>> bySession = new ConcurrentHashMap<>();
+    private final LongPredicate live;
+
+    private static class Node {
+        final Map<Character, Node> children = new ConcurrentHashMap<>();
+        final Set<Long> subscribers = ConcurrentHashMap.newKeySet();
+    }
+
+    /**
+     * @param live Tells whether a session has not ended. Sessions must be ended before
+     *             <code>removeSession</code> is called for them.
+     */
+    public SubscriptionIndex(LongPredicate live) {
+        this.live = live;
+    }
+
+    /**
+     * Subscribes the specified session, unless it has ended. All changes to the subscriptions of
+     * one session are made in one atomic step, so a subscription made while the session ends is
+     * either removed with the session, or not made at all.
+     *
+     * @param sessionId The subscribing session.
+     * @param pattern   A filename, or a filename prefix.
+     * @param prefix    <code>true</code> if <code>pattern</code> is a prefix.
+     * @return <code>false</code> if the session has ended.
+     */
+    public boolean subscribe(long sessionId, String pattern, boolean prefix) {
+        boolean[] subscribed = new boolean[1];
+        bySession.compute(sessionId, (id, subscriptions) -> {
+            if (!live.test(id)) {
+                return subscriptions;
+            }
+            add(sessionId, pattern, prefix);
+            Set<String> updated = subscriptions == null ? ConcurrentHashMap.newKeySet() : subscriptions;
+            updated.add(key(pattern, prefix));
+            subscribed[0] = true;
+            return updated;
+        });
+        return subscribed[0];
+    }
+
+    /**
+     * Removes one subscription of the specified session. Empty trie nodes are left in place.
+     */
+    public void unsubscribe(long sessionId, String pattern, boolean prefix) {
+        bySession.computeIfPresent(sessionId, (id, subscriptions) -> {
+            if (subscriptions.remove(key(pattern, prefix))) {
+                remove(sessionId, pattern, prefix);
+            }
+            return subscriptions.isEmpty() ? null : subscriptions;
+        });
+    }
+
+    /**
+     * Removes all subscriptions of a session that has ended.
+     */
+    public void removeSession(long sessionId) {
+        bySession.computeIfPresent(sessionId, (id, subscriptions) -> {
+            for (String subscription : subscriptions) {
+                remove(sessionId, subscription.substring(1), subscription.charAt(0) == '*');
+            }
+            return null;
+        });
+    }
+
+    private void add(long sessionId, String pattern, boolean prefix) {
+        if (prefix) {
+            Node node = prefixes;
+            for (int i = 0; i < pattern.length(); i++) {
+                node = node.children.computeIfAbsent(pattern.charAt(i), c -> new Node());
+            }
+            node.subscribers.add(sessionId);
+        } else {
+            exact.compute(pattern, (name, ids) -> {
+                Set<Long> updated = ids == null ? ConcurrentHashMap.newKeySet() : ids;
+                updated.add(sessionId);
+                return updated;
+            });
+        }
+    }
+
+    private void remove(long sessionId, String pattern, boolean prefix) {
+        if (prefix) {
+            Node node = prefixes;
+            for (int i = 0; i < pattern.length() && node != null; i++) {
+                node = node.children.get(pattern.charAt(i));
+            }
+            if (node != null) {
+                node.subscribers.remove(sessionId);
+            }
+        } else {
+            exact.computeIfPresent(pattern, (name, ids) -> {
+                ids.remove(sessionId);
+                return ids.isEmpty() ? null : ids;
+            });
+        }
+    }
+
+    /**
+     * @return The sessions subscribing to the specified file, by name or by prefix.
+     */
+    public Set<Long> subscribers(String filename) {
+        Set<Long> exactMatches = exact.getOrDefault(filename, Collections.emptySet());
+        Set<Long> matches = new HashSet<>(exactMatches);
+        Node node = prefixes;
+        matches.addAll(node.subscribers);
+        for (int i = 0; i < filename.length(); i++) {
+            node = node.children.get(filename.charAt(i));
+            if (node == null) {
+                break;
+            }
+            matches.addAll(node.subscribers);
+        }
+        return matches;
+    }
+
+    private static String key(String pattern, boolean prefix) {
+        return (prefix ? "*" : "=") + pattern;
+    }
+}
@@ -4,6 +4,7 @@ import common.Client;
 import common.MessageException;
 
 import java.rmi.RemoteException;
+import server.trace.Trace;
 
 /**
  *
@@ -14,6 +15,7 @@ public class User {
     public long id;
     private Client remoteNode;
     private UserManager userMgr;
+    final CallbackHealth health;
     private static final String DEFAULT_USERNAME = "anonymous";
     
     public User(String username, Client remoteNode, UserManager mgr, long id){
@@ -21,17 +23,56 @@ public class User {
         this.remoteNode = remoteNode;
         this.userMgr = mgr;
         this.id = id;
+        this.health = mgr.newCallbackHealth();
     }
     
     public User(long id, Client remoteNode, UserManager mgr) {
         this(DEFAULT_USERNAME, remoteNode, mgr, id);
     }
     
-    public void send(String msg){
+    /**
+     * Delivers a message to this user's client. Nothing is sent while the client is considered
+     * unreachable, see <code>CallbackHealth</code>.
+     *
+     * @return <code>false</code> if the message was skipped since the client is unreachable.
+     * @throws MessageException If the delivery failed.
+     */
+    @SuppressWarnings("try")
+    public boolean send(String msg){
+        try (Trace.Span span = Trace.span("user.send")) {
+            if(!health.allowDelivery())
+                return false;
+            long start = System.nanoTime();
+            try {
+                remoteNode.recvMsg(msg);
+                health.delivered(System.nanoTime() - start);
+                return true;
+            } catch(RemoteException re) {
+                health.failed();
+                throw new MessageException("Failed to deliver message to " + username + ".");
+            }
+        }
+    }
+
+    /**
+     * @return <code>false</code> while callbacks to this user's client are skipped.
+     */
+    public boolean isReachable() {
+        return health.allowDelivery();
+    }
+
+    /**
+     * Checks whether an unreachable client has come back, and resumes deliveries if it has.
+     *
+     * @return <code>true</code> if the client is reachable.
+     */
+    boolean probe() {
         try {
-            remoteNode.recvMsg(msg);
-        } catch(RemoteException re) {
-            throw new MessageException("Failed to deliver message to " + username + ".");
+            remoteNode.ping();
+            health.recovered();
+            return true;
+        } catch(RemoteException stillUnreachable) {
+            return false;
         }
     }
     
@@ -2,13 +2,20 @@ package server.model;
 
 import common.Client;
 import common.Credentials;
-import server.integration.CatalogDAO;
+import server.integration.CatalogStore;
 
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongConsumer;
 import server.integration.CatalogDBException;
+import server.trace.Trace;
 
 
 /**
@@ -18,36 +25,126 @@ import server.integration.CatalogDBException;
 public class UserManager {
     private final Random idGenerator = new Random();
     private final Map<Long, User> users = Collections.synchronizedMap(new HashMap<>());
-    public final Map<String, Long> userName = Collections.synchronizedMap(new HashMap<>());
-    private final CatalogDAO catDAO;
+    private final Map<String, Set<Long>> userName = new ConcurrentHashMap<>();
+    private final CatalogStore catDAO;
+    private ReplicationLog replicationLog;
+    private int callbackFailureThreshold = 3;
+    private long slowCallbackNanos = TimeUnit.SECONDS.toNanos(2);
     
     public UserManager(String dbms, String datasource) throws CatalogDBException {
-        this.catDAO = new CatalogDAO(dbms, datasource);
+        this.catDAO = CatalogStore.open(dbms, datasource);
+    }
+
+    /**
+     * Creates a manager storing accounts in the specified store, which may be shared with the
+     * catalog.
+     */
+    public UserManager(CatalogStore catDAO) {
+        this.catDAO = catDAO;
     }
     
+    /**
+     * Starts watching the health of all clients' callbacks. Clients whose circuit is open are
+     * probed in the background, and sessions whose client stays unreachable are ended.
+     *
+     * @param failureThreshold    The number of failed or slow deliveries in a row that makes a
+     *                            client unreachable.
+     * @param slowCallbackMillis  Deliveries slower than this count as failures.
+     * @param probeIntervalMillis How often unreachable clients are probed.
+     * @param evictAfterMillis    For how long a client may stay unreachable before its session is
+     *                            ended.
+     * @param evicted             Called with the id of every ended session.
+     */
+    public void monitorCallbacks(int failureThreshold, long slowCallbackMillis, long probeIntervalMillis,
+                                 long evictAfterMillis, LongConsumer evicted) {
+        this.callbackFailureThreshold = failureThreshold;
+        this.slowCallbackNanos = TimeUnit.MILLISECONDS.toNanos(slowCallbackMillis);
+        ScheduledExecutorService prober = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "callback-prober");
+            thread.setDaemon(true);
+            return thread;
+        });
+        prober.scheduleWithFixedDelay(() -> probeUnreachable(evictAfterMillis, evicted),
+                                      probeIntervalMillis, probeIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    CallbackHealth newCallbackHealth() {
+        return new CallbackHealth(callbackFailureThreshold, slowCallbackNanos);
+    }
+
+    private void probeUnreachable(long evictAfterMillis, LongConsumer evicted) {
+        User[] all;
+        synchronized (users) {
+            all = users.values().toArray(new User[0]);
+        }
+        long now = System.currentTimeMillis();
+        for (User user : all) {
+            if (!user.health.isOpen() || user.probe()) {
+                continue;
+            }
+            if (now - user.health.openedAt() > evictAfterMillis) {
+                removeUser(user.id);
+                evicted.accept(user.id);
+            }
+        }
+    }
+
+    /**
+     * Makes this manager record all new accounts in the specified log, to be shipped to replicas.
+     */
+    public void replicateTo(ReplicationLog replicationLog) {
+        this.replicationLog = replicationLog;
+    }
+
+    /**
+     * Applies an account mutation shipped from the primary.
+     */
+    public void apply(Mutation mutation) throws CatalogDBException {
+        install(mutation.credentials);
+    }
+
+    /**
+     * Adds an account of a snapshot shipped from the primary, unless it exists.
+     */
+    public void install(Credentials account) throws CatalogDBException {
+        if(!catDAO.userExists(account.getUsername()))
+            catDAO.register(account);
+    }
+
+    @SuppressWarnings("try")
     public boolean register(Credentials credentials) throws CatalogDBException{
-        if(!catDAO.userExists(credentials.getUsername())){
-            catDAO.register(credentials);
-            return true;
-        }else
-            return false;
+        try (Trace.Span span = Trace.span("users.register")) {
+            if(!catDAO.userExists(credentials.getUsername())){
+                catDAO.register(credentials);
+                if(replicationLog != null)
+                    replicationLog.append(Mutation.Type.REGISTER, null, credentials);
+                return true;
+            }else
+                return false;
+        }
     }
     
+    @SuppressWarnings("try")
     public long createUser(Client remoteNode, Credentials credentials) throws CatalogDBException {
-        if(catDAO.getPassword(credentials.getUsername()).equals(credentials.getPassword())){
-            long uid = idGenerator.nextLong() + 1;
-            User newUser = new User(credentials.getUsername(),
-                                                     remoteNode, this, uid);
-            users.put(uid, newUser);
-            userName.put(credentials.getUsername(), uid);
-            return uid;
+        try (Trace.Span span = Trace.span("users.createUser")) {
+            if(catDAO.getPassword(credentials.getUsername()).equals(credentials.getPassword())){
+                long uid = idGenerator.nextLong() + 1;
+                User newUser = new User(credentials.getUsername(),
+                                                         remoteNode, this, uid);
+                users.put(uid, newUser);
+                userName.computeIfAbsent(credentials.getUsername(), name -> ConcurrentHashMap.newKeySet()).add(uid);
+                return uid;
+            }
+            else
+                return 0;
         }
-        else
-            return 0;
     }
     
-    public long getId(String name) {
-        return userName.get(name);
+    /**
+     * @return The ids of all sessions of the specified user, empty if the user is not logged in.
+     */
+    public Set<Long> getIds(String name) {
+        return userName.getOrDefault(name, Collections.emptySet());
     }
     
     
@@ -56,7 +153,12 @@ public class UserManager {
     }
     
     public void removeUser(long id) {
-        userName.remove(getUser(id).username);
-        users.remove(id);
+        User user = users.remove(id);
+        if(user != null){
+            userName.computeIfPresent(user.username, (name, ids) -> {
+                ids.remove(id);
+                return ids.isEmpty() ? null : ids;
+            });
+        }
     } 
 }
@@ -0,0 +1,514 @@
+package server.net;
+
+import common.AccessReport;
+import common.BinaryProtocol;
+import common.BlockSignatures;
+import common.Client;
+import common.Credentials;
+import common.Delta;
+import common.FileDTO;
+import common.QuotaExceededException;
+import common.Server;
+import common.ServerBusyException;
+import common.Usage;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.rmi.RemoteException;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import server.integration.CatalogDBException;
+
+/**
+ * Serves the operations of a <code>Server</code> over <code>BinaryProtocol</code>. One selector
+ * thread accepts connections, reads request frames and writes response frames, requests are
+ * performed by a pool of worker threads. Since each request is handed to a worker as soon as it has
+ * been read, a client may pipeline requests, and responses are sent in the order the requests
+ * complete. Notifications to sessions logged in over a connection are pushed on that connection.
+ * Sessions are logged out when their connection is closed.
+ *
+ * A connection stops being read while <code>MAX_IN_FLIGHT</code> of its requests are being
+ * performed, and requests that find the worker queue full are answered <code>BUSY</code>. A
+ * connection whose unsent responses and notifications exceed <code>MAX_PENDING_BYTES</code> is
+ * closed, since its client does not keep up with reading them.
+ */
+public class BinaryProtocolServer implements Runnable {
+    private static final int READ_BUFFER_SIZE = 64 << 10;
+    private static final int MAX_IN_FLIGHT = 64;
+    private static final int QUEUED_PER_WORKER = 16;
+    private static final long MAX_PENDING_BYTES = 4L * BinaryProtocol.MAX_FRAME_SIZE;
+    private static final Logger LOGGER = Logger.getLogger(BinaryProtocolServer.class.getName());
+    private final Server server;
+    private final ServerSocketChannel listener;
+    private final Selector selector;
+    private final ThreadPoolExecutor workers;
+    private final Queue<Connection> changed = new ConcurrentLinkedQueue<>();
+    private final Thread selectorThread;
+    private volatile boolean running = true;
+
+    /**
+     * Starts accepting connections.
+     *
+     * @param server  The server whose operations are offered.
+     * @param port    The port to listen on, zero means any port.
+     * @param workers The number of threads performing requests.
+     * @throws IOException If the port could not be opened.
+     */
+    public BinaryProtocolServer(Server server, int port, int workers) throws IOException {
+        this.server = server;
+        this.selector = Selector.open();
+        this.listener = ServerSocketChannel.open();
+        listener.bind(new InetSocketAddress(port));
+        listener.configureBlocking(false);
+        listener.register(selector, SelectionKey.OP_ACCEPT);
+        this.workers = new ThreadPoolExecutor(workers, workers, 0, TimeUnit.MILLISECONDS,
+                                              new ArrayBlockingQueue<>(workers * QUEUED_PER_WORKER), task -> {
+            Thread thread = new Thread(task, "binary-protocol-worker");
+            thread.setDaemon(true);
+            return thread;
+        });
+        selectorThread = new Thread(this, "binary-protocol-selector");
+        selectorThread.setDaemon(true);
+        selectorThread.start();
+    }
+
+    /**
+     * @return The port connections are accepted on.
+     */
+    public int port() {
+        return listener.socket().getLocalPort();
+    }
+
+    /**
+     * Stops accepting connections and closes all open connections.
+     */
+    public void close() {
+        running = false;
+        selector.wakeup();
+        try {
+            selectorThread.join();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        workers.shutdown();
+    }
+
+    @Override
+    public void run() {
+        try {
+            while (running) {
+                selector.select();
+                for (Connection connection; (connection = changed.poll()) != null; ) {
+                    try {
+                        connection.resume();
+                    } catch (IOException closed) {
+                        connection.close();
+                    }
+                }
+                Iterator<SelectionKey> selected = selector.selectedKeys().iterator();
+                while (selected.hasNext()) {
+                    SelectionKey key = selected.next();
+                    selected.remove();
+                    try {
+                        if (key.isAcceptable()) {
+                            accept();
+                        } else {
+                            Connection connection = (Connection) key.attachment();
+                            if (key.isReadable()) {
+                                connection.read();
+                            }
+                            if (key.isValid() && key.isWritable()) {
+                                connection.flush();
+                            }
+                        }
+                    } catch (IOException closed) {
+                        if (key.attachment() != null) {
+                            ((Connection) key.attachment()).close();
+                        }
+                    }
+                }
+            }
+        } catch (IOException ex) {
+            LOGGER.log(Level.SEVERE, null, ex);
+        } finally {
+            for (SelectionKey key : selector.keys()) {
+                if (key.attachment() != null) {
+                    ((Connection) key.attachment()).close();
+                }
+            }
+            try {
+                listener.close();
+                selector.close();
+            } catch (IOException ex) {
+                LOGGER.log(Level.WARNING, null, ex);
+            }
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel = listener.accept();
+        if (channel == null) {
+            return;
+        }
+        channel.configureBlocking(false);
+        channel.socket().setTcpNoDelay(true);
+        Connection connection = new Connection(channel);
+        connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+    }
+
+    /**
+     * Performs one request and sends its response.
+     */
+    private void perform(Connection connection, byte[] request) {
+        long requestId = BinaryProtocol.requestId(request);
+        byte[] response;
+        try {
+            try {
+                response = respond(connection, requestId, BinaryProtocol.code(request),
+                                   BinaryProtocol.payload(request));
+            } catch (ServerBusyException busy) {
+                response = error(requestId, BinaryProtocol.BUSY, busy);
+            } catch (CatalogDBException failed) {
+                response = error(requestId, BinaryProtocol.CATALOG_ERROR, failed);
+            } catch (QuotaExceededException quota) {
+                response = error(requestId, BinaryProtocol.QUOTA_EXCEEDED, quota);
+            } catch (RemoteException failed) {
+                response = error(requestId, BinaryProtocol.REMOTE_ERROR, failed);
+            } catch (RuntimeException failed) {
+                response = error(requestId, BinaryProtocol.FAILED, failed);
+            }
+        } catch (IOException malformed) {
+            connection.close();
+            return;
+        } finally {
+            connection.inFlight.decrementAndGet();
+        }
+        connection.send(response);
+    }
+
+    private static byte[] error(long requestId, byte status, Exception cause) throws IOException {
+        return BinaryProtocol.frame(requestId, status,
+                                    out -> BinaryProtocol.writeNullable(out, cause.getMessage()));
+    }
+
+    private byte[] respond(Connection connection, long requestId, byte operation, DataInputStream in)
+            throws IOException, CatalogDBException, QuotaExceededException {
+        switch (operation) {
+            case BinaryProtocol.LOGIN: {
+                Credentials credentials = new Credentials(in.readUTF(), in.readUTF());
+                long id = server.login(connection.client, credentials);
+                if (id != 0) {
+                    connection.sessions.add(id);
+                }
+                return ok(requestId, out -> out.writeLong(id));
+            }
+            case BinaryProtocol.LOGOUT: {
+                long id = in.readLong();
+                if (connection.sessions.remove(id)) {
+                    server.logout(id);
+                }
+                return ok(requestId, null);
+            }
+            case BinaryProtocol.LIST: {
+                List<? extends FileDTO> files = server.list();
+                return ok(requestId, out -> BinaryProtocol.writeFiles(out, files));
+            }
+            case BinaryProtocol.OPEN: {
+                String filename = in.readUTF();
+                long id = session(connection, in.readLong());
+                FileDTO file = server.open(filename, id);
+                return ok(requestId, out -> BinaryProtocol.writeFile(out, file));
+            }
+            case BinaryProtocol.UPLOAD: {
+                long id = session(connection, in.readLong());
+                String filename = in.readUTF();
+                int size = in.readInt();
+                String permission = in.readUTF();
+                server.upload(id, filename, size, permission);
+                return ok(requestId, null);
+            }
+            case BinaryProtocol.DELETE: {
+                String filename = in.readUTF();
+                server.delete(filename, session(connection, in.readLong()));
+                return ok(requestId, null);
+            }
+            case BinaryProtocol.UPDATE: {
+                String filename = in.readUTF();
+                int newSize = in.readInt();
+                int expectedVersion = in.readInt();
+                long id = session(connection, in.readLong());
+                String result = server.update(filename, newSize, expectedVersion, id).name();
+                return ok(requestId, out -> out.writeUTF(result));
+            }
+            case BinaryProtocol.SIGNATURES: {
+                String filename = in.readUTF();
+                BlockSignatures signatures = server.signatures(filename, session(connection, in.readLong()));
+                return ok(requestId, out -> BinaryProtocol.writeSignatures(out, signatures));
+            }
+            case BinaryProtocol.APPLY_DELTA: {
+                String filename = in.readUTF();
+                int expectedVersion = in.readInt();
+                long id = session(connection, in.readLong());
+                Delta delta = BinaryProtocol.readDelta(in);
+                String result = server.applyDelta(filename, delta, expectedVersion, id).name();
+                return ok(requestId, out -> out.writeUTF(result));
+            }
+            case BinaryProtocol.ACCESS_REPORT: {
+                long id = session(connection, in.readLong());
+                AccessReport report = server.accessReport(id, in.readInt());
+                return ok(requestId, out -> {
+                    out.writeBoolean(report != null);
+                    if (report == null) {
+                        return;
+                    }
+                    out.writeLong(report.getPeriodSeconds());
+                    BinaryProtocol.writeCounts(out, report.getHotFiles());
+                    BinaryProtocol.writeCounts(out, report.getActiveUsers());
+                });
+            }
+            case BinaryProtocol.USAGE: {
+                Usage usage = server.usage(session(connection, in.readLong()));
+                return ok(requestId, out -> {
+                    out.writeInt(usage.getFileCount());
+                    out.writeLong(usage.getTotalBytes());
+                });
+            }
+            case BinaryProtocol.REGISTER: {
+                boolean registered = server.register(new Credentials(in.readUTF(), in.readUTF()));
+                return ok(requestId, out -> out.writeBoolean(registered));
+            }
+            case BinaryProtocol.SUBSCRIBE:
+            case BinaryProtocol.UNSUBSCRIBE: {
+                long id = session(connection, in.readLong());
+                String pattern = in.readUTF();
+                boolean prefix = in.readBoolean();
+                if (operation == BinaryProtocol.SUBSCRIBE) {
+                    server.subscribe(id, pattern, prefix);
+                } else {
+                    server.unsubscribe(id, pattern, prefix);
+                }
+                return ok(requestId, null);
+            }
+            case BinaryProtocol.ACCEPTS_WRITES: {
+                boolean acceptsWrites = server.acceptsWrites();
+                return ok(requestId, out -> out.writeBoolean(acceptsWrites));
+            }
+            default:
+                throw new IOException("Unknown operation " + operation);
+        }
+    }
+
+    /**
+     * @return The specified session id if it was opened over the specified connection, otherwise
+     *         zero, which the server treats as not logged in.
+     */
+    private static long session(Connection connection, long id) {
+        return connection.sessions.contains(id) ? id : 0;
+    }
+
+    private static byte[] ok(long requestId, BinaryProtocol.PayloadWriter payload) throws IOException {
+        return BinaryProtocol.frame(requestId, BinaryProtocol.OK, payload);
+    }
+
+    /**
+     * One client connection.
+     */
+    private class Connection {
+        private final SocketChannel channel;
+        private final Queue<ByteBuffer> pending = new ConcurrentLinkedQueue<>();
+        private final AtomicLong pendingBytes = new AtomicLong();
+        private final AtomicInteger inFlight = new AtomicInteger();
+        private final Set<Long> sessions = ConcurrentHashMap.newKeySet();
+        private final Client client = new PushingClient(this);
+        private final AtomicBoolean closed = new AtomicBoolean();
+        private ByteBuffer in = ByteBuffer.allocate(READ_BUFFER_SIZE);
+        private SelectionKey key;
+        private boolean paused;
+
+        Connection(SocketChannel channel) {
+            this.channel = channel;
+        }
+
+        /**
+         * Reads what is available, and hands the complete requests to workers.
+         */
+        void read() throws IOException {
+            if (channel.read(in) < 0) {
+                close();
+                return;
+            }
+            dispatch();
+        }
+
+        /**
+         * Hands complete requests in the read buffer to workers, until <code>MAX_IN_FLIGHT</code>
+         * are being performed. The rest stay in the buffer, and the connection is not read until
+         * <code>resume</code> finds fewer requests in flight.
+         */
+        private void dispatch() throws IOException {
+            in.flip();
+            while (in.remaining() >= Integer.BYTES && inFlight.get() < MAX_IN_FLIGHT) {
+                int length = in.getInt(in.position());
+                if (length < BinaryProtocol.HEADER_SIZE || length > BinaryProtocol.MAX_FRAME_SIZE) {
+                    throw new IOException("Bad frame length " + length);
+                }
+                if (in.remaining() < Integer.BYTES + length) {
+                    if (in.capacity() < Integer.BYTES + length) {
+                        ByteBuffer grown = ByteBuffer.allocate(Integer.BYTES + length);
+                        grown.put(in);
+                        in = grown;
+                        return;
+                    }
+                    break;
+                }
+                in.getInt();
+                byte[] request = new byte[length];
+                in.get(request);
+                inFlight.incrementAndGet();
+                try {
+                    workers.execute(() -> perform(this, request));
+                } catch (RejectedExecutionException full) {
+                    inFlight.decrementAndGet();
+                    send(error(BinaryProtocol.requestId(request), BinaryProtocol.BUSY,
+                               new ServerBusyException("Too many requests are waiting, try again later.")));
+                }
+            }
+            in.compact();
+            paused = inFlight.get() >= MAX_IN_FLIGHT;
+            updateInterest();
+        }
+
+        /**
+         * Called by the selector thread after requests completed or frames were queued, reads the
+         * requests held back by <code>dispatch</code> once there is room for them.
+         */
+        void resume() throws IOException {
+            if (!key.isValid()) {
+                return;
+            }
+            if (paused && inFlight.get() < MAX_IN_FLIGHT) {
+                dispatch();
+            } else {
+                updateInterest();
+            }
+        }
+
+        private void updateInterest() {
+            if (key.isValid()) {
+                key.interestOps((paused ? 0 : SelectionKey.OP_READ)
+                                | (pending.isEmpty() ? 0 : SelectionKey.OP_WRITE));
+            }
+        }
+
+        /**
+         * Queues a frame to be written by the selector thread. Closes the connection instead if
+         * too much is already waiting to be written.
+         */
+        void send(byte[] frame) {
+            if (closed.get()) {
+                return;
+            }
+            if (pendingBytes.addAndGet(frame.length) > MAX_PENDING_BYTES) {
+                LOGGER.log(Level.WARNING, "Closing connection from {0}, it does not read what is sent to it.",
+                           channel.socket().getRemoteSocketAddress());
+                close();
+                return;
+            }
+            pending.add(ByteBuffer.wrap(frame));
+            changed.add(this);
+            selector.wakeup();
+        }
+
+        /**
+         * Writes queued frames until the socket buffer is full.
+         */
+        void flush() throws IOException {
+            for (ByteBuffer frame; (frame = pending.peek()) != null; ) {
+                channel.write(frame);
+                if (frame.hasRemaining()) {
+                    return;
+                }
+                pending.poll();
+                pendingBytes.addAndGet(-frame.capacity());
+            }
+            updateInterest();
+        }
+
+        void close() {
+            if (!closed.compareAndSet(false, true)) {
+                return;
+            }
+            if (key != null) {
+                key.cancel();
+            }
+            try {
+                channel.close();
+            } catch (IOException ex) {
+                LOGGER.log(Level.FINE, null, ex);
+            }
+            pending.clear();
+            for (long id : sessions) {
+                Runnable logout = () -> {
+                    try {
+                        server.logout(id);
+                    } catch (RemoteException ex) {
+                        LOGGER.log(Level.WARNING, null, ex);
+                    }
+                };
+                try {
+                    workers.execute(logout);
+                } catch (RejectedExecutionException full) {
+                    logout.run();
+                }
+            }
+            sessions.clear();
+        }
+    }
+
+    /**
+     * The callback of sessions logged in over a connection, pushing messages on the connection.
+     */
+    private static class PushingClient implements Client {
+        private final Connection connection;
+
+        PushingClient(Connection connection) {
+            this.connection = connection;
+        }
+
+        @Override
+        public void recvMsg(String msg) throws RemoteException {
+            ping();
+            try {
+                connection.send(BinaryProtocol.frame(BinaryProtocol.PUSH, BinaryProtocol.EVENT,
+                                                     out -> out.writeUTF(msg)));
+            } catch (IOException ex) {
+                throw new RemoteException("Could not push message.", ex);
+            }
+        }
+
+        @Override
+        public void ping() throws RemoteException {
+            if (connection.closed.get()) {
+                throw new RemoteException("The connection is closed.");
+            }
+        }
+    }
+}
@@ -0,0 +1,62 @@
+package server.startup;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.time.Instant;
+import java.util.function.Predicate;
+import server.integration.AuditJournalReader;
+import server.integration.AuditRecord;
+
+/**
+ * Prints the records of an audit journal, optionally filtered.
+ */
+public class AuditLog {
+    /**
+     * @param args The first argument is the journal directory. It may be followed by filters on the
+     *             form <code>user=name</code>, <code>file=name</code>, <code>op=OPEN</code>,
+     *             <code>session=id</code>, <code>from=2017-12-01T00:00:00Z</code> and
+     *             <code>to=2017-12-02T00:00:00Z</code>. A record is printed if it matches all of
+     *             them.
+     * @throws IOException If the journal could not be read.
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length == 0) {
+            System.out.println("Usage: AuditLog <journal directory> [user=|file=|op=|session=|from=|to=]...");
+            return;
+        }
+        Predicate<AuditRecord> filter = record -> true;
+        for (int i = 1; i < args.length; i++) {
+            filter = filter.and(parseFilter(args[i]));
+        }
+        long matches = new AuditJournalReader(Paths.get(args[0])).scan(filter, System.out::println);
+        System.out.println(matches + " records.");
+    }
+
+    private static Predicate<AuditRecord> parseFilter(String arg) {
+        int separator = arg.indexOf('=');
+        if (separator < 0) {
+            throw new IllegalArgumentException("Not a filter: " + arg);
+        }
+        String value = arg.substring(separator + 1);
+        switch (arg.substring(0, separator)) {
+            case "user":
+                return record -> record.user.equals(value);
+            case "file":
+                return record -> record.file.equals(value);
+            case "op":
+                AuditRecord.Operation operation = AuditRecord.Operation.valueOf(value.toUpperCase());
+                return record -> record.operation == operation;
+            case "session":
+                long sessionId = Long.parseLong(value);
+                return record -> record.sessionId == sessionId;
+            case "from":
+                long from = Instant.parse(value).toEpochMilli();
+                return record -> record.timestamp >= from;
+            case "to":
+                long to = Instant.parse(value).toEpochMilli();
+                return record -> record.timestamp < to;
+            default:
+                throw new IllegalArgumentException("Unknown filter: " + arg);
+        }
+    }
+}
@@ -0,0 +1,57 @@
+package server.startup;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import server.controller.Controller;
+import server.integration.CatalogDBException;
+import server.model.Catalog;
+
+/**
+ * Exports the catalog to an archive file, or imports an archive file into the catalog. Archives
+ * whose name ends with <code>.csv</code> are CSV, others are binary. The shards are read from the
+ * <code>catalog.shards</code> system property, the same way as when the server is started.
+ * Imports must be run while the server is stopped.
+ */
+public class CatalogTransfer {
+    private static final String DEFAULT_DATASOURCE = "CatalogDB";
+    private static final int DEFAULT_FETCH_SIZE = 1000;
+    private static final int DEFAULT_LOADERS = 4;
+    private static final int DEFAULT_BATCH_SIZE = 1000;
+
+    /**
+     * @param args Either <code>export file [fetch size]</code> or
+     *             <code>import file [loader threads] [batch size]</code>.
+     * @throws CatalogDBException If the catalog could not be read or written.
+     * @throws IOException        If the archive could not be read or written.
+     */
+    public static void main(String[] args) throws CatalogDBException, IOException {
+        if (args.length < 2) {
+            System.out.println("Usage: CatalogTransfer export <file> [fetch size]");
+            System.out.println("       CatalogTransfer import <file> [loader threads] [batch size]");
+            return;
+        }
+        Path archive = Paths.get(args[1]);
+        Catalog catalog = new Catalog(Controller.engine(), Controller.shards(DEFAULT_DATASOURCE));
+        long started = System.currentTimeMillis();
+        switch (args[0]) {
+            case "export":
+                long rows = catalog.exportTo(archive, argument(args, 2, DEFAULT_FETCH_SIZE));
+                System.out.println("Exported " + rows + " accounts and files in "
+                                   + (System.currentTimeMillis() - started) + " ms.");
+                break;
+            case "import":
+                int files = catalog.importFrom(archive, argument(args, 2, DEFAULT_LOADERS),
+                                               argument(args, 3, DEFAULT_BATCH_SIZE));
+                System.out.println("Imported " + files + " files in "
+                                   + (System.currentTimeMillis() - started) + " ms.");
+                break;
+            default:
+                System.out.println("Unknown command: " + args[0]);
+        }
+    }
+
+    private static int argument(String[] args, int index, int defaultValue) {
+        return args.length > index ? Integer.parseInt(args[index]) : defaultValue;
+    }
+}
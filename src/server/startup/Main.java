@@ -2,28 +2,41 @@ package server.startup;
 
 
 import java.net.MalformedURLException;
-import java.rmi.Naming;
 import java.rmi.RemoteException;
 import java.rmi.registry.LocateRegistry;
 import java.rmi.registry.Registry;
+import server.controller.ClusterMembership;
 import server.controller.Controller;
 import server.integration.CatalogDBException;
 
 
 
 /**
- * Starts the catalog servant and binds it in the RMI registry.
+ * Starts the catalog servant and binds it in the RMI registry. Several servers, each in its own
+ * JVM, can be started on the same host. They share the registry and together form a cluster.
  */
 public class Main {
+    private static final String DEFAULT_NODE_NAME = "node1";
+    private static final int ANY_PORT = 0;
+
     /**
-     * @param args There are no command line arguments.
+     * @param args The first, optional, argument is the name of this node in the cluster. The
+     *             second, optional, argument is the port on which the node accepts calls.
      * @throws server.integration.CatalogDBException
      */
     public static void main(String[] args) throws CatalogDBException {
+        String nodeName = args.length > 0 ? args[0] : DEFAULT_NODE_NAME;
+        int port = args.length > 1 ? Integer.parseInt(args[1]) : ANY_PORT;
         try {
             new Main().startRegistry();
-            Naming.rebind(Controller.SERVER_NAME_IN_REGISTRY, new Controller());
-            System.out.println("File server is running.");
+            ClusterMembership cluster = new ClusterMembership(nodeName);
+            Controller controller = new Controller(port, cluster);
+            cluster.join(controller);
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                cluster.leave();
+                controller.shutdown();
+            }));
+            System.out.println("File server " + nodeName + " is running.");
         } catch (MalformedURLException | RemoteException ex) {
         }
     }
@@ -0,0 +1,32 @@
+package server.startup;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import server.controller.Controller;
+import server.integration.CatalogDBException;
+import server.model.Catalog;
+
+/**
+ * Moves catalog files to the shards they belong to after the shard configuration has changed.
+ * The current shards are read from the <code>catalog.shards</code> system property, the same way
+ * as when the server is started. Must be run while the server is stopped.
+ */
+public class Rebalance {
+    private static final String DEFAULT_DATASOURCE = "CatalogDB";
+
+    /**
+     * @param args An optional comma separated list of retired shards, whose files are moved to
+     *             the current shards.
+     * @throws CatalogDBException If the files could not be moved.
+     */
+    public static void main(String[] args) throws CatalogDBException {
+        List<String> retired = Collections.emptyList();
+        if (args.length > 0) {
+            retired = Arrays.asList(args[0].trim().split("\\s*,\\s*"));
+        }
+        Catalog catalog = new Catalog(Controller.engine(), Controller.shards(DEFAULT_DATASOURCE));
+        int moved = catalog.rebalance(Controller.engine(), retired);
+        System.out.println("Moved " + moved + " files.");
+    }
+}
@@ -0,0 +1,355 @@
+package server.trace;
+
+import java.io.IOException;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.FileHandler;
+import java.util.logging.Formatter;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+import java.util.logging.Logger;
+
+/**
+ * The timed stages of one request. A trace is begun where a request enters the server, and is the
+ * current trace of that thread until it is closed. Code anywhere below opens spans with
+ * <code>Trace.span</code>, which time a stage of the current trace, and do nothing if there is none.
+ * Work handed to another thread joins the trace through a <code>Context</code>.
+ *
+ * Spans are recorded for all requests while tracing is enabled. When a request and all work it
+ * started in the background have ended, its trace is written to the log of this class if the
+ * request was sampled, at <code>INFO</code>, or took longer than the slow threshold, at
+ * <code>WARNING</code>. Each log message is one line of <code>key=value</code> fields followed by
+ * the stages, each with its start and duration in milliseconds relative to the start of the request.
+ *
+ * Traces and spans are opened in try-with-resources statements only so that they are closed where
+ * the stage ends, and are usually not referenced in the statement. Methods doing so suppress the
+ * <code>try</code> lint warning about the unreferenced resource.
+ */
+public final class Trace implements AutoCloseable {
+    private static final Logger LOGGER = Logger.getLogger(Trace.class.getName());
+    private static final ThreadLocal<Scope> CURRENT = new ThreadLocal<>();
+    private static final AtomicLong NEXT_ID = new AtomicLong();
+    private static final Trace NONE = new Trace();
+    private static volatile double sampleRate;
+    private static volatile long slowNanos = -1;
+    private final long id;
+    private final String operation;
+    private final String subject;
+    private final boolean sampled;
+    private final long start;
+    private final List<Span> spans = new ArrayList<>();
+    private final AtomicInteger parts = new AtomicInteger(1);
+    private final Scope scope;
+    private final Scope callerScope;
+    private volatile long requestNanos;
+
+    private Trace() {
+        this.id = 0;
+        this.operation = null;
+        this.subject = null;
+        this.sampled = false;
+        this.start = 0;
+        this.scope = null;
+        this.callerScope = null;
+    }
+
+    private Trace(String operation, String subject, boolean sampled) {
+        this.id = NEXT_ID.incrementAndGet();
+        this.operation = operation;
+        this.subject = subject;
+        this.sampled = sampled;
+        this.start = System.nanoTime();
+        this.scope = new Scope(this, 0);
+        this.callerScope = CURRENT.get();
+        CURRENT.set(scope);
+    }
+
+    /**
+     * Enables tracing.
+     *
+     * @param sampleRate The fraction of requests whose traces are always logged, between 0 and 1.
+     * @param slowMillis Traces of requests taking at least this long are logged, negative if none.
+     */
+    public static void configure(double sampleRate, long slowMillis) {
+        Trace.sampleRate = sampleRate;
+        Trace.slowNanos = slowMillis < 0 ? -1 : slowMillis * 1_000_000;
+    }
+
+    /**
+     * Also writes the traces to the specified file, one trace per line.
+     *
+     * @param file The file, or a <code>FileHandler</code> pattern.
+     * @throws IOException If the file could not be opened.
+     */
+    public static void logTo(String file) throws IOException {
+        FileHandler handler = new FileHandler(file, true);
+        handler.setFormatter(new Formatter() {
+            @Override
+            public String format(LogRecord record) {
+                return Instant.ofEpochMilli(record.getMillis()) + " " + record.getLevel() + " " + record.getMessage()
+                       + System.lineSeparator();
+            }
+        });
+        LOGGER.addHandler(handler);
+    }
+
+    private static boolean enabled() {
+        return sampleRate > 0 || slowNanos >= 0;
+    }
+
+    /**
+     * Begins the trace of a request, which becomes the current trace of the calling thread.
+     *
+     * @param operation The request.
+     * @param subject   What the request concerns, for example a filename, may be <code>null</code>.
+     * @return The trace, which must be closed when the request ends.
+     */
+    public static Trace begin(String operation, String subject) {
+        if (!enabled()) {
+            return NONE;
+        }
+        double rate = sampleRate;
+        return new Trace(operation, subject, rate > 0 && ThreadLocalRandom.current().nextDouble() < rate);
+    }
+
+    /**
+     * Opens a span timing a stage of the current trace.
+     *
+     * @param stage The name of the stage.
+     * @return The span, which must be closed when the stage ends.
+     */
+    public static Span span(String stage) {
+        Scope current = CURRENT.get();
+        if (current == null) {
+            return Span.NONE;
+        }
+        return new Span(current, stage, System.nanoTime(), false);
+    }
+
+    /**
+     * @return The context of the current trace, for work the caller waits for in another thread.
+     */
+    public static Context context() {
+        return context(false);
+    }
+
+    /**
+     * @return The context of the current trace, for work done in another thread after the request
+     *         has ended. The trace is not logged before that work has ended, or has been abandoned.
+     */
+    public static Context fork() {
+        return context(true);
+    }
+
+    private static Context context(boolean background) {
+        Scope current = CURRENT.get();
+        if (current == null) {
+            return Context.NONE;
+        }
+        if (background) {
+            current.trace.parts.incrementAndGet();
+        }
+        return new Context(current, System.nanoTime(), background);
+    }
+
+    /**
+     * Ends the request. Restores the trace that was current before this one began.
+     */
+    @Override
+    public void close() {
+        if (this == NONE) {
+            return;
+        }
+        requestNanos = System.nanoTime() - start;
+        if (callerScope == null) {
+            CURRENT.remove();
+        } else {
+            CURRENT.set(callerScope);
+        }
+        partEnded();
+    }
+
+    private void partEnded() {
+        if (parts.decrementAndGet() == 0) {
+            log();
+        }
+    }
+
+    private void log() {
+        long totalNanos = requestNanos;
+        List<Span> recorded;
+        synchronized (spans) {
+            recorded = new ArrayList<>(spans);
+        }
+        for (Span span : recorded) {
+            totalNanos = Math.max(totalNanos, span.end - start);
+        }
+        boolean slow = slowNanos >= 0 && totalNanos >= slowNanos;
+        if (!slow && !sampled) {
+            return;
+        }
+        Level level = slow ? Level.WARNING : Level.INFO;
+        if (!LOGGER.isLoggable(level)) {
+            return;
+        }
+        recorded.sort((a, b) -> a.start != b.start ? Long.compare(a.start, b.start) : Integer.compare(a.depth, b.depth));
+        StringBuilder line = new StringBuilder();
+        line.append("trace=").append(id)
+            .append(" op=").append(operation)
+            .append(" subject=").append(subject)
+            .append(" sampled=").append(sampled)
+            .append(" slow=").append(slow)
+            .append(" requestMs=").append(millis(requestNanos))
+            .append(" totalMs=").append(millis(totalNanos))
+            .append(" stages=[");
+        for (int i = 0; i < recorded.size(); i++) {
+            Span span = recorded.get(i);
+            if (i > 0) {
+                line.append("; ");
+            }
+            for (int depth = 0; depth < span.depth; depth++) {
+                line.append('>');
+            }
+            line.append(span.stage);
+            if (span.background) {
+                line.append("(async)");
+            }
+            line.append(" +").append(millis(span.start - start)).append(' ').append(millis(span.end - span.start));
+        }
+        LOGGER.log(level, line.append(']').toString());
+    }
+
+    private static String millis(long nanos) {
+        return String.format(Locale.ROOT, "%.3f", nanos / 1e6);
+    }
+
+    /**
+     * The trace current in one thread, and the depth of the spans open in that thread.
+     */
+    private static class Scope {
+        private final Trace trace;
+        private int depth;
+
+        Scope(Trace trace, int depth) {
+            this.trace = trace;
+            this.depth = depth;
+        }
+    }
+
+    /**
+     * A timed stage of a trace.
+     */
+    public static final class Span implements AutoCloseable {
+        private static final Span NONE = new Span();
+        private final Scope scope;
+        private final String stage;
+        private final int depth;
+        private final long start;
+        private final boolean background;
+        private final boolean entered;
+        private final Scope previous;
+        private long end;
+
+        private Span() {
+            this.scope = null;
+            this.stage = null;
+            this.depth = 0;
+            this.start = 0;
+            this.background = false;
+            this.entered = false;
+            this.previous = null;
+        }
+
+        private Span(Scope scope, String stage, long start, boolean background) {
+            this(scope, stage, start, background, false, null);
+        }
+
+        /**
+         * @param entered  <code>true</code> if the span was opened by <code>Context.enter</code>,
+         *                 closing it then restores <code>previous</code> as the current scope.
+         */
+        private Span(Scope scope, String stage, long start, boolean background, boolean entered, Scope previous) {
+            this.scope = scope;
+            this.stage = stage;
+            this.depth = scope.depth++;
+            this.start = start;
+            this.background = background;
+            this.entered = entered;
+            this.previous = previous;
+        }
+
+        /**
+         * Ends the stage.
+         */
+        @Override
+        public void close() {
+            if (this == NONE) {
+                return;
+            }
+            end = System.nanoTime();
+            scope.depth--;
+            synchronized (scope.trace.spans) {
+                scope.trace.spans.add(this);
+            }
+            if (!entered) {
+                return;
+            }
+            if (previous == null) {
+                CURRENT.remove();
+            } else {
+                CURRENT.set(previous);
+            }
+            if (background) {
+                scope.trace.partEnded();
+            }
+        }
+    }
+
+    /**
+     * A trace handed over to another thread.
+     */
+    public static final class Context {
+        private static final Context NONE = new Context(null, 0, false);
+        private final Scope from;
+        private final long handedOver;
+        private final boolean background;
+
+        private Context(Scope from, long handedOver, boolean background) {
+            this.from = from;
+            this.handedOver = handedOver;
+            this.background = background;
+        }
+
+        /**
+         * Makes the trace current in the calling thread, and opens a span that started when the
+         * context was created, so that it includes the time spent waiting for the thread.
+         *
+         * @param stage The name of the stage performed in this thread.
+         * @return The span, which must be closed when the work ends. Closing it restores the
+         *         trace that was current in this thread before.
+         */
+        public Span enter(String stage) {
+            if (this == NONE) {
+                return Span.NONE;
+            }
+            Scope previous = CURRENT.get();
+            Scope scope = new Scope(from.trace, background ? 0 : from.depth);
+            CURRENT.set(scope);
+            return new Span(scope, stage, handedOver, background, true, previous);
+        }
+
+        /**
+         * Gives up background work that will never be performed.
+         */
+        public void abandon() {
+            if (background) {
+                from.trace.partEnded();
+            }
+        }
+    }
+}